@@ -0,0 +1,95 @@
+-- Version 2 of the history schema: moves the history of the houses from the Home table, where every field
+-- is text, to the compact home_history table, which refers to the houses in the homes table, packs the on/off
+-- states into the bits of one number and keeps the readings and settings as small numbers.
+--
+-- Run it once against the TartanHome database, then set historySchema: 2 in the configuration and restart:
+--
+--   mysql -u tartan -p TartanHome < migrate-history-v2.sql
+--
+-- The Home table is left as it was. Records already in home_history are kept, so it is safe to run again.
+
+CREATE TABLE IF NOT EXISTS homes (
+    id INT NOT NULL AUTO_INCREMENT,
+    name VARCHAR(255) NOT NULL,
+    address VARCHAR(255) NOT NULL,
+    group_experiment VARCHAR(255),
+    PRIMARY KEY (id),
+    UNIQUE KEY homes_name (name)
+);
+
+CREATE TABLE IF NOT EXISTS home_history (
+    id BIGINT NOT NULL,
+    home_id INT NOT NULL,
+    create_time DATETIME(6),
+    -- the low 16 bits are the states, the high 16 bits whether each was known
+    flags INT NOT NULL,
+    temperature SMALLINT,
+    humidity SMALLINT,
+    target_temp SMALLINT,
+    night_start_time SMALLINT,
+    night_end_time SMALLINT,
+    alarm_delay SMALLINT,
+    minutes_lights_on BIGINT,
+    PRIMARY KEY (id),
+    KEY home_history_home_time (home_id, create_time),
+    CONSTRAINT home_history_home FOREIGN KEY (home_id) REFERENCES homes (id)
+);
+
+CREATE TABLE IF NOT EXISTS home_history_ids (
+    sequence_name VARCHAR(255) NOT NULL,
+    next_val BIGINT,
+    PRIMARY KEY (sequence_name)
+);
+
+-- each house, as it was in its latest record
+INSERT INTO homes (name, address, group_experiment)
+SELECT h.home_name, h.address, h.groupExperiment
+FROM Home h
+JOIN (SELECT home_name, MAX(id) AS id FROM Home GROUP BY home_name) latest ON latest.id = h.id
+WHERE NOT EXISTS (SELECT 1 FROM homes WHERE homes.name = h.home_name);
+
+-- the records keep their keys; the bit of the armed alarm is the sign bit of the flags
+INSERT IGNORE INTO home_history (id, home_id, create_time, flags, temperature, humidity, target_temp,
+                                 night_start_time, night_end_time, alarm_delay, minutes_lights_on)
+SELECT id, home_id, create_time,
+       CASE WHEN flags >= 2147483648 THEN flags - 4294967296 ELSE flags END,
+       temperature, humidity, target_temp, night_start_time, night_end_time, alarm_delay, minutes_lights_on
+FROM (
+    SELECT h.id, homes.id AS home_id, h.create_time,
+        CASE h.door_state WHEN 'open' THEN 65537 WHEN 'closed' THEN 65536 ELSE 0 END
+        + CASE h.light_state WHEN 'on' THEN 131074 WHEN 'off' THEN 131072 ELSE 0 END
+        + CASE h.humidifier_state WHEN 'on' THEN 262148 WHEN 'off' THEN 262144 ELSE 0 END
+        + CASE h.proximity_state WHEN 'occupied' THEN 524296 WHEN 'empty' THEN 524288 ELSE 0 END
+        + CASE h.door_lock_state WHEN 'lock' THEN 1048592 WHEN 'unlock' THEN 1048576 ELSE 0 END
+        + CASE h.arriving_proximity_state WHEN 'arriving' THEN 2097184 WHEN 'not_arriving' THEN 2097152 ELSE 0 END
+        + CASE h.key_less_entry WHEN 'on' THEN 4194368 WHEN 'off' THEN 4194304 ELSE 0 END
+        + CASE h.electronic_operation WHEN 'on' THEN 8388736 WHEN 'off' THEN 8388608 ELSE 0 END
+        + CASE h.night_lock WHEN 'on' THEN 16777472 WHEN 'off' THEN 16777216 ELSE 0 END
+        + CASE h.lock_intruder_sensor WHEN 'on' THEN 33554944 WHEN 'off' THEN 33554432 ELSE 0 END
+        + CASE h.intruder_defense_sensor WHEN 'on' THEN 67109888 WHEN 'off' THEN 67108864 ELSE 0 END
+        + CASE h.panel_message WHEN 'on' THEN 134219776 WHEN 'off' THEN 134217728 ELSE 0 END
+        + CASE h.hvac_mode WHEN 'heat' THEN 268439552 WHEN 'cool' THEN 268435456 ELSE 0 END
+        + CASE h.hvac_state WHEN 'on' THEN 536879104 WHEN 'off' THEN 536870912 ELSE 0 END
+        + CASE h.alarm_active_state WHEN 'active' THEN 1073758208 WHEN 'inactive' THEN 1073741824 ELSE 0 END
+        + CASE h.alarm_enabled_state WHEN 'armed' THEN 2147516416 WHEN 'disarmed' THEN 2147483648 ELSE 0 END AS flags,
+        CASE WHEN h.temperature REGEXP '^-?[0-9]{1,5}$' AND CAST(h.temperature AS SIGNED) BETWEEN -32768 AND 32767
+        THEN CAST(h.temperature AS SIGNED) END AS temperature,
+        CASE WHEN h.humidity REGEXP '^-?[0-9]{1,5}$' AND CAST(h.humidity AS SIGNED) BETWEEN -32768 AND 32767
+        THEN CAST(h.humidity AS SIGNED) END AS humidity,
+        CASE WHEN h.target_temp REGEXP '^-?[0-9]{1,5}$' AND CAST(h.target_temp AS SIGNED) BETWEEN -32768 AND 32767
+        THEN CAST(h.target_temp AS SIGNED) END AS target_temp,
+        CASE WHEN h.night_start_time REGEXP '^-?[0-9]{1,5}$' AND CAST(h.night_start_time AS SIGNED) BETWEEN -32768 AND 32767
+        THEN CAST(h.night_start_time AS SIGNED) END AS night_start_time,
+        CASE WHEN h.night_end_time REGEXP '^-?[0-9]{1,5}$' AND CAST(h.night_end_time AS SIGNED) BETWEEN -32768 AND 32767
+        THEN CAST(h.night_end_time AS SIGNED) END AS night_end_time,
+        CASE WHEN h.alarm_delay REGEXP '^-?[0-9]{1,5}$' AND CAST(h.alarm_delay AS SIGNED) BETWEEN -32768 AND 32767
+        THEN CAST(h.alarm_delay AS SIGNED) END AS alarm_delay,
+        h.minutes_lights_on
+    FROM Home h
+    JOIN homes ON homes.name = h.home_name
+) converted;
+
+-- new records are numbered after the ones copied, in blocks of 100 as in TartanHistoryData
+INSERT INTO home_history_ids (sequence_name, next_val)
+SELECT 'home_history', COALESCE(MAX(id), 0) + 1 + 100 FROM home_history
+ON DUPLICATE KEY UPDATE next_val = GREATEST(next_val, VALUES(next_val));
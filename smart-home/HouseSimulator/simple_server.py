@@ -230,6 +230,42 @@ class HouseState(object):
                                                                                                self.get_night_lock())
 house = HouseState()
 
+class PushThread(threading.Thread):
+   '''
+   Thread to push the house state to the controller whenever it changes (push mode)
+   '''
+
+   def __init__(self, connection, send_lock):
+      '''
+      Set up the stop event
+      '''
+      super().__init__()
+      self.__stop = threading.Event()
+      self.__connection = connection
+      self.__send_lock = send_lock
+
+   def stop(self):
+      '''
+      Terminate this thread
+      '''
+      self.__stop.set()
+
+   def run(self):
+      '''
+      Check the state twice a second and send it if it changed
+      '''
+      last = house.get_state()
+      while not self.__stop.wait(0.5):
+         state = house.get_state()
+         if state == last: continue
+         last = state
+         try:
+            with self.__send_lock:
+               self.__connection.sendall("SU:{}.\n".format(state).encode())
+         except OSError:
+            return
+      return
+
 class UserThread(threading.Thread):
    '''
    Thread to mimic user behavior
@@ -295,7 +331,11 @@ def main():
 
       user_thread = UserThread()
       user_thread.start()
-     
+
+      # replies and pushed updates must not interleave
+      send_lock = threading.Lock()
+      push_thread = None
+
       try:
          while True:
             data = connection.recv(1024).decode('ascii')
@@ -303,14 +343,23 @@ def main():
             if data:
                if data[:2] == "GS":
                   su = "SU:{}.\n".format(house.get_state())
-                  connection.sendall(su.encode())
+                  with send_lock: connection.sendall(su.encode())
 
                elif data[:2] == "SS":
                   house.set_state(data)
-                  connection.sendall("OK.\n".encode())
+                  with send_lock: connection.sendall("OK.\n".encode())
+
+               elif data[:2] == "PU":
+                  # push mode: send the state whenever it changes
+                  if push_thread is None:
+                     push_thread = PushThread(connection, send_lock)
+                     push_thread.start()
+                  with send_lock: connection.sendall("OK.\n".encode())
 
                else:
+                  # every request gets an answer, or the platform waits for one in vain
                   print ("Error, unknown request: {}".format(data))
+                  with send_lock: connection.sendall("ER.\n".encode())
 
             else: break
 
@@ -321,6 +370,7 @@ def main():
          traceback.print_exc()
       finally:
          print("closing!")
+         if push_thread is not None: push_thread.stop()
          connection.close()
          user_thread.stop()
    return
@@ -0,0 +1,155 @@
+package tartan.smarthome.resources;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import tartan.smarthome.resources.iotcontroller.EvaluationLog;
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.HouseStateBatch;
+import tartan.smarthome.resources.iotcontroller.HouseStateField;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+import tartan.smarthome.resources.iotcontroller.StateUpdateParser;
+import tartan.smarthome.resources.rules.RuleTrace;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the compiled rules of the static evaluator, with and without remembered outcomes, with the rules
+ * written out in code, on a polled state with the user settings added. The recorded variants keep the
+ * messages in an event log instead of writing them out, or drop them. The incremental variant changes the
+ * temperature between evaluations and reruns only the rules that read it. The batch evaluates a fleet of such
+ * states at once and is reported per house. The corpus variant evaluates the recorded states of
+ * house-states.txt in turn, so that the rules take many paths. Run with ./gradlew jmh.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StaticTartanStateEvaluatorBenchmark {
+
+    private static final int FLEET_SIZE = 1024;
+
+    private final StaticTartanStateEvaluator evaluator = new StaticTartanStateEvaluator();
+    private final StaticTartanStateEvaluator memoized = new StaticTartanStateEvaluator(1024);
+    private final HouseState polled = new HouseState();
+    private final HouseState state = new HouseState();
+    private final HouseState[] fleet = new HouseState[FLEET_SIZE];
+    private final HouseStateBatch batch = new HouseStateBatch(FLEET_SIZE);
+    private final StringBuffer[] logs = new StringBuffer[FLEET_SIZE];
+    private final EvaluationLog eventLog = new EvaluationLog(1000);
+    private final EvaluationLog noLog = new EvaluationLog(0);
+    private final RuleTrace trace = new RuleTrace();
+    private StateCorpus corpus;
+    private int tick = 0;
+    private int next = 0;
+    private PrintStream stdout;
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = StateCorpus.read(Path.of("house-states.txt"));
+        new StateUpdateParser().parse("SU:AS=0;AA=0;DS=1;LS=1;PS=1;APS=0;HUS=0;HES=1;CHS=0;HM=1;TR=68;HR=42;"
+                + "LKS=0;EOE=1;KLE=0;NLE=1;LIS=0;IDS=0;PM=0.", polled);
+        Map<String, Object> settings = new Hashtable<>();
+        settings.put(IoTValues.TARGET_TEMP, 70);
+        settings.put(IoTValues.ALARM_PASSCODE, "1234");
+        settings.put(IoTValues.LOCK_PASSCODE, "1234");
+        settings.put(IoTValues.ALARM_DELAY, 5);
+        settings.put(IoTValues.NIGHT_START_TIME, 2230);
+        settings.put(IoTValues.NIGHT_END_TIME, 600);
+        settings.put(IoTValues.CURRENT_TIME, 1200);
+        settings.put(IoTValues.LOCK_REQUEST, "");
+        settings.put(IoTValues.AWAY_TIMER, false);
+        polled.putAll(settings);
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            fleet[i] = polled.copy();
+            fleet[i].setInt(HouseStateField.TEMP_READING, 64 + i % 12);
+            batch.add(fleet[i]);
+        }
+
+        // the evaluations announce themselves on standard out, which is not what is measured
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public long interpreted() {
+        StringBuffer log = new StringBuffer();
+        state.copyFrom(polled);
+        evaluator.interpretState(state, log);
+        return state.getFlagMask() + log.length();
+    }
+
+    @Benchmark
+    public long compiled() {
+        StringBuffer log = new StringBuffer();
+        state.copyFrom(polled);
+        evaluator.evaluateState(state, log);
+        return state.getFlagMask() + log.length();
+    }
+
+    @Benchmark
+    public long memoized() {
+        StringBuffer log = new StringBuffer();
+        state.copyFrom(polled);
+        memoized.evaluateState(state, log);
+        return state.getFlagMask() + log.length();
+    }
+
+    @Benchmark
+    public long recorded() {
+        state.copyFrom(polled);
+        evaluator.evaluateState(state, eventLog);
+        return state.getFlagMask();
+    }
+
+    @Benchmark
+    public long unlogged() {
+        state.copyFrom(polled);
+        evaluator.evaluateState(state, noLog);
+        return state.getFlagMask();
+    }
+
+    @Benchmark
+    public long incremental() {
+        state.copyFrom(polled);
+        state.setInt(HouseStateField.TEMP_READING, 68 + (tick++ & 3));
+        evaluator.evaluateState(state, eventLog, trace);
+        return state.getFlagMask();
+    }
+
+    @Benchmark
+    public long corpus() {
+        corpus.getInput(next, state);
+        next = (next + 1) % corpus.size();
+        evaluator.evaluateState(state, eventLog);
+        return state.getFlagMask();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FLEET_SIZE)
+    public long batch() {
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            batch.set(i, fleet[i]);
+            logs[i] = new StringBuffer();
+        }
+        evaluator.evaluateStates(batch, logs);
+        return batch.getFlagMasks()[FLEET_SIZE - 1] + logs[FLEET_SIZE - 1].length();
+    }
+}
@@ -0,0 +1,84 @@
+package tartan.smarthome.resources;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.core.TartanHome;
+import tartan.smarthome.resources.iotcontroller.HousePollingScheduler;
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.StateUpdateParser;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conversions of the house service: the polled house state to the home model the web interface
+ * gets, as {@link TartanHomeService#getState()} returns it, and a home model sent by the web interface to
+ * the state the house is set to, as in {@link TartanHomeService#setState(TartanHome)}. The house is not
+ * contacted. Run with ./gradlew jmh.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TartanHomeServiceBenchmark {
+
+    private final HousePollingScheduler scheduler = new HousePollingScheduler(1);
+    private final TartanHomeService service = new TartanHomeService(null, scheduler);
+    private final HouseState polled = new HouseState();
+    private TartanHome home;
+    private ch.qos.logback.classic.Level logLevel;
+
+    @Setup
+    public void setUp() {
+        // every conversion logs the state, which is not what is measured
+        ch.qos.logback.classic.Logger logger = serviceLogger();
+        logLevel = logger.getLevel();
+        logger.setLevel(ch.qos.logback.classic.Level.WARN);
+
+        TartanHomeSettings settings = new TartanHomeSettings();
+        settings.setName("bench");
+        settings.setAddress("localhost");
+        settings.setPort(5050);
+        settings.setUser("admin");
+        settings.setPassword("1234");
+        settings.setTargetTemp("70");
+        settings.setAlarmDelay("30");
+        settings.setNightStartTime("2200");
+        settings.setNightEndTime("600");
+        settings.setAlarmPasscode("stop");
+        settings.setLockPasscode("passcode");
+        service.initializeSettings(settings, 5);
+
+        new StateUpdateParser().parse("SU:AS=0;AA=0;DS=1;LS=1;PS=1;APS=0;HUS=0;HES=1;CHS=0;HM=1;TR=68;HR=42;"
+                + "LKS=0;EOE=1;KLE=0;NLE=1;LIS=0;IDS=0;PM=0.", polled);
+        home = service.toTartanHome(polled);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.shutdown();
+        serviceLogger().setLevel(logLevel);
+    }
+
+    private static ch.qos.logback.classic.Logger serviceLogger() {
+        return (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(TartanHomeService.class);
+    }
+
+    @Benchmark
+    public TartanHome toTartanHome() {
+        return service.toTartanHome(polled);
+    }
+
+    @Benchmark
+    public Map<String, Object> toIotState() {
+        return service.toIotState(home);
+    }
+}
@@ -0,0 +1,50 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the connection manager takes in a state update from the house: parsing it, noting what the
+ * house acknowledged and copying out the new state. The set state message the manager sends back is measured
+ * by {@link SetStateEncoderBenchmark}. Run with ./gradlew jmh.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IoTConnectManagerBenchmark {
+
+    private static final String STATE_UPDATE = "SU:AS=0;AA=0;DS=1;LS=1;PS=1;APS=0;HUS=0;HES=1;CHS=0;HM=1;TR=68;"
+            + "HR=42;LKS=0;EOE=1;KLE=0;NLE=1;LIS=0;IDS=0;PM=0.";
+
+    // no connection is needed to handle a message that already arrived
+    private final IoTConnectManager manager = new IoTConnectManager(null);
+    private PrintStream stdout;
+
+    @Setup
+    public void setUp() {
+        // each update is announced on standard out, which is not what is measured
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public long stateUpdate() {
+        return manager.handleStateUpdate(STATE_UPDATE).getFlagMask();
+    }
+}
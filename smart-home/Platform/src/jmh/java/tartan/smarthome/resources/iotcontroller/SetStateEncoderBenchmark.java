@@ -0,0 +1,99 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the table driven set state encoder with the string building encoder it replaced. Run with
+ * ./gradlew jmh and add -prof gc to the JMH arguments to see the allocation rate of each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SetStateEncoderBenchmark {
+
+    /** The keys of the old if/else chain, in the order they were tested */
+    private static final String[] LEGACY_KEYS = {
+            IoTValues.DOOR_STATE, IoTValues.LOCK_STATE, IoTValues.ARRIVING_PROXIMITY_STATE,
+            IoTValues.LOCK_KEYLESS_ENTRY_ENABLE, IoTValues.LOCK_NIGHT_LOCK_ENABLED,
+            IoTValues.LOCK_ELECTRONIC_OPERATION_ENABLE, IoTValues.LOCK_INTRUDER_SENSOR_MODE,
+            IoTValues.INTRUDER_DETECTION_SENSOR, IoTValues.PANEL_MESSAGE, IoTValues.LIGHT_STATE,
+            IoTValues.LIGHT_STATE, IoTValues.ALARM_STATE, IoTValues.ALARM_ACTIVE, IoTValues.HUMIDIFIER_STATE,
+            IoTValues.CHILLER_STATE, IoTValues.HEATER_STATE };
+
+    private Map<String, Object> evaluatedState;
+    private HouseState houseState;
+    private ByteBuffer writeBuffer;
+
+    @Setup
+    public void setUp() {
+        // a complete evaluator result, including the settings the house does not accept
+        evaluatedState = new Hashtable<>();
+        StateUpdateParser parser = new StateUpdateParser();
+        HouseState reported = new HouseState();
+        parser.parse("SU:AS=0;AA=0;DS=1;LS=1;PS=1;APS=0;HUS=0;HES=1;CHS=0;HM=1;TR=68;HR=42;"
+                + "LKS=1;EOE=1;KLE=0;NLE=0;LIS=0;IDS=0;PM=0.", reported);
+        evaluatedState.putAll(reported.toMap());
+        evaluatedState.put(IoTValues.TARGET_TEMP, 70);
+        evaluatedState.put(IoTValues.AWAY_TIMER, false);
+        evaluatedState.put(IoTValues.ALARM_PASSCODE, "1234");
+        evaluatedState.put(IoTValues.LOCK_PASSCODE, "1234");
+
+        houseState = new HouseState();
+        houseState.putAll(evaluatedState);
+        writeBuffer = ByteBuffer.allocateDirect(IoTConnection.MAX_MESSAGE_SIZE);
+    }
+
+    @Benchmark
+    public byte[] legacyStringBuffer() {
+        StringBuffer newState = new StringBuffer();
+        Set<String> keys = evaluatedState.keySet();
+        int count = 0;
+        for (String key : keys) {
+            for (String legacyKey : LEGACY_KEYS) {
+                if (key.equals(legacyKey)) {
+                    Boolean value = (Boolean) evaluatedState.get(key);
+                    newState.append(legacyKey);
+                    newState.append(IoTValues.PARAM_EQ);
+                    newState.append(value ? "1" : "0");
+                    count++;
+                    if (count < keys.size()) {
+                        newState.append(IoTValues.PARAM_DELIM);
+                    }
+                    break;
+                }
+            }
+        }
+        StringBuffer msg
+                = new StringBuffer(IoTValues.SET_STATE + IoTValues.MSG_DELIM + newState.toString() + IoTValues.MSG_END);
+        return msg.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public int tableEncoder() {
+        writeBuffer.clear();
+        SetStateEncoder.encode(houseState, writeBuffer);
+        return writeBuffer.position();
+    }
+
+    @Benchmark
+    public int tableEncoderFromMap() {
+        HouseState state = new HouseState();
+        state.putAll(evaluatedState);
+        writeBuffer.clear();
+        SetStateEncoder.encode(state, writeBuffer);
+        return writeBuffer.position();
+    }
+}
@@ -1,17 +1,22 @@
 package tartan.smarthome;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.core.Application;
 
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
-import java.util.HashMap;
-import java.util.List;
-import org.hibernate.Session;
-import java.io.File;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 
 import io.dropwizard.auth.AuthDynamicFeature;
@@ -19,14 +24,32 @@ import io.dropwizard.auth.AuthValueFactoryProvider;
 import io.dropwizard.auth.basic.BasicCredentialAuthFilter;
 import io.dropwizard.db.DataSourceFactory;
 import io.dropwizard.hibernate.HibernateBundle;
+import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.core.setup.Bootstrap;
 import io.dropwizard.core.setup.Environment;
 import io.dropwizard.views.common.ViewBundle;
 import tartan.smarthome.auth.TartanAuthenticator;
 import tartan.smarthome.auth.TartanUser;
+import tartan.smarthome.core.TartanHistoryData;
 import tartan.smarthome.core.TartanHomeData;
+import tartan.smarthome.core.TartanHomeValues;
+import tartan.smarthome.core.TartanHouseData;
+import tartan.smarthome.core.TartanRollupData;
+import tartan.smarthome.db.HistoryChangeFilter;
+import tartan.smarthome.db.HistoryRollup;
+import tartan.smarthome.db.HistoryWriter;
 import tartan.smarthome.db.HomeDAO;
+import tartan.smarthome.metrics.VirtualThreadPinningMonitor;
+import tartan.smarthome.resources.EvaluatorRegistry;
+import tartan.smarthome.resources.FleetCommandService;
+import tartan.smarthome.resources.StaticTartanStateEvaluator;
 import tartan.smarthome.resources.TartanResource;
+import tartan.smarthome.resources.iotcontroller.HashedWheelTimer;
+import tartan.smarthome.resources.iotcontroller.HousePollingScheduler;
+import tartan.smarthome.resources.iotcontroller.IoTConnection;
+import tartan.smarthome.resources.iotcontroller.IoTTransport;
+import tartan.smarthome.tasks.FleetCommandTask;
+import tartan.smarthome.tasks.ReloadRulesTask;
 
 /**
  * This is the driver for the program.
@@ -35,7 +58,8 @@ import tartan.smarthome.resources.TartanResource;
 public class TartanHomeApplication extends Application<TartanHomeConfiguration> {
 
     private final HibernateBundle<TartanHomeConfiguration> hibernateBundle =
-            new HibernateBundle<TartanHomeConfiguration>(TartanHomeData.class) {
+            new HibernateBundle<TartanHomeConfiguration>(TartanHomeData.class, TartanHouseData.class,
+                    TartanHistoryData.class, TartanRollupData.class) {
                 @Override
                 public DataSourceFactory getDataSourceFactory(TartanHomeConfiguration configuration) {
                     return configuration.getDataSourceFactory();
@@ -75,19 +99,92 @@ public class TartanHomeApplication extends Application<TartanHomeConfiguration>
      * Run the system.
      * @param configuration system settings
      * @param environment system environment
+     * @throws IOException if the evaluator rules cannot be read
      */
     @Override
     public void run(final TartanHomeConfiguration configuration,
-                    final Environment environment) {
+                    final Environment environment) throws IOException {
         HomeDAO dao = new HomeDAO(hibernateBundle.getSessionFactory());
+        dao.initializeIds();
+        dao.setHistorySchema(configuration.getHistorySchema());
+        if (configuration.isHistoryRollups()) {
+            // minute, hour and day totals of each house, updated with every write
+            dao.setHistoryRollup(new HistoryRollup());
+        }
+        if (configuration.getHistoryBatchSize() > 0) {
+            // the historians of all houses queue their snapshots for one writer
+            HistoryWriter historyWriter = new HistoryWriter(dao, configuration.getHistoryQueueSize(),
+                    configuration.getHistoryBatchSize(), environment.metrics());
+            environment.lifecycle().manage(historyWriter);
+            dao.setHistoryWriter(historyWriter);
+        }
+        if (configuration.isHistoryChangesOnly()) {
+            // only snapshots that differ from the last one saved, plus one per heartbeat
+            HistoryChangeFilter historyFilter = new HistoryChangeFilter(
+                    TimeUnit.MINUTES.toMillis(configuration.getHistoryHeartbeat()));
+            environment.metrics().register(MetricRegistry.name(HistoryChangeFilter.class, "skipped"),
+                    (Gauge<Long>) historyFilter::getSkippedCount);
+            dao.setHistoryFilter(historyFilter);
+        }
 
         TartanAuthenticator auth = new TartanAuthenticator();
         auth.setValidUsers(configuration);
 
+        // all houses are polled on one bounded pool that is stopped with the application
+        final HousePollingScheduler pollingScheduler = new HousePollingScheduler(configuration.getPollingThreads(),
+                configuration.isVirtualThreads(),
+                TimeUnit.SECONDS.toMillis(configuration.getMinPollInterval()),
+                TimeUnit.SECONDS.toMillis(configuration.getMaxPollInterval()));
+        environment.lifecycle().manage(new Managed() {
+            @Override
+            public void start() {
+            }
+
+            @Override
+            public void stop() throws Exception {
+                HashedWheelTimer.getSharedTimer().shutdown();
+                pollingScheduler.shutdown();
+                pollingScheduler.awaitTermination(IoTConnection.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                // the house connections are closed with their selector threads
+                IoTTransport.getSharedTransport().shutdown();
+            }
+        });
+
+        // the away timers of all houses share one timer
+        environment.metrics().register(MetricRegistry.name(HashedWheelTimer.class, "away-timers-pending"),
+                (Gauge<Long>) HashedWheelTimer.getSharedTimer()::getPendingCount);
+
+        if (configuration.isVirtualThreads()) {
+            // report when virtual threads block while pinned to their carrier thread
+            environment.lifecycle().manage(new VirtualThreadPinningMonitor(environment.metrics()));
+        }
+
+        // all houses share one evaluator, so that they share its remembered outcomes, and its rules can be
+        // replaced while they run
+        final int cacheSize = configuration.getEvaluatorCacheSize();
+        final EvaluatorRegistry evaluator = new EvaluatorRegistry(new StaticTartanStateEvaluator(cacheSize));
+        if (configuration.getEvaluatorRules() != null) {
+            evaluator.load(Paths.get(configuration.getEvaluatorRules()),
+                    configuration.getEvaluatorCorpus() != null ? Paths.get(configuration.getEvaluatorCorpus()) : null,
+                    cacheSize);
+        }
+        environment.admin().addTask(new ReloadRulesTask(evaluator, configuration.getEvaluatorRules(),
+                configuration.getEvaluatorCorpus(), cacheSize));
+        if (cacheSize > 0) {
+            environment.metrics().register(MetricRegistry.name(StaticTartanStateEvaluator.class, "memo-hits"),
+                    (Gauge<Long>) () -> ((StaticTartanStateEvaluator) evaluator.get()).getMemo().getHitCount());
+            environment.metrics().register(MetricRegistry.name(StaticTartanStateEvaluator.class, "memo-misses"),
+                    (Gauge<Long>) () -> ((StaticTartanStateEvaluator) evaluator.get()).getMemo().getMissCount());
+        }
+
         final TartanResource resource = new TartanResource(configuration.getHouses(),
-                dao, Integer.parseInt(configuration.getHistoryTimer()));
+                dao, Integer.parseInt(configuration.getHistoryTimer()), pollingScheduler, evaluator);
 
         environment.jersey().register(resource);
+
+        // commands for many houses at once are sent on the admin port, as no user has more than one house
+        environment.admin().addTask(new FleetCommandTask(new FleetCommandService(resource.getAllServices()),
+                environment.getObjectMapper()));
         environment.jersey().register(new AuthDynamicFeature(new BasicCredentialAuthFilter.Builder<TartanUser>()
                 .setAuthenticator(auth)
                 .buildAuthFilter()));
@@ -115,64 +212,25 @@ public class TartanHomeApplication extends Application<TartanHomeConfiguration>
     private void generateReport(HomeDAO dao) {
         System.out.println("Running report job...");
 
-        try (Session session = dao.getSessionFactory().openSession()) {
-            session.beginTransaction();
-            
-            // 1) Query all records from DB
-            List<TartanHomeData> dataList = session.createQuery("FROM TartanHomeData", TartanHomeData.class).list();
-            session.getTransaction().commit();
-            
-            if (dataList == null || dataList.isEmpty()) {
+        try {
+            // With rollups, the light usage is that of the past week rather than since the house was last
+            // connected, and comes from the day totals instead of the records
+            Map<String, Long> lightOnMillis = null;
+            if (dao.hasHistoryRollup()) {
+                Date since = Date.from(LocalDate.now(ZoneOffset.UTC).minusDays(7).atStartOfDay(ZoneOffset.UTC)
+                        .toInstant());
+                lightOnMillis = dao.findLightOnMillis(since);
+            }
+            final Map<String, Long> lightOn = lightOnMillis;
+
+            // Generate a report for each house from its latest record, based on the AB testing format. The
+            // database picks the latest records, so the history is never read into memory
+            int reported = dao.forEachLatestState(record -> reportHouse(record, lightOn));
+            if (reported == 0) {
                 System.out.println("No data found, skipping report generation.");
                 return;
             }
-            
-            // 2) Filter: for each house, keep only the latest record (based on createTimeStamp)
-            Map<String, TartanHomeData> latestRecords = new HashMap<>();
-            for (TartanHomeData record : dataList) {
-                String houseName = record.getHomeName();
-                if (houseName == null) continue;
-                if (!latestRecords.containsKey(houseName) ||
-                    record.getCreateTimeStamp().after(latestRecords.get(houseName).getCreateTimeStamp())) {
-                    latestRecords.put(houseName, record);
-                }
-            }
-            
-            // 3) Generate a report for each house based on the AB testing format.
-            for (TartanHomeData record : latestRecords.values()) {
-                String houseName = record.getHomeName();
-                String fileName = "report-" + LocalDate.now() + "-" + houseName + ".csv";
-                String groupExperiment = record.getGroupExperiment();
-                // minutesLightsOn stored as a long (millis)
-                long minutesLightsOn = record.getMinutesLightsOn() != null ? record.getMinutesLightsOn() : 0L;
-                File outputFile = new File("/tmp", fileName);
-                
-                if ("1".equals(groupExperiment)) {
-                    // For group 1, display usage as minutes and seconds.
-                    long minutes = (minutesLightsOn / (60 * 1000));
-                    long seconds = (minutesLightsOn / 1000) % 60;
-                    try (FileWriter fw = new FileWriter(outputFile)) {
-                        fw.write("House Name, Light Usage Minute, Light Usage Second\n");
-                        fw.write(houseName + "," + minutes + " minutes, " + seconds + " seconds\n");
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        System.err.println("Failed to write daily report: " + e.getMessage());
-                    }
-                } else if ("2".equals(groupExperiment)) {
-                    // For group 2, display estimated cost.
-                    long minutes = (minutesLightsOn / (60 * 1000));
-                    long seconds = (minutesLightsOn / 1000) % 60;
-                    double cost = (minutesLightsOn / (60.0 * 1000.0)) * 0.05;
-                    try (FileWriter fw = new FileWriter(outputFile)) {
-                        fw.write("House Name, Light Usage Minute, Light Usage Second, Estimated Cost\n");
-                        fw.write(houseName + "," + minutes + " minutes, " + seconds + " seconds, $" + cost + "\n");
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        System.err.println("Failed to write daily report: " + e.getMessage());
-                    }
-                }
-            }
-            
+
             System.out.println("Daily report generated!");
         } catch (Exception e) {
             e.printStackTrace();
@@ -180,6 +238,57 @@ public class TartanHomeApplication extends Application<TartanHomeConfiguration>
         }
     }
 
+    private void reportHouse(TartanHomeData record, Map<String, Long> lightOnMillis) {
+        String houseName = record.getHomeName();
+        if (houseName == null) {
+            return;
+        }
+        String fileName = "report-" + LocalDate.now() + "-" + houseName + ".csv";
+        String groupExperiment = record.getGroupExperiment();
+        // minutesLightsOn stored as a long (millis)
+        long minutesLightsOn = record.getMinutesLightsOn() != null ? record.getMinutesLightsOn() : 0L;
+        if (lightOnMillis != null) {
+            minutesLightsOn = lightOnMillis.getOrDefault(houseName, 0L);
+        } else if (TartanHomeValues.ON.equals(record.getLight()) && record.getCreateTimeStamp() != null) {
+            // when only changes are saved the lights may have stayed on since the record was made
+            minutesLightsOn += Math.max(0L, System.currentTimeMillis() - record.getCreateTimeStamp().getTime());
+        }
+        Path outputFile = Paths.get("/tmp", fileName);
+
+        try {
+            if ("1".equals(groupExperiment)) {
+                // For group 1, display usage as minutes and seconds.
+                long minutes = (minutesLightsOn / (60 * 1000));
+                long seconds = (minutesLightsOn / 1000) % 60;
+                writeReport(outputFile, "House Name, Light Usage Minute, Light Usage Second\n"
+                        + houseName + "," + minutes + " minutes, " + seconds + " seconds\n");
+            } else if ("2".equals(groupExperiment)) {
+                // For group 2, display estimated cost.
+                long minutes = (minutesLightsOn / (60 * 1000));
+                long seconds = (minutesLightsOn / 1000) % 60;
+                double cost = (minutesLightsOn / (60.0 * 1000.0)) * 0.05;
+                writeReport(outputFile, "House Name, Light Usage Minute, Light Usage Second, Estimated Cost\n"
+                        + houseName + "," + minutes + " minutes, " + seconds + " seconds, $" + cost + "\n");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Failed to write daily report: " + e.getMessage());
+        }
+    }
 
-    
+    /**
+     * Write a report in one buffer through a file channel, replacing the file if it exists
+     * @param file the file
+     * @param text the report
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeReport(Path file, String text) throws IOException {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(text);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
 }
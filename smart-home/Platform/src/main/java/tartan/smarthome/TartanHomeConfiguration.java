@@ -3,8 +3,13 @@ package tartan.smarthome;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import io.dropwizard.core.Configuration;
 import io.dropwizard.db.DataSourceFactory;
+import tartan.smarthome.db.HistoryWriter;
+import tartan.smarthome.db.HomeDAO;
+import tartan.smarthome.resources.iotcontroller.HousePollingScheduler;
 import org.hibernate.validator.constraints.NotEmpty;
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotNull;
 import java.util.List;
 
@@ -23,6 +28,54 @@ public class TartanHomeConfiguration extends Configuration {
     @JsonProperty
     private String historyTimer;
 
+    @Min(1)
+    @JsonProperty
+    private int pollingThreads = HousePollingScheduler.DEFAULT_THREADS;
+
+    @JsonProperty
+    private boolean virtualThreads = false;
+
+    @Min(1)
+    @JsonProperty
+    private int minPollInterval = 1;
+
+    @Min(1)
+    @JsonProperty
+    private int maxPollInterval = 60;
+
+    @Min(0)
+    @JsonProperty
+    private int evaluatorCacheSize = 0;
+
+    @Min(1)
+    @JsonProperty
+    private int historyQueueSize = HistoryWriter.DEFAULT_QUEUE_SIZE;
+
+    @Min(0)
+    @JsonProperty
+    private int historyBatchSize = HistoryWriter.DEFAULT_BATCH_SIZE;
+
+    @JsonProperty
+    private boolean historyChangesOnly = false;
+
+    @Min(0)
+    @JsonProperty
+    private int historyHeartbeat = 15;
+
+    @JsonProperty
+    private boolean historyRollups = false;
+
+    @Min(HomeDAO.HISTORY_SCHEMA_TEXT)
+    @Max(HomeDAO.HISTORY_SCHEMA_COMPACT)
+    @JsonProperty
+    private int historySchema = HomeDAO.HISTORY_SCHEMA_TEXT;
+
+    @JsonProperty
+    private String evaluatorRules;
+
+    @JsonProperty
+    private String evaluatorCorpus;
+
     @Valid
     @NotNull
     private DataSourceFactory database = new DataSourceFactory();
@@ -51,4 +104,69 @@ public class TartanHomeConfiguration extends Configuration {
     public String getHistoryTimer() {
         return historyTimer;
     }
+
+    @JsonProperty
+    public int getPollingThreads() {
+        return pollingThreads;
+    }
+
+    @JsonProperty
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    @JsonProperty
+    public int getMinPollInterval() {
+        return minPollInterval;
+    }
+
+    @JsonProperty
+    public int getMaxPollInterval() {
+        return maxPollInterval;
+    }
+
+    @JsonProperty
+    public int getEvaluatorCacheSize() {
+        return evaluatorCacheSize;
+    }
+
+    @JsonProperty
+    public int getHistoryQueueSize() {
+        return historyQueueSize;
+    }
+
+    @JsonProperty
+    public int getHistoryBatchSize() {
+        return historyBatchSize;
+    }
+
+    @JsonProperty
+    public boolean isHistoryChangesOnly() {
+        return historyChangesOnly;
+    }
+
+    @JsonProperty
+    public int getHistoryHeartbeat() {
+        return historyHeartbeat;
+    }
+
+    @JsonProperty
+    public boolean isHistoryRollups() {
+        return historyRollups;
+    }
+
+    @JsonProperty
+    public int getHistorySchema() {
+        return historySchema;
+    }
+
+    @JsonProperty
+    public String getEvaluatorRules() {
+        return evaluatorRules;
+    }
+
+    @JsonProperty
+    public String getEvaluatorCorpus() {
+        return evaluatorCorpus;
+    }
 }
@@ -4,6 +4,9 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 import org.checkerframework.checker.units.qual.N;
 import org.hibernate.validator.constraints.NotEmpty;
+import tartan.smarthome.resources.iotcontroller.IoTControlManager;
+
+import jakarta.validation.constraints.Min;
 
 /**
  * This is Jackson-compatible a configuration class for the initial configuration setting in the primiary
@@ -59,6 +62,29 @@ public class TartanHomeSettings {
     @JsonProperty
     private String groupExperiment;
 
+    @JsonProperty
+    private Boolean pushUpdates = false;
+
+    public Boolean getPushUpdates() {
+        return pushUpdates;
+    }
+
+    public void setPushUpdates(Boolean pushUpdates) {
+        this.pushUpdates = pushUpdates;
+    }
+
+    @Min(0)
+    @JsonProperty
+    private Integer eventLogSize = IoTControlManager.DEFAULT_EVENT_LOG_SIZE;
+
+    public Integer getEventLogSize() {
+        return eventLogSize;
+    }
+
+    public void setEventLogSize(Integer eventLogSize) {
+        this.eventLogSize = eventLogSize;
+    }
+
     public String getGroupExperiment() { 
         return groupExperiment; 
     }
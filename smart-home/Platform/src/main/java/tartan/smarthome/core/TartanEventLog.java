@@ -0,0 +1,73 @@
+package tartan.smarthome.core;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The part of a house event log a client has not seen yet, to be serialized as JSON. This is managed by Jackson
+ * via Dropwizard.
+ */
+public class TartanEventLog {
+
+    // The name of the home
+    @JsonProperty
+    private String name;
+
+    // The new log entries, oldest first
+    @JsonProperty
+    private List<String> entries;
+
+    // The cursor to pass to get the entries after these
+    @JsonProperty
+    private long next;
+
+    // The entries after the given cursor that were overwritten before they could be read
+    @JsonProperty
+    private long missed;
+
+    // The entries overwritten since the house was connected
+    @JsonProperty
+    private long overwritten;
+
+    public TartanEventLog() {
+    }
+
+    public TartanEventLog(String name, List<String> entries, long next, long missed, long overwritten) {
+        this.name = name;
+        this.entries = entries;
+        this.next = next;
+        this.missed = missed;
+        this.overwritten = overwritten;
+    }
+
+    /**
+     * Get the name of the house
+     * @return the name
+     */
+    public String getName() { return name; }
+
+    /**
+     * Get the new log entries
+     * @return the entries, oldest first
+     */
+    public List<String> getEntries() { return entries; }
+
+    /**
+     * Get the cursor for the next read
+     * @return the cursor
+     */
+    public long getNext() { return next; }
+
+    /**
+     * Get the number of entries missed since the cursor that was read from
+     * @return the number of entries
+     */
+    public long getMissed() { return missed; }
+
+    /**
+     * Get the number of entries overwritten since the house was connected
+     * @return the number of entries
+     */
+    public long getOverwritten() { return overwritten; }
+}
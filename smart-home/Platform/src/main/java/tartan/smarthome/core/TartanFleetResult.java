@@ -0,0 +1,111 @@
+package tartan.smarthome.core;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * What came of a command sent to many houses at once, to be serialized as JSON. This is managed by Jackson
+ * via Dropwizard.
+ */
+public class TartanFleetResult {
+
+    /**
+     * What came of the command in one house
+     */
+    public static class House {
+
+        // The name of the home
+        @JsonProperty
+        private String name;
+
+        // True if the house took the new state
+        @JsonProperty
+        private boolean accepted;
+
+        // How long the house took, from sending the command to its answer
+        @JsonProperty
+        private long latencyMillis;
+
+        // Why the command failed, or null
+        @JsonProperty
+        private String error;
+
+        public House() {
+        }
+
+        public House(String name, boolean accepted, long latencyMillis, String error) {
+            this.name = name;
+            this.accepted = accepted;
+            this.latencyMillis = latencyMillis;
+            this.error = error;
+        }
+
+        /**
+         * Get the name of the house
+         * @return the name
+         */
+        public String getName() { return name; }
+
+        /**
+         * Check if the house took the new state
+         * @return true if it did
+         */
+        public boolean isAccepted() { return accepted; }
+
+        /**
+         * Get how long the house took to answer
+         * @return the time in milliseconds
+         */
+        public long getLatencyMillis() { return latencyMillis; }
+
+        /**
+         * Get why the command failed
+         * @return the error, or null if the house answered
+         */
+        public String getError() { return error; }
+    }
+
+    // The outcome in each house the command was sent to
+    @JsonProperty
+    private List<House> houses;
+
+    // The number of houses that took the new state
+    @JsonProperty
+    private int accepted;
+
+    // How long the whole command took
+    @JsonProperty
+    private long elapsedMillis;
+
+    public TartanFleetResult() {
+    }
+
+    public TartanFleetResult(List<House> houses, long elapsedMillis) {
+        this.houses = houses;
+        this.elapsedMillis = elapsedMillis;
+        for (House house : houses) {
+            if (house.isAccepted()) {
+                accepted++;
+            }
+        }
+    }
+
+    /**
+     * Get the outcome in each house
+     * @return the outcomes, in the order of the houses in the configuration
+     */
+    public List<House> getHouses() { return houses; }
+
+    /**
+     * Get the number of houses that took the new state
+     * @return the number of houses
+     */
+    public int getAccepted() { return accepted; }
+
+    /**
+     * Get how long the whole command took, which is about the time of the slowest house
+     * @return the time in milliseconds
+     */
+    public long getElapsedMillis() { return elapsedMillis; }
+}
@@ -0,0 +1,306 @@
+package tartan.smarthome.core;
+
+import java.util.Date;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.Table;
+import jakarta.persistence.TableGenerator;
+import jakarta.persistence.Temporal;
+import jakarta.persistence.TemporalType;
+
+/**
+ * Represents a database table of the history of the houses in a compact form, which is version 2 of the
+ * history schema. It holds the same state as {@link TartanHomeData}, but the house is a key into the table of
+ * houses, the on/off states are bits of one number and the readings and settings are small numbers rather
+ * than text. A record is a few dozen bytes instead of a few hundred, and the history of one house is read
+ * through the index on the house and time.
+ *
+ * The low 16 bits of the flags hold the states, and the high 16 bits whether each state was known. A state
+ * that the house did not report and one it reported as unknown are both stored as not known, as are readings
+ * that are not numbers.
+ */
+@Entity
+@Table(name = "home_history", indexes = @Index(name = "home_history_home_time", columnList = "home_id, create_time"))
+public class TartanHistoryData {
+
+    /** The door is open */
+    public static final int DOOR_OPEN = 1;
+    /** The light is on */
+    public static final int LIGHT_ON = 1 << 1;
+    /** The humidifier is on */
+    public static final int HUMIDIFIER_ON = 1 << 2;
+    /** The house is occupied */
+    public static final int OCCUPIED = 1 << 3;
+    /** The door is locked */
+    public static final int DOOR_LOCKED = 1 << 4;
+    /** Someone is arriving */
+    public static final int ARRIVING = 1 << 5;
+    /** Keyless entry is enabled */
+    public static final int KEYLESS_ENTRY = 1 << 6;
+    /** Electronic operation of the lock is enabled */
+    public static final int ELECTRONIC_OPERATION = 1 << 7;
+    /** The night lock is enabled */
+    public static final int NIGHT_LOCK = 1 << 8;
+    /** The lock intruder sensor is on */
+    public static final int LOCK_INTRUDER_SENSOR = 1 << 9;
+    /** The intruder defense sensor is on */
+    public static final int INTRUDER_DEFENSE_SENSOR = 1 << 10;
+    /** The panel message is on */
+    public static final int PANEL_MESSAGE = 1 << 11;
+    /** The HVAC heats rather than cools */
+    public static final int HVAC_HEAT = 1 << 12;
+    /** The HVAC is running */
+    public static final int HVAC_ON = 1 << 13;
+    /** The alarm is sounding */
+    public static final int ALARM_ACTIVE = 1 << 14;
+    /** The alarm is armed */
+    public static final int ALARM_ARMED = 1 << 15;
+
+    /** The flags are shifted this far to tell whether they are known */
+    public static final int KNOWN_SHIFT = 16;
+
+    /** The number of keys taken from the key table at a time, so that inserts can be sent in batches */
+    public static final int ID_ALLOCATION_SIZE = 100;
+
+    /**
+     * How one text state of {@link TartanHomeData} is stored as a bit
+     */
+    private static final class Flag {
+        final int bit;
+        final String set;
+        final String clear;
+        final Function<TartanHomeData, String> get;
+        final BiConsumer<TartanHomeData, String> put;
+
+        Flag(int bit, String set, String clear, Function<TartanHomeData, String> get,
+             BiConsumer<TartanHomeData, String> put) {
+            this.bit = bit;
+            this.set = set;
+            this.clear = clear;
+            this.get = get;
+            this.put = put;
+        }
+    }
+
+    private static final Flag[] FLAGS = {
+            new Flag(DOOR_OPEN, TartanHomeValues.OPEN, TartanHomeValues.CLOSED,
+                    TartanHomeData::getDoor, TartanHomeData::setDoor),
+            new Flag(LIGHT_ON, TartanHomeValues.ON, TartanHomeValues.OFF,
+                    TartanHomeData::getLight, TartanHomeData::setLight),
+            new Flag(HUMIDIFIER_ON, TartanHomeValues.ON, TartanHomeValues.OFF,
+                    TartanHomeData::getHumidifier, TartanHomeData::setHumidifier),
+            new Flag(OCCUPIED, TartanHomeValues.OCCUPIED, TartanHomeValues.EMPTY,
+                    TartanHomeData::getProximity, TartanHomeData::setProximity),
+            new Flag(DOOR_LOCKED, TartanHomeValues.LOCK, TartanHomeValues.UNLOCK,
+                    TartanHomeData::getDoorLock, TartanHomeData::setDoorLock),
+            new Flag(ARRIVING, TartanHomeValues.ARRIVING, TartanHomeValues.NOT_ARRIVING,
+                    TartanHomeData::getArrivingProximity, TartanHomeData::setArrivingProximity),
+            new Flag(KEYLESS_ENTRY, TartanHomeValues.ON, TartanHomeValues.OFF,
+                    TartanHomeData::getKeyLessEntry, TartanHomeData::setKeyLessEntry),
+            new Flag(ELECTRONIC_OPERATION, TartanHomeValues.ON, TartanHomeValues.OFF,
+                    TartanHomeData::getElectronicOperation, TartanHomeData::setElectronicOperation),
+            new Flag(NIGHT_LOCK, TartanHomeValues.ON, TartanHomeValues.OFF,
+                    TartanHomeData::getNightLock, TartanHomeData::setNightLock),
+            new Flag(LOCK_INTRUDER_SENSOR, TartanHomeValues.ON, TartanHomeValues.OFF,
+                    TartanHomeData::getLockIntruderSensor, TartanHomeData::setLockIntruderSensor),
+            new Flag(INTRUDER_DEFENSE_SENSOR, TartanHomeValues.ON, TartanHomeValues.OFF,
+                    TartanHomeData::getIntruderDefenseSensor, TartanHomeData::setIntruderDefenseSensor),
+            new Flag(PANEL_MESSAGE, TartanHomeValues.ON, TartanHomeValues.OFF,
+                    TartanHomeData::getPanelMessage, TartanHomeData::setPanelMessage),
+            new Flag(HVAC_HEAT, TartanHomeValues.HEAT, TartanHomeValues.COOL,
+                    TartanHomeData::getHvacMode, TartanHomeData::setHvacMode),
+            new Flag(HVAC_ON, TartanHomeValues.ON, TartanHomeValues.OFF,
+                    TartanHomeData::getHvacState, TartanHomeData::setHvacState),
+            new Flag(ALARM_ACTIVE, TartanHomeValues.ACTIVE, TartanHomeValues.INACTIVE,
+                    TartanHomeData::getAlarmActive, TartanHomeData::setAlarmActive),
+            new Flag(ALARM_ARMED, TartanHomeValues.ARMED, TartanHomeValues.DISARMED,
+                    TartanHomeData::getAlarmArmed, TartanHomeData::setAlarmArmed),
+    };
+
+    // Primary key for the table. Not meant to be used
+    @Id
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "home_history_ids")
+    @TableGenerator(name = "home_history_ids", table = "home_history_ids", pkColumnName = "sequence_name",
+            valueColumnName = "next_val", pkColumnValue = "home_history", allocationSize = ID_ALLOCATION_SIZE)
+    private long id;
+
+    // the house
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "home_id", nullable = false)
+    private TartanHouseData home;
+
+    // the creation time
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "create_time", updatable = false)
+    private Date createTimeStamp;
+
+    // the on/off states, and whether each is known
+    @Column(name = "flags", nullable = false)
+    private int flags;
+
+    // the current temperature
+    @Column(name = "temperature")
+    private Short temperature;
+
+    // the current humidity
+    @Column(name = "humidity")
+    private Short humidity;
+
+    // The desired temperature
+    @Column(name = "target_temp")
+    private Short targetTemp;
+
+    // the night start time
+    @Column(name = "night_start_time")
+    private Short nightStartTime;
+
+    // the night end time
+    @Column(name = "night_end_time")
+    private Short nightEndTime;
+
+    // the alarm delay timeout
+    @Column(name = "alarm_delay")
+    private Short alarmDelay;
+
+    @Column(name = "minutes_lights_on")
+    private Long minutesLightsOn;
+
+    public TartanHistoryData() {}
+
+    /**
+     * Create a compact record of a snapshot
+     * @param data the snapshot
+     * @param home the house it was taken of
+     */
+    public TartanHistoryData(TartanHomeData data, TartanHouseData home) {
+        this.home = home;
+        this.createTimeStamp = data.getCreateTimeStamp();
+        for (Flag flag : FLAGS) {
+            String value = flag.get.apply(data);
+            if (flag.set.equals(value)) {
+                flags |= flag.bit | flag.bit << KNOWN_SHIFT;
+            } else if (flag.clear.equals(value)) {
+                flags |= flag.bit << KNOWN_SHIFT;
+            }
+        }
+        this.temperature = toShort(data.getTemperature());
+        this.humidity = toShort(data.getHumidity());
+        this.targetTemp = toShort(data.getTargetTemp());
+        this.nightStartTime = toShort(data.getNightStartTime());
+        this.nightEndTime = toShort(data.getNightEndTime());
+        this.alarmDelay = toShort(data.getAlarmDelay());
+        this.minutesLightsOn = data.getMinutesLightsOn();
+    }
+
+    /**
+     * Turn the record back into a snapshot, with the states that were not known left null
+     * @return the snapshot
+     */
+    public TartanHomeData toHomeData() {
+        TartanHomeData data = new TartanHomeData();
+        data.setId(id);
+        data.setCreateTimeStamp(createTimeStamp);
+        data.setHomeName(home.getName());
+        data.setAddress(home.getAddress());
+        data.setGroupExperiment(home.getGroupExperiment());
+        for (Flag flag : FLAGS) {
+            if (isKnown(flag.bit)) {
+                flag.put.accept(data, (flags & flag.bit) != 0 ? flag.set : flag.clear);
+            }
+        }
+        data.setTemperature(toText(temperature));
+        data.setHumidity(toText(humidity));
+        data.setTargetTemp(toText(targetTemp));
+        data.setNightStartTime(toText(nightStartTime));
+        data.setNightEndTime(toText(nightEndTime));
+        data.setAlarmDelay(toText(alarmDelay));
+        data.setMinutesLightsOn(minutesLightsOn);
+        return data;
+    }
+
+    private static Short toShort(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            int number = Integer.parseInt(value.trim());
+            return number < Short.MIN_VALUE || number > Short.MAX_VALUE ? null : (short) number;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String toText(Short value) {
+        return value == null ? null : String.valueOf(value);
+    }
+
+    /**
+     * Check if a state is set
+     * @param flag one of the flags, such as {@link #LIGHT_ON}
+     * @return true if the state was known and set
+     */
+    public boolean isSet(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Check if a state was known
+     * @param flag one of the flags, such as {@link #LIGHT_ON}
+     * @return true if the house reported it
+     */
+    public boolean isKnown(int flag) {
+        return (flags & flag << KNOWN_SHIFT) != 0;
+    }
+
+    /**
+     * Get the ID
+     * @return the ID
+     */
+    public long getId() { return id; }
+
+    /**
+     * Get the house
+     * @return the house
+     */
+    public TartanHouseData getHome() { return home; }
+
+    /**
+     * Get the creation time for this record
+     * @return the creation time
+     */
+    public Date getCreateTimeStamp() { return createTimeStamp; }
+
+    /**
+     * Get the states and whether each was known
+     * @return the flags
+     */
+    public int getFlags() { return flags; }
+
+    /**
+     * Get the temperature
+     * @return the temperature, or null if not known
+     */
+    public Short getTemperature() { return temperature; }
+
+    /**
+     * Get the humidity
+     * @return the humidity, or null if not known
+     */
+    public Short getHumidity() { return humidity; }
+
+    /**
+     * Get the time the lights have been on
+     * @return the time in milliseconds, or null if not known
+     */
+    public Long getMinutesLightsOn() { return minutesLightsOn; }
+}
@@ -8,7 +8,9 @@ import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
+import jakarta.persistence.TableGenerator;
 import jakarta.persistence.Temporal;
 import jakarta.persistence.TemporalType;
 
@@ -16,12 +18,18 @@ import jakarta.persistence.TemporalType;
  * Represents a database table for home status
  */
 @Entity
-@Table(name = "Home")
+@Table(name = "Home", indexes = @Index(name = "home_name_time", columnList = "home_name, create_time"))
 public class TartanHomeData {
 
-    // Primary key for the table. Not meant to be used
+    /** The number of keys taken from the key table at a time, so that inserts can be sent in batches */
+    public static final int ID_ALLOCATION_SIZE = 100;
+
+    // Primary key for the table. Not meant to be used. Keys come from a table rather than auto increment, as
+    // Hibernate cannot batch inserts whose keys the database makes
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "home_ids")
+    @TableGenerator(name = "home_ids", table = "home_ids", pkColumnName = "sequence_name",
+            valueColumnName = "next_val", pkColumnValue = "Home", allocationSize = ID_ALLOCATION_SIZE)
     private long id;
 
     // the creation time
@@ -593,6 +601,42 @@ public class TartanHomeData {
      */
     public void setCreateTimeStamp(Date createTimeStamp) { this.createTimeStamp = createTimeStamp; }
 
+    /**
+     * Check if another record holds the same state of the house. The key, the creation time and the time the
+     * lights have been on are not compared: the last only grows while the lights stay on, which the light state
+     * already records
+     * @param that the other record
+     * @return true if every tracked field is equal
+     */
+    public boolean hasSameState(TartanHomeData that) {
+        return that != null
+                && Objects.equals(homeName, that.homeName)
+                && Objects.equals(address, that.address)
+                && Objects.equals(targetTemp, that.targetTemp)
+                && Objects.equals(nightStartTime, that.nightStartTime)
+                && Objects.equals(nightEndTime, that.nightEndTime)
+                && Objects.equals(temperature, that.temperature)
+                && Objects.equals(humidity, that.humidity)
+                && Objects.equals(door, that.door)
+                && Objects.equals(light, that.light)
+                && Objects.equals(humidifier, that.humidifier)
+                && Objects.equals(proximity, that.proximity)
+                && Objects.equals(doorLock, that.doorLock)
+                && Objects.equals(arrivingProximity, that.arrivingProximity)
+                && Objects.equals(keyLessEntry, that.keyLessEntry)
+                && Objects.equals(electronicOperation, that.electronicOperation)
+                && Objects.equals(nightLock, that.nightLock)
+                && Objects.equals(lockIntruderSensor, that.lockIntruderSensor)
+                && Objects.equals(intruderDefenseSensor, that.intruderDefenseSensor)
+                && Objects.equals(panelMessage, that.panelMessage)
+                && Objects.equals(hvacMode, that.hvacMode)
+                && Objects.equals(hvacState, that.hvacState)
+                && Objects.equals(alarmActive, that.alarmActive)
+                && Objects.equals(alarmDelay, that.alarmDelay)
+                && Objects.equals(alarmArmed, that.alarmArmed)
+                && Objects.equals(groupExperiment, that.groupExperiment);
+    }
+
     @Override
     public int hashCode() {
         return Objects.hash(id, homeName);
@@ -0,0 +1,109 @@
+package tartan.smarthome.core;
+
+import java.util.Objects;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+/**
+ * Represents a database table of the houses, which the compact history refers to instead of repeating the
+ * name and address of the house in every record
+ */
+@Entity
+@Table(name = "homes")
+public class TartanHouseData {
+
+    // Primary key for the table
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private int id;
+
+    @Column(name = "name", nullable = false, unique = true)
+    private String name;
+
+    @Column(name = "address", nullable = false)
+    private String address;
+
+    @Column(name = "group_experiment")
+    private String groupExperiment;
+
+    public TartanHouseData() {}
+
+    /**
+     * Create the record of the house a snapshot was taken of
+     * @param data the snapshot
+     */
+    public TartanHouseData(TartanHomeData data) {
+        this.name = data.getHomeName();
+        this.address = data.getAddress();
+        this.groupExperiment = data.getGroupExperiment();
+    }
+
+    /**
+     * Check if this record still describes the house a snapshot was taken of
+     * @param data the snapshot
+     * @return true if the name, address and experiment group are the same
+     */
+    public boolean describes(TartanHomeData data) {
+        return Objects.equals(name, data.getHomeName())
+                && Objects.equals(address, data.getAddress())
+                && Objects.equals(groupExperiment, data.getGroupExperiment());
+    }
+
+    /**
+     * Get the ID
+     * @return the ID
+     */
+    public int getId() { return id; }
+
+    /**
+     * Get the name
+     * @return the name
+     */
+    public String getName() { return name; }
+
+    /**
+     * Get the address
+     * @return the address
+     */
+    public String getAddress() { return address; }
+
+    /**
+     * Set the address
+     * @param address the new address
+     */
+    public void setAddress(String address) { this.address = address; }
+
+    /**
+     * Get the experiment group
+     * @return the group
+     */
+    public String getGroupExperiment() { return groupExperiment; }
+
+    /**
+     * Set the experiment group
+     * @param groupExperiment the new group
+     */
+    public void setGroupExperiment(String groupExperiment) { this.groupExperiment = groupExperiment; }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TartanHouseData)) {
+            return false;
+        }
+        final TartanHouseData that = (TartanHouseData) o;
+        return Objects.equals(this.name, that.name);
+    }
+}
@@ -0,0 +1,225 @@
+package tartan.smarthome.core;
+
+import java.util.Date;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import jakarta.persistence.Temporal;
+import jakarta.persistence.TemporalType;
+import jakarta.persistence.UniqueConstraint;
+
+/**
+ * Represents a database table of what happened in each house in each minute, hour and day, kept up to date as
+ * the history is saved so that reports need not read the history itself. Times are in milliseconds. The
+ * averages of the readings are weighted by how long each reading held, so they are the same whether every
+ * snapshot was saved or only the changes.
+ */
+@Entity
+@Table(name = "home_rollups",
+        uniqueConstraints = @UniqueConstraint(name = "home_rollups_bucket",
+                columnNames = {"home_name", "period", "bucket_start"}))
+public class TartanRollupData {
+
+    /** A rollup of one minute */
+    public static final String MINUTE = "minute";
+
+    /** A rollup of one hour */
+    public static final String HOUR = "hour";
+
+    /** A rollup of one day, from midnight UTC */
+    public static final String DAY = "day";
+
+    // Primary key for the table. Not meant to be used
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    @Column(name = "home_name", nullable = false)
+    private String homeName;
+
+    // MINUTE, HOUR or DAY
+    @Column(name = "period", nullable = false, length = 8)
+    private String period;
+
+    // when the minute, hour or day starts
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "bucket_start", nullable = false)
+    private Date bucketStart;
+
+    @Column(name = "light_on_ms", nullable = false)
+    private long lightOnMillis;
+
+    @Column(name = "heater_on_ms", nullable = false)
+    private long heaterOnMillis;
+
+    @Column(name = "chiller_on_ms", nullable = false)
+    private long chillerOnMillis;
+
+    // the number of times the alarm started sounding
+    @Column(name = "alarm_activations", nullable = false)
+    private int alarmActivations;
+
+    // the number of times the door was opened
+    @Column(name = "door_openings", nullable = false)
+    private int doorOpenings;
+
+    // the temperature times how long it held, over the time it was known
+    @Column(name = "temperature_sum", nullable = false)
+    private long temperatureSum;
+
+    @Column(name = "temperature_ms", nullable = false)
+    private long temperatureMillis;
+
+    // the humidity times how long it held, over the time it was known
+    @Column(name = "humidity_sum", nullable = false)
+    private long humiditySum;
+
+    @Column(name = "humidity_ms", nullable = false)
+    private long humidityMillis;
+
+    public TartanRollupData() {}
+
+    /**
+     * Create an empty rollup
+     * @param homeName the house
+     * @param period {@link #MINUTE}, {@link #HOUR} or {@link #DAY}
+     * @param bucketStart when the period starts
+     */
+    public TartanRollupData(String homeName, String period, Date bucketStart) {
+        this.homeName = homeName;
+        this.period = period;
+        this.bucketStart = bucketStart;
+    }
+
+    /**
+     * Count time in this rollup
+     * @param millis how long
+     * @param lightOn true if the light was on
+     * @param heaterOn true if the heater was on
+     * @param chillerOn true if the chiller was on
+     * @param temperature the temperature, or null if not known
+     * @param humidity the humidity, or null if not known
+     */
+    public void addTime(long millis, boolean lightOn, boolean heaterOn, boolean chillerOn,
+                        Integer temperature, Integer humidity) {
+        if (lightOn) {
+            lightOnMillis += millis;
+        }
+        if (heaterOn) {
+            heaterOnMillis += millis;
+        }
+        if (chillerOn) {
+            chillerOnMillis += millis;
+        }
+        if (temperature != null) {
+            temperatureSum += temperature * millis;
+            temperatureMillis += millis;
+        }
+        if (humidity != null) {
+            humiditySum += humidity * millis;
+            humidityMillis += millis;
+        }
+    }
+
+    /**
+     * Count the alarm starting to sound
+     */
+    public void addAlarmActivation() { alarmActivations++; }
+
+    /**
+     * Count the door being opened
+     */
+    public void addDoorOpening() { doorOpenings++; }
+
+    /**
+     * Get the house
+     * @return the name of the house
+     */
+    public String getHomeName() { return homeName; }
+
+    /**
+     * Get the length of the rollup
+     * @return {@link #MINUTE}, {@link #HOUR} or {@link #DAY}
+     */
+    public String getPeriod() { return period; }
+
+    /**
+     * Get when the rollup starts
+     * @return the start
+     */
+    public Date getBucketStart() { return bucketStart; }
+
+    /**
+     * Get how long the light was on
+     * @return the time in milliseconds
+     */
+    public long getLightOnMillis() { return lightOnMillis; }
+
+    /**
+     * Get how long the heater was on
+     * @return the time in milliseconds
+     */
+    public long getHeaterOnMillis() { return heaterOnMillis; }
+
+    /**
+     * Get how long the chiller was on
+     * @return the time in milliseconds
+     */
+    public long getChillerOnMillis() { return chillerOnMillis; }
+
+    /**
+     * Get how often the alarm started sounding
+     * @return the number of times
+     */
+    public int getAlarmActivations() { return alarmActivations; }
+
+    /**
+     * Get how often the door was opened
+     * @return the number of times
+     */
+    public int getDoorOpenings() { return doorOpenings; }
+
+    /**
+     * Get the sum of the temperatures times how long they held
+     * @return the sum
+     */
+    public long getTemperatureSum() { return temperatureSum; }
+
+    /**
+     * Get how long the temperature was known
+     * @return the time in milliseconds
+     */
+    public long getTemperatureMillis() { return temperatureMillis; }
+
+    /**
+     * Get the sum of the humidities times how long they held
+     * @return the sum
+     */
+    public long getHumiditySum() { return humiditySum; }
+
+    /**
+     * Get how long the humidity was known
+     * @return the time in milliseconds
+     */
+    public long getHumidityMillis() { return humidityMillis; }
+
+    /**
+     * Get the average temperature
+     * @return the average, or null if the temperature was never known
+     */
+    public Double getAverageTemperature() {
+        return temperatureMillis == 0 ? null : (double) temperatureSum / temperatureMillis;
+    }
+
+    /**
+     * Get the average humidity
+     * @return the average, or null if the humidity was never known
+     */
+    public Double getAverageHumidity() {
+        return humidityMillis == 0 ? null : (double) humiditySum / humidityMillis;
+    }
+}
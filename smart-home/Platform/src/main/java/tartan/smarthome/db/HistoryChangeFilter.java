@@ -0,0 +1,88 @@
+package tartan.smarthome.db;
+
+import tartan.smarthome.core.TartanHomeData;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which snapshots of the houses are worth saving. A snapshot is saved when a tracked field differs from
+ * the last snapshot saved for the same house, and, with a heartbeat, when the last one saved is older than the
+ * heartbeat. Snapshots that only repeat the last one are skipped. A snapshot counts as saved once it is
+ * accepted; if it then fails to be saved it must be {@link #forget(TartanHomeData) forgotten}.
+ *
+ * Nothing is lost by skipping: the state of a house at any time is the one in the last record saved at or
+ * before that time, see {@link HomeDAO#findStateAt(String, java.util.Date)}. The heartbeat only bounds how old
+ * that record may be, so that a house that has stopped answering can be told from one that has not changed.
+ */
+public class HistoryChangeFilter {
+
+    // The last snapshot saved for each house, by house name
+    private final Map<String, TartanHomeData> lastSaved = new ConcurrentHashMap<>();
+
+    // Save a snapshot at least this often, or never if 0
+    private final long heartbeatMillis;
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * Create a filter
+     * @param heartbeatMillis save a snapshot of an unchanged house this often; 0 for only when it changes
+     */
+    public HistoryChangeFilter(long heartbeatMillis) {
+        if (heartbeatMillis < 0) {
+            throw new IllegalArgumentException("Heartbeat cannot be negative");
+        }
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * Check whether a snapshot should be saved, and if so remember it as the last one saved for its house
+     * @param snapshot the snapshot
+     * @return true to save it, false if it repeats the last one saved
+     */
+    public boolean accept(TartanHomeData snapshot) {
+        if (snapshot.getHomeName() == null) {
+            return true;
+        }
+        boolean[] accepted = new boolean[1];
+        lastSaved.compute(snapshot.getHomeName(), (name, last) -> {
+            if (last != null && last.hasSameState(snapshot) && !heartbeatDue(last, snapshot)) {
+                return last;
+            }
+            accepted[0] = true;
+            return snapshot;
+        });
+        if (!accepted[0]) {
+            skipped.incrementAndGet();
+        }
+        return accepted[0];
+    }
+
+    /**
+     * Forget a snapshot that was accepted but not saved, because it was dropped or its transaction failed, so
+     * that the next snapshot of its house is saved even if it is the same. Nothing is forgotten if a later
+     * snapshot of the house has been accepted since
+     * @param snapshot the snapshot
+     */
+    public void forget(TartanHomeData snapshot) {
+        if (snapshot.getHomeName() != null) {
+            // records are equal when their houses are, so compare the records themselves
+            lastSaved.computeIfPresent(snapshot.getHomeName(), (name, last) -> last == snapshot ? null : last);
+        }
+    }
+
+    /**
+     * Get the number of snapshots skipped
+     * @return the number skipped since the filter was created
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    private boolean heartbeatDue(TartanHomeData last, TartanHomeData snapshot) {
+        return heartbeatMillis > 0 && last.getCreateTimeStamp() != null && snapshot.getCreateTimeStamp() != null
+                && snapshot.getCreateTimeStamp().getTime() - last.getCreateTimeStamp().getTime() >= heartbeatMillis;
+    }
+}
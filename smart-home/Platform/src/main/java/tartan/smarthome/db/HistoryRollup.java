@@ -0,0 +1,123 @@
+package tartan.smarthome.db;
+
+import tartan.smarthome.core.TartanHomeData;
+import tartan.smarthome.core.TartanHomeValues;
+import tartan.smarthome.core.TartanRollupData;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns the snapshots of the houses, as they are saved, into what changes in the minute, hour and day rollups
+ * of each house. The time between two snapshots of a house is counted with the state of the first, split
+ * across the minutes, hours and days it spans; the door opening and the alarm starting to sound are counted
+ * when the snapshot shows them. The rollups hold sums, so what is returned here is added to them.
+ *
+ * The last snapshot of each house is kept in memory, so the time before the first snapshot after a restart is
+ * not counted.
+ */
+public class HistoryRollup {
+
+    private static final String[] PERIODS = {TartanRollupData.MINUTE, TartanRollupData.HOUR, TartanRollupData.DAY};
+
+    private static final long[] PERIOD_MILLIS = {
+            TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1)};
+
+    private record Bucket(String homeName, int period, long start) {}
+
+    // The last snapshot of each house, by house name
+    private final Map<String, TartanHomeData> last = new HashMap<>();
+
+    /**
+     * Add snapshots, which must come in the order they were taken for each house
+     * @param snapshots the snapshots
+     * @return what to add to the rollups, one for each minute, hour and day that changed
+     */
+    public synchronized List<TartanRollupData> add(List<TartanHomeData> snapshots) {
+        Map<Bucket, TartanRollupData> changes = new LinkedHashMap<>();
+        for (TartanHomeData snapshot : snapshots) {
+            if (snapshot.getHomeName() == null || snapshot.getCreateTimeStamp() == null) {
+                continue;
+            }
+            TartanHomeData previous = last.put(snapshot.getHomeName(), snapshot);
+            if (previous == null) {
+                continue;
+            }
+            long from = previous.getCreateTimeStamp().getTime();
+            long to = snapshot.getCreateTimeStamp().getTime();
+            if (to <= from) {
+                continue;
+            }
+            addTime(changes, previous, from, to);
+
+            boolean opened = TartanHomeValues.CLOSED.equals(previous.getDoor())
+                    && TartanHomeValues.OPEN.equals(snapshot.getDoor());
+            boolean sounded = TartanHomeValues.INACTIVE.equals(previous.getAlarmActive())
+                    && TartanHomeValues.ACTIVE.equals(snapshot.getAlarmActive());
+            if (opened || sounded) {
+                for (int period = 0; period < PERIODS.length; period++) {
+                    TartanRollupData rollup = rollup(changes, snapshot.getHomeName(), period, to);
+                    if (opened) {
+                        rollup.addDoorOpening();
+                    }
+                    if (sounded) {
+                        rollup.addAlarmActivation();
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(changes.values());
+    }
+
+    /**
+     * Forget the last snapshots, so the time until the next ones is not counted
+     */
+    public synchronized void reset() {
+        last.clear();
+    }
+
+    private static void addTime(Map<Bucket, TartanRollupData> changes, TartanHomeData state, long from, long to) {
+        boolean lightOn = TartanHomeValues.ON.equals(state.getLight());
+        boolean hvacOn = TartanHomeValues.ON.equals(state.getHvacState());
+        boolean heaterOn = hvacOn && TartanHomeValues.HEAT.equals(state.getHvacMode());
+        boolean chillerOn = hvacOn && TartanHomeValues.COOL.equals(state.getHvacMode());
+        Integer temperature = toInteger(state.getTemperature());
+        Integer humidity = toInteger(state.getHumidity());
+        for (int period = 0; period < PERIODS.length; period++) {
+            long start = from;
+            while (start < to) {
+                long end = Math.min(to, bucketStart(start, period) + PERIOD_MILLIS[period]);
+                rollup(changes, state.getHomeName(), period, start)
+                        .addTime(end - start, lightOn, heaterOn, chillerOn, temperature, humidity);
+                start = end;
+            }
+        }
+    }
+
+    private static TartanRollupData rollup(Map<Bucket, TartanRollupData> changes, String homeName, int period,
+                                           long time) {
+        long start = bucketStart(time, period);
+        return changes.computeIfAbsent(new Bucket(homeName, period, start),
+                bucket -> new TartanRollupData(homeName, PERIODS[period], new Date(start)));
+    }
+
+    private static long bucketStart(long time, int period) {
+        return time - Math.floorMod(time, PERIOD_MILLIS[period]);
+    }
+
+    private static Integer toInteger(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
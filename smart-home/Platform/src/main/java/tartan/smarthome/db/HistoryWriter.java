@@ -0,0 +1,134 @@
+package tartan.smarthome.db;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.core.TartanHomeData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the history of all houses from one thread. The historians of the houses queue their snapshots, and
+ * the writer saves whatever has been queued in one transaction, with the inserts sent in JDBC batches, so the
+ * database sees a few large writes instead of a transaction per house per snapshot.
+ *
+ * The queue is bounded. When the database falls so far behind that it is full, new snapshots are dropped and
+ * counted rather than held in memory. The queue depth, the size of each write and the time it took are
+ * published as metrics.
+ */
+public class HistoryWriter implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HistoryWriter.class);
+
+    /** The default number of snapshots that may wait to be saved */
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    /** The default number of inserts sent at once */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final HomeDAO dao;
+    private final BlockingQueue<TartanHomeData> queue;
+    private final int batchSize;
+    private final Histogram written;
+    private final Timer flushes;
+    private final Meter dropped;
+    private final Meter failed;
+    private Thread thread = null;
+    private volatile boolean running = false;
+
+    /**
+     * Create a writer
+     * @param dao saves the snapshots
+     * @param queueSize the most snapshots that may wait to be saved
+     * @param batchSize the most inserts sent at once
+     * @param metrics the registry to publish to
+     */
+    public HistoryWriter(HomeDAO dao, int queueSize, int batchSize, MetricRegistry metrics) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.dao = dao;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+        metrics.register(MetricRegistry.name(HistoryWriter.class, "queue-depth"), (Gauge<Integer>) queue::size);
+        this.written = metrics.histogram(MetricRegistry.name(HistoryWriter.class, "batch-size"));
+        this.flushes = metrics.timer(MetricRegistry.name(HistoryWriter.class, "flush"));
+        this.dropped = metrics.meter(MetricRegistry.name(HistoryWriter.class, "dropped"));
+        this.failed = metrics.meter(MetricRegistry.name(HistoryWriter.class, "failed"));
+    }
+
+    /**
+     * Queue a snapshot to be saved
+     * @param snapshot the snapshot
+     * @return true if it was queued, false if the queue is full and it was dropped
+     */
+    public boolean submit(TartanHomeData snapshot) {
+        if (queue.offer(snapshot)) {
+            return true;
+        }
+        dropped.mark();
+        return false;
+    }
+
+    /**
+     * Start saving
+     */
+    @Override
+    public synchronized void start() {
+        running = true;
+        thread = new Thread(this::run, "history-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Save what is queued and stop
+     * @throws InterruptedException if interrupted while the last snapshots are saved
+     */
+    @Override
+    public synchronized void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            thread = null;
+        }
+    }
+
+    private void run() {
+        List<TartanHomeData> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                if (running) {
+                    batch.add(queue.take());
+                }
+            } catch (InterruptedException e) {
+                // stopping; save what is left
+            }
+            // everything queued meanwhile goes in the same transaction
+            queue.drainTo(batch);
+            if (batch.isEmpty()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                dao.createAll(batch, batchSize);
+                written.update(batch.size());
+            } catch (RuntimeException e) {
+                failed.mark(batch.size());
+                LOGGER.error("Failed to save " + batch.size() + " history records: " + e);
+            }
+            flushes.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            batch.clear();
+        }
+    }
+}
@@ -4,36 +4,430 @@ import io.dropwizard.hibernate.AbstractDAO;
 import org.hibernate.Session;
 import org.hibernate.SessionException;
 import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tartan.smarthome.core.TartanHistoryData;
 import tartan.smarthome.core.TartanHomeData;
+import tartan.smarthome.core.TartanHouseData;
+import tartan.smarthome.core.TartanRollupData;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import org.hibernate.query.Query;
 
 /**
  * The data access object to log the house data
  */
 public class HomeDAO extends AbstractDAO<TartanHomeData> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HomeDAO.class);
+
+    // Adds to a rollup, creating it if it is not there
+    private static final String UPSERT_ROLLUP = "INSERT INTO home_rollups (home_name, period, bucket_start, "
+            + "light_on_ms, heater_on_ms, chiller_on_ms, alarm_activations, door_openings, temperature_sum, "
+            + "temperature_ms, humidity_sum, humidity_ms) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) "
+            + "ON DUPLICATE KEY UPDATE light_on_ms = light_on_ms + VALUES(light_on_ms), "
+            + "heater_on_ms = heater_on_ms + VALUES(heater_on_ms), "
+            + "chiller_on_ms = chiller_on_ms + VALUES(chiller_on_ms), "
+            + "alarm_activations = alarm_activations + VALUES(alarm_activations), "
+            + "door_openings = door_openings + VALUES(door_openings), "
+            + "temperature_sum = temperature_sum + VALUES(temperature_sum), "
+            + "temperature_ms = temperature_ms + VALUES(temperature_ms), "
+            + "humidity_sum = humidity_sum + VALUES(humidity_sum), "
+            + "humidity_ms = humidity_ms + VALUES(humidity_ms)";
+
+    /** Version 1 of the history schema: every field as text in the Home table */
+    public static final int HISTORY_SCHEMA_TEXT = 1;
+
+    /** Version 2 of the history schema: the compact home_history table, which refers to the homes table */
+    public static final int HISTORY_SCHEMA_COMPACT = 2;
+
     // Keep a reference to the session
     private SessionFactory factory = null;
 
+    // Writes the data in the background, or null to write it when it is given
+    private volatile HistoryWriter writer = null;
+
+    // Skips the data that repeats what was saved last, or null to save all of it
+    private volatile HistoryChangeFilter filter = null;
+
+    // Keeps the minute, hour and day rollups up to date as data is saved, or null to keep none
+    private volatile HistoryRollup rollup = null;
+
+    // The version of the schema the history is saved in
+    private volatile int historySchema = HISTORY_SCHEMA_TEXT;
+
+    // The saved record of each house, by name, for the compact schema
+    private final Map<String, TartanHouseData> houses = new ConcurrentHashMap<>();
+
     public HomeDAO(SessionFactory factory) {
         super(factory);
         this.factory = factory;
     }
 
     /**
-     * Save the taratn home data to the database
+     * Write the data given to {@link #create(TartanHomeData)} in the background from now on
+     * @param writer the writer, or null to write the data when it is given
+     */
+    public void setHistoryWriter(HistoryWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Save only the data given to {@link #create(TartanHomeData)} that differs from what was saved last
+     * @param filter the filter, or null to save all of it
+     */
+    public void setHistoryFilter(HistoryChangeFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Keep the minute, hour and day rollups of each house up to date from now on, each time data has been saved
+     * @param rollup the rollup, or null to keep none
+     */
+    public void setHistoryRollup(HistoryRollup rollup) {
+        this.rollup = rollup;
+    }
+
+    /**
+     * Check if the rollups are kept up to date
+     * @return true if they are
+     */
+    public boolean hasHistoryRollup() {
+        return rollup != null;
+    }
+
+    /**
+     * Choose the schema the history is saved in and read from
+     * @param historySchema {@link #HISTORY_SCHEMA_TEXT} or {@link #HISTORY_SCHEMA_COMPACT}
+     */
+    public void setHistorySchema(int historySchema) {
+        if (historySchema != HISTORY_SCHEMA_TEXT && historySchema != HISTORY_SCHEMA_COMPACT) {
+            throw new IllegalArgumentException("Unknown history schema " + historySchema);
+        }
+        this.historySchema = historySchema;
+    }
+
+    /**
+     * Get the schema the history is saved in
+     * @return {@link #HISTORY_SCHEMA_TEXT} or {@link #HISTORY_SCHEMA_COMPACT}
+     */
+    public int getHistorySchema() {
+        return historySchema;
+    }
+
+    /**
+     * Save the taratn home data to the database. With a history writer the data is queued and saved later. With
+     * a history filter data that repeats the last saved for the house is not saved at all
      * @param tartanHomeData the data to save
      */
     public void create(TartanHomeData tartanHomeData) {
-        try {
-            // There is a dropwizard way to establish a Hibernate session outside of Jersey
-            // but this is more reliable
-            Session session = factory.openSession();
-            session.beginTransaction();
-            session.save(tartanHomeData);
-            session.getTransaction().commit();
-            session.close();
-        } catch (SessionException sx) {/* Nothing to do */ }
+        HistoryChangeFilter filter = this.filter;
+        if (filter != null && !filter.accept(tartanHomeData)) {
+            return;
+        }
+        HistoryWriter writer = this.writer;
+        if (writer != null) {
+            if (!writer.submit(tartanHomeData)) {
+                forget(List.of(tartanHomeData));
+            }
+            return;
+        }
+        // There is a dropwizard way to establish a Hibernate session outside of Jersey
+        // but this is more reliable
+        try (Session session = factory.openSession()) {
+            Transaction tx = session.beginTransaction();
+            try {
+                session.save(toRecord(session, tartanHomeData));
+                tx.commit();
+            } catch (RuntimeException e) {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+                // a house saved in the transaction is gone with it
+                houses.clear();
+                throw e;
+            }
+        } catch (SessionException sx) {
+            forget(List.of(tartanHomeData));
+            return;
+        } catch (RuntimeException e) {
+            forget(List.of(tartanHomeData));
+            throw e;
+        }
+        saveRollups(List.of(tartanHomeData));
+    }
+
+    /**
+     * Save many records in one transaction, sending the inserts in JDBC batches
+     * @param records the data to save
+     * @param batchSize the most inserts to send at once
+     */
+    public void createAll(List<TartanHomeData> records, int batchSize) {
+        try (Session session = factory.openSession()) {
+            session.setJdbcBatchSize(batchSize);
+            Transaction tx = session.beginTransaction();
+            try {
+                int pending = 0;
+                for (TartanHomeData record : records) {
+                    session.persist(toRecord(session, record));
+                    if (++pending == batchSize) {
+                        // send the batch and let go of the records
+                        session.flush();
+                        session.clear();
+                        pending = 0;
+                    }
+                }
+                tx.commit();
+            } catch (RuntimeException e) {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+                // houses saved in the transaction are gone with it
+                houses.clear();
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            // including a database that could not be reached at all
+            forget(records);
+            throw e;
+        }
+        saveRollups(records);
+    }
+
+    /**
+     * Let the history filter save the next snapshots of houses whose data could not be saved
+     * @param records the data that was not saved
+     */
+    private void forget(List<TartanHomeData> records) {
+        HistoryChangeFilter filter = this.filter;
+        if (filter != null) {
+            for (TartanHomeData record : records) {
+                filter.forget(record);
+            }
+        }
+    }
+
+    /**
+     * Make sure the keys handed out for new records are above those of the records already saved, which were
+     * numbered by the database before the keys came from the key table
+     */
+    public void initializeIds() {
+        try (Session session = factory.openSession()) {
+            Transaction tx = session.beginTransaction();
+            Long seeded = session.createNativeQuery(
+                    "SELECT COUNT(*) FROM home_ids WHERE sequence_name = 'Home'", Long.class).uniqueResult();
+            if (seeded == 0) {
+                Long last = session.createNativeQuery("SELECT COALESCE(MAX(id), 0) FROM Home", Long.class)
+                        .uniqueResult();
+                session.createNativeMutationQuery(
+                                "INSERT INTO home_ids (sequence_name, next_val) VALUES ('Home', :next)")
+                        .setParameter("next", last + 1 + TartanHomeData.ID_ALLOCATION_SIZE)
+                        .executeUpdate();
+            }
+            tx.commit();
+        }
+    }
+
+    /**
+     * Find the state of a house at a given time, which is the last record saved for it at or before that time.
+     * This holds whether every snapshot was saved or only the changes
+     * @param homeName the name of the house
+     * @param time the time
+     * @return the record, or null if nothing was saved for the house by then
+     */
+    public TartanHomeData findStateAt(String homeName, Date time) {
+        try (Session session = factory.openSession()) {
+            return findLatest(session, homeName, time);
+        }
+    }
+
+    /**
+     * Hand the latest record of each house to an action, one house at a time. The database finds the houses
+     * and the latest record of each through the index on house and time, so only one record is held at a time
+     * however long the history is
+     * @param action what to do with each record
+     * @return the number of houses with a record
+     */
+    public int forEachLatestState(Consumer<TartanHomeData> action) {
+        try (Session session = factory.openSession()) {
+            List<String> names = historySchema == HISTORY_SCHEMA_COMPACT
+                    ? session.createQuery("SELECT h.name FROM TartanHouseData h", String.class).list()
+                    : session.createQuery("SELECT DISTINCT t.homeName FROM TartanHomeData t", String.class).list();
+            int found = 0;
+            for (String name : names) {
+                TartanHomeData latest = findLatest(session, name, null);
+                if (latest != null) {
+                    action.accept(latest);
+                    found++;
+                }
+                // let go of what has been read
+                session.clear();
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Find the last record saved for a house
+     * @param session the session to read in
+     * @param homeName the name of the house
+     * @param time the time the record may not be after, or null for the last one
+     * @return the record, or null if there is none
+     */
+    private TartanHomeData findLatest(Session session, String homeName, Date time) {
+        String before = time == null ? "" : " AND t.createTimeStamp <= :time";
+        if (historySchema == HISTORY_SCHEMA_COMPACT) {
+            Query<TartanHistoryData> query = session.createQuery("SELECT t FROM TartanHistoryData t "
+                    + "JOIN FETCH t.home h WHERE h.name = :name" + before + " ORDER BY t.createTimeStamp DESC",
+                    TartanHistoryData.class);
+            if (time != null) {
+                query.setParameter("time", time);
+            }
+            TartanHistoryData record = query.setParameter("name", homeName).setMaxResults(1).uniqueResult();
+            return record == null ? null : record.toHomeData();
+        }
+        Query<TartanHomeData> query = session.createQuery("FROM TartanHomeData t WHERE t.homeName = :name"
+                + before + " ORDER BY t.createTimeStamp DESC", TartanHomeData.class);
+        if (time != null) {
+            query.setParameter("time", time);
+        }
+        return query.setParameter("name", homeName).setMaxResults(1).uniqueResult();
+    }
+
+    /**
+     * Find the rollups of a house
+     * @param homeName the name of the house
+     * @param period {@link TartanRollupData#MINUTE}, {@link TartanRollupData#HOUR} or {@link TartanRollupData#DAY}
+     * @param from the earliest start of a rollup
+     * @param to the time the rollups start before
+     * @return the rollups, oldest first
+     */
+    public List<TartanRollupData> findRollups(String homeName, String period, Date from, Date to) {
+        try (Session session = factory.openSession()) {
+            return session.createQuery("FROM TartanRollupData r WHERE r.homeName = :name AND r.period = :period "
+                            + "AND r.bucketStart >= :from AND r.bucketStart < :to ORDER BY r.bucketStart",
+                            TartanRollupData.class)
+                    .setParameter("name", homeName)
+                    .setParameter("period", period)
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .list();
+        }
+    }
+
+    /**
+     * Find how long the lights of each house have been on, from the day rollups
+     * @param since the first day to count
+     * @return the time in milliseconds, by house name
+     */
+    public Map<String, Long> findLightOnMillis(Date since) {
+        try (Session session = factory.openSession()) {
+            List<Object[]> rows = session.createQuery("SELECT r.homeName, SUM(r.lightOnMillis) "
+                            + "FROM TartanRollupData r WHERE r.period = :period AND r.bucketStart >= :since "
+                            + "GROUP BY r.homeName", Object[].class)
+                    .setParameter("period", TartanRollupData.DAY)
+                    .setParameter("since", since)
+                    .list();
+            Map<String, Long> lightOn = new HashMap<>();
+            for (Object[] row : rows) {
+                lightOn.put((String) row[0], ((Number) row[1]).longValue());
+            }
+            return lightOn;
+        }
+    }
+
+    /**
+     * Add what saved data changes to the rollups, one upsert per minute, hour and day, sent as one JDBC batch.
+     * This runs in its own transaction after the data is saved, so that rollups that cannot be updated lose
+     * only themselves and never the history they are made from
+     * @param records the data that was saved
+     */
+    private void saveRollups(List<TartanHomeData> records) {
+        HistoryRollup rollup = this.rollup;
+        if (rollup == null) {
+            return;
+        }
+        List<TartanRollupData> changes = rollup.add(records);
+        if (changes.isEmpty()) {
+            return;
+        }
+        try (Session session = factory.openSession()) {
+            Transaction tx = session.beginTransaction();
+            try {
+                session.doWork(connection -> {
+                    try (PreparedStatement statement = connection.prepareStatement(UPSERT_ROLLUP)) {
+                        for (TartanRollupData change : changes) {
+                            statement.setString(1, change.getHomeName());
+                            statement.setString(2, change.getPeriod());
+                            statement.setTimestamp(3, new Timestamp(change.getBucketStart().getTime()));
+                            statement.setLong(4, change.getLightOnMillis());
+                            statement.setLong(5, change.getHeaterOnMillis());
+                            statement.setLong(6, change.getChillerOnMillis());
+                            statement.setInt(7, change.getAlarmActivations());
+                            statement.setInt(8, change.getDoorOpenings());
+                            statement.setLong(9, change.getTemperatureSum());
+                            statement.setLong(10, change.getTemperatureMillis());
+                            statement.setLong(11, change.getHumiditySum());
+                            statement.setLong(12, change.getHumidityMillis());
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                });
+                tx.commit();
+            } catch (RuntimeException e) {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+                LOGGER.error("Failed to update the rollups of " + records.size() + " history records: " + e);
+            }
+        }
+    }
+
+    /**
+     * Get the entity that saves a snapshot in the history schema in use
+     * @param session the session that will save it
+     * @param data the snapshot
+     * @return the entity
+     */
+    private Object toRecord(Session session, TartanHomeData data) {
+        if (historySchema == HISTORY_SCHEMA_COMPACT) {
+            return new TartanHistoryData(data, findHouse(session, data));
+        }
+        return data;
+    }
+
+    /**
+     * Find the saved record of the house a snapshot was taken of, saving or updating it if needed
+     * @param session the session to save it in
+     * @param data the snapshot
+     * @return the record of the house
+     */
+    private TartanHouseData findHouse(Session session, TartanHomeData data) {
+        TartanHouseData house = houses.get(data.getHomeName());
+        if (house == null) {
+            house = session.createQuery("FROM TartanHouseData h WHERE h.name = :name", TartanHouseData.class)
+                    .setParameter("name", data.getHomeName())
+                    .uniqueResult();
+            if (house == null) {
+                house = new TartanHouseData(data);
+                session.persist(house);
+            }
+        }
+        if (!house.describes(data)) {
+            house.setAddress(data.getAddress());
+            house.setGroupExperiment(data.getGroupExperiment());
+            house = session.merge(house);
+        }
+        houses.put(data.getHomeName(), house);
+        return house;
     }
 
     public SessionFactory getSessionFactory() {
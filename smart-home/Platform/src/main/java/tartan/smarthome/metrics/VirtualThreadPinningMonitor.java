@@ -0,0 +1,87 @@
+package tartan.smarthome.metrics;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.dropwizard.lifecycle.Managed;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.time.Duration;
+
+/**
+ * Reports virtual threads that block while pinned to their carrier thread, for example while waiting on the
+ * house inside a synchronized block. Pinning events are read from a JFR stream and published as metrics:
+ * a meter and timer for all pinning, and a meter per application method where it happened.
+ */
+public class VirtualThreadPinningMonitor implements Managed {
+
+    /** the JFR event recorded when a virtual thread parks while pinned */
+    public static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    private static final String APPLICATION_PACKAGE = "tartan.";
+
+    private final MetricRegistry metrics;
+    private final Meter pinned;
+    private final Timer pinnedTime;
+    private RecordingStream stream = null;
+
+    /**
+     * Create the monitor
+     * @param metrics the registry to publish to
+     */
+    public VirtualThreadPinningMonitor(MetricRegistry metrics) {
+        this.metrics = metrics;
+        this.pinned = metrics.meter(MetricRegistry.name(VirtualThreadPinningMonitor.class, "pinned"));
+        this.pinnedTime = metrics.timer(MetricRegistry.name(VirtualThreadPinningMonitor.class, "pinned-time"));
+    }
+
+    @Override
+    public void start() {
+        stream = new RecordingStream();
+        // pinning only matters when the thread blocks, so every occurrence is worth recording
+        stream.enable(PINNED_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+        stream.onEvent(PINNED_EVENT, this::record);
+        stream.startAsync();
+    }
+
+    @Override
+    public void stop() {
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    private void record(RecordedEvent event) {
+        pinned.mark();
+        pinnedTime.update(event.getDuration());
+
+        String site = pinnedAt(event.getStackTrace());
+        if (site != null) {
+            metrics.meter(MetricRegistry.name(VirtualThreadPinningMonitor.class, "pinned", site)).mark();
+        }
+    }
+
+    /**
+     * Find the application method that was running when the thread was pinned
+     * @param stackTrace the stack of the pinned thread
+     * @return Class.method, or null if no application code is on the stack
+     */
+    private static String pinnedAt(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return null;
+        }
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            if (!frame.isJavaFrame()) {
+                continue;
+            }
+            String type = frame.getMethod().getType().getName();
+            if (type.startsWith(APPLICATION_PACKAGE)) {
+                return type.substring(type.lastIndexOf('.') + 1) + "." + frame.getMethod().getName();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,98 @@
+package tartan.smarthome.resources;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+
+import tartan.smarthome.resources.iotcontroller.EvaluationLog;
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.HouseStateBatch;
+import tartan.smarthome.resources.rules.RuleSet;
+import tartan.smarthome.resources.rules.RuleSetReader;
+import tartan.smarthome.resources.rules.RuleTrace;
+
+/**
+ * The evaluator all houses use, which can be replaced while they run. Each evaluation is handed to the
+ * evaluator in place when it starts, so an evaluation that is under way when the evaluator is replaced
+ * finishes with the old one and the next poll of every house uses the new one. No poll waits or is dropped.
+ *
+ * New rules are read with {@link #load(Path, Path, int)}, which only puts them to use once they compile and
+ * evaluate a corpus of recorded states as recorded.
+ */
+public class EvaluatorRegistry implements TartanStateEvaluator {
+
+    private final AtomicReference<TartanStateEvaluator> current;
+
+    /**
+     * Create a registry
+     * @param evaluator the evaluator to start with
+     */
+    public EvaluatorRegistry(TartanStateEvaluator evaluator) {
+        this.current = new AtomicReference<>(Objects.requireNonNull(evaluator));
+    }
+
+    /**
+     * Get the evaluator in use
+     * @return the evaluator
+     */
+    public TartanStateEvaluator get() {
+        return current.get();
+    }
+
+    /**
+     * Put another evaluator to use
+     * @param evaluator the new evaluator
+     * @return the evaluator it replaces
+     */
+    public TartanStateEvaluator swap(TartanStateEvaluator evaluator) {
+        return current.getAndSet(Objects.requireNonNull(evaluator));
+    }
+
+    /**
+     * Read rules from a file and put them to use if they pass the corpus
+     * @param rulesFile the rules, as read by {@link RuleSetReader}
+     * @param corpusFile the recorded states the rules must evaluate as recorded, or null to skip the check
+     * @param cacheSize the most outcomes of the rules to remember; 0 runs the rules for every state
+     * @return the new evaluator
+     * @throws IOException if a file cannot be read
+     * @throws IllegalArgumentException if the rules cannot be read or fail the corpus; the evaluator in use is
+     * kept
+     */
+    public synchronized StaticTartanStateEvaluator load(Path rulesFile, Path corpusFile, int cacheSize)
+            throws IOException {
+        RuleSet rules = new RuleSetReader(StaticTartanStateEvaluator.getRuleBits()).read(rulesFile);
+        StaticTartanStateEvaluator evaluator = new StaticTartanStateEvaluator(rules, cacheSize);
+        if (corpusFile != null) {
+            StateCorpus.read(corpusFile).check(evaluator);
+        }
+        swap(evaluator);
+        return evaluator;
+    }
+
+    @Override
+    public Map<String, Object> evaluateState(Map<String, Object> inState, StringBuffer log) {
+        return current.get().evaluateState(inState, log);
+    }
+
+    @Override
+    public void evaluateState(HouseState state, StringBuffer log) {
+        current.get().evaluateState(state, log);
+    }
+
+    @Override
+    public void evaluateState(HouseState state, EvaluationLog log) {
+        current.get().evaluateState(state, log);
+    }
+
+    @Override
+    public void evaluateState(HouseState state, EvaluationLog log, RuleTrace trace) {
+        current.get().evaluateState(state, log, trace);
+    }
+
+    @Override
+    public void evaluateStates(HouseStateBatch batch, StringBuffer[] logs) {
+        current.get().evaluateStates(batch, logs);
+    }
+}
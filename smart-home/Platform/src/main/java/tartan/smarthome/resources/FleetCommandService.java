@@ -0,0 +1,141 @@
+package tartan.smarthome.resources;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import tartan.smarthome.core.TartanFleetResult;
+import tartan.smarthome.core.TartanHome;
+
+/**
+ * Sends one command to many houses at once, such as arming every alarm in an experiment group or setting the
+ * target temperature of every house. The houses are split among the threads of a fork-join pool, which turn
+ * the command into the settings and state update of each house and send them. Each house is then fetched,
+ * evaluated and set on its own, so a command takes about as long as the slowest house rather than the sum of
+ * them all.
+ */
+public class FleetCommandService {
+
+    /** The most houses one task sends to before the rest are split off */
+    static final int HOUSES_PER_TASK = 8;
+
+    private final List<TartanHomeService> services;
+    private final ForkJoinPool pool;
+
+    /**
+     * Create the service on the common pool, where the houses are evaluated too
+     * @param services the houses
+     */
+    public FleetCommandService(List<TartanHomeService> services) {
+        this(services, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create the service
+     * @param services the houses
+     * @param pool the pool that sends the command to the houses
+     */
+    public FleetCommandService(List<TartanHomeService> services, ForkJoinPool pool) {
+        this.services = services;
+        this.pool = pool;
+    }
+
+    /**
+     * Select the houses of an experiment group
+     * @param group the group
+     * @return the selection
+     */
+    public static Predicate<TartanHomeService> inGroup(String group) {
+        return service -> Objects.equals(group, service.getGroupExperiment());
+    }
+
+    /**
+     * Select houses by name
+     * @param names the names
+     * @return the selection
+     */
+    public static Predicate<TartanHomeService> named(List<String> names) {
+        return service -> names.contains(service.getName());
+    }
+
+    /**
+     * Send a new state to houses
+     * @param houses the houses to send to
+     * @param command the parts of the state to set; fields that are null are left as they are
+     * @return the outcome in each house, once every house has answered or timed out
+     */
+    public CompletableFuture<TartanFleetResult> setState(Predicate<TartanHomeService> houses, TartanHome command) {
+        long start = System.nanoTime();
+        List<TartanHomeService> selected = new ArrayList<>();
+        for (TartanHomeService service : services) {
+            if (houses.test(service)) {
+                selected.add(service);
+            }
+        }
+        List<CompletableFuture<TartanFleetResult.House>> sent =
+                pool.invoke(new SendTask(selected, 0, selected.size(), command));
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<TartanFleetResult.House> results = new ArrayList<>(sent.size());
+            for (CompletableFuture<TartanFleetResult.House> house : sent) {
+                results.add(house.join());
+            }
+            return new TartanFleetResult(results, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * Sends the command to a range of houses, splitting it in two while it is large. Tasks are serializable
+     * like every fork-join task, but the houses and the command are not and a task is never serialized
+     */
+    private static final class SendTask extends RecursiveTask<List<CompletableFuture<TartanFleetResult.House>>> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<TartanHomeService> services;
+        private final int from;
+        private final int to;
+        private final transient TartanHome command;
+
+        SendTask(List<TartanHomeService> services, int from, int to, TartanHome command) {
+            this.services = services;
+            this.from = from;
+            this.to = to;
+            this.command = command;
+        }
+
+        @Override
+        protected List<CompletableFuture<TartanFleetResult.House>> compute() {
+            if (to - from <= HOUSES_PER_TASK) {
+                List<CompletableFuture<TartanFleetResult.House>> sent = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    sent.add(send(services.get(i), command));
+                }
+                return sent;
+            }
+            int middle = (from + to) >>> 1;
+            SendTask second = new SendTask(services, middle, to, command);
+            second.fork();
+            List<CompletableFuture<TartanFleetResult.House>> sent =
+                    new SendTask(services, from, middle, command).compute();
+            sent.addAll(second.join());
+            return sent;
+        }
+    }
+
+    private static CompletableFuture<TartanFleetResult.House> send(TartanHomeService service, TartanHome command) {
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> accepted;
+        try {
+            accepted = service.setStateAsync(command);
+        } catch (RuntimeException e) {
+            accepted = CompletableFuture.failedFuture(e);
+        }
+        return accepted.handle((ok, t) -> new TartanFleetResult.House(service.getName(),
+                t == null && Boolean.TRUE.equals(ok), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                t == null ? null : t.toString()));
+    }
+}
@@ -0,0 +1,190 @@
+package tartan.smarthome.resources;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.HouseStateField;
+
+/**
+ * Recorded house states and what they must evaluate to, used to check new rules before they are put to use.
+ * Each line holds one case, as the fields of the state before and after evaluation separated by "=>", for
+ * example
+ *
+ * <pre>
+ * DS=1;LS=0;PS=0;AS=0;TT=70;TR=68 =&gt; DS=0;AA=0
+ * </pre>
+ *
+ * Fields are written key=value and separated by ';'. On/off fields are 1 or 0, HM is Heater or Chiller, and
+ * passcodes and requests are text. Only the fields listed after "=>" are checked. Everything after a '#' is a
+ * comment.
+ */
+public final class StateCorpus {
+
+    private final List<HouseState> inputs = new ArrayList<>();
+    private final List<HouseState> expected = new ArrayList<>();
+    private final List<Integer> lines = new ArrayList<>();
+
+    private StateCorpus() {
+    }
+
+    /**
+     * Read a corpus from a file
+     * @param file the file, in UTF-8
+     * @return the corpus
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if a case cannot be read; the message gives the line
+     */
+    public static StateCorpus read(Path file) throws IOException {
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Read a corpus
+     * @param in the text
+     * @return the corpus
+     * @throws IOException if the text cannot be read
+     * @throws IllegalArgumentException if a case cannot be read; the message gives the line
+     */
+    public static StateCorpus read(Reader in) throws IOException {
+        StateCorpus corpus = new StateCorpus();
+        BufferedReader text = new BufferedReader(in);
+        int lineNumber = 0;
+        String line;
+        while ((line = text.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            if (line.isBlank()) {
+                continue;
+            }
+            int arrow = line.indexOf("=>");
+            if (arrow < 0) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": Expected input => expected");
+            }
+            try {
+                corpus.inputs.add(parseState(line.substring(0, arrow)));
+                corpus.expected.add(parseState(line.substring(arrow + 2)));
+            } catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": " + iae.getMessage(), iae);
+            }
+            corpus.lines.add(lineNumber);
+        }
+        return corpus;
+    }
+
+    /**
+     * Get the number of cases
+     * @return the number of cases
+     */
+    public int size() {
+        return inputs.size();
+    }
+
+    /**
+     * Get the state a case starts from
+     * @param i the case, from 0
+     * @param state the record to fill; replaced by a copy of the state
+     */
+    public void getInput(int i, HouseState state) {
+        state.copyFrom(inputs.get(i));
+    }
+
+    /**
+     * Evaluate every case and compare the outcome with what was recorded
+     * @param evaluator the evaluator to check
+     * @throws IllegalArgumentException if a case fails to evaluate or evaluates to something else; the message
+     * gives the line of the case
+     */
+    public void check(TartanStateEvaluator evaluator) {
+        HouseState state = new HouseState();
+        for (int i = 0; i < inputs.size(); i++) {
+            state.copyFrom(inputs.get(i));
+            try {
+                evaluator.evaluateState(state, new StringBuffer());
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Line " + lines.get(i) + ": Evaluation failed: " + e, e);
+            }
+            HouseState want = expected.get(i);
+            for (HouseStateField field : HouseStateField.values()) {
+                if (!want.has(field)) {
+                    continue;
+                }
+                String wanted = format(want, field);
+                String actual = state.has(field) ? format(state, field) : "nothing";
+                if (!wanted.equals(actual)) {
+                    throw new IllegalArgumentException("Line " + lines.get(i) + ": Expected " + field.getKey()
+                            + "=" + wanted + " but was " + actual);
+                }
+            }
+        }
+    }
+
+    private static HouseState parseState(String text) {
+        HouseState state = new HouseState();
+        for (String param : text.split(";")) {
+            if (param.isBlank()) {
+                continue;
+            }
+            int eq = param.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value but found " + param.trim());
+            }
+            String key = param.substring(0, eq).trim();
+            String value = param.substring(eq + 1).trim();
+            HouseStateField field = HouseStateField.lookup(key);
+            if (field == null) {
+                throw new IllegalArgumentException("Unknown field " + key);
+            }
+            switch (field.getKind()) {
+                case READING:
+                case NUMBER:
+                    try {
+                        state.setInt(field, Integer.parseInt(value));
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Expected a number for " + key + " but found " + value);
+                    }
+                    break;
+                case HVAC_MODE:
+                    if (!HouseState.HVAC_HEATER.equals(value) && !HouseState.HVAC_CHILLER.equals(value)) {
+                        throw new IllegalArgumentException("Expected Heater or Chiller for " + key);
+                    }
+                    state.setFlag(field, HouseState.HVAC_HEATER.equals(value));
+                    break;
+                case TEXT:
+                    state.setText(field, value);
+                    break;
+                default:
+                    if (!value.equals("0") && !value.equals("1")) {
+                        throw new IllegalArgumentException("Expected 0 or 1 for " + key + " but found " + value);
+                    }
+                    state.setFlag(field, value.equals("1"));
+            }
+        }
+        return state;
+    }
+
+    private static String format(HouseState state, HouseStateField field) {
+        switch (field.getKind()) {
+            case READING:
+            case NUMBER:
+                return String.valueOf(state.getInt(field));
+            case HVAC_MODE:
+                return state.getFlag(field) ? HouseState.HVAC_HEATER : HouseState.HVAC_CHILLER;
+            case TEXT:
+                return state.getText(field);
+            default:
+                return state.getFlag(field) ? "1" : "0";
+        }
+    }
+}
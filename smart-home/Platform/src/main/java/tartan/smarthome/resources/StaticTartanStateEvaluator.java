@@ -1,19 +1,230 @@
 package tartan.smarthome.resources;
 
-import java.sql.Date;
-import java.text.SimpleDateFormat;
 import java.time.LocalTime;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
-import tartan.smarthome.resources.iotcontroller.IoTValues;
+import java.util.Objects;
+import java.util.function.Consumer;
+import tartan.smarthome.resources.iotcontroller.EvaluationLog;
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.HouseStateBatch;
+import tartan.smarthome.resources.iotcontroller.HouseStateField;
+import tartan.smarthome.resources.rules.MemoizedRuleSet;
+import tartan.smarthome.resources.rules.Rule;
+import tartan.smarthome.resources.rules.RuleSet;
+import tartan.smarthome.resources.rules.RuleTrace;
+
+import static tartan.smarthome.resources.iotcontroller.HouseStateField.*;
 
 public class StaticTartanStateEvaluator implements TartanStateEvaluator {
 
+    // The house state bits the rules look at and change
+    private static final long DS = DOOR_STATE.mask();
+    private static final long LS = LIGHT_STATE.mask();
+    private static final long PS = PROXIMITY_STATE.mask();
+    private static final long APS = ARRIVING_PROXIMITY_STATE.mask();
+    private static final long AS = ALARM_STATE.mask();
+    private static final long AA = ALARM_ACTIVE.mask();
+    private static final long AW = AWAY_TIMER.mask();
+    private static final long HUS = HUMIDIFIER_STATE.mask();
+    private static final long HES = HEATER_STATE.mask();
+    private static final long CHS = CHILLER_STATE.mask();
+    private static final long HM = HVAC_MODE.mask(); // set for Heater
+    private static final long LKS = LOCK_STATE.mask();
+    private static final long EOE = LOCK_ELECTRONIC_OPERATION_ENABLE.mask();
+    private static final long KLE = LOCK_KEYLESS_ENTRY_ENABLE.mask();
+    private static final long NLE = LOCK_NIGHT_LOCK_ENABLED.mask();
+    private static final long LIS = LOCK_INTRUDER_SENSOR_MODE.mask();
+    private static final long IDS = INTRUDER_DETECTION_SENSOR.mask();
+    private static final long PM = PANEL_MESSAGE.mask();
+
+    // Comparisons made before the rules run, kept in bits above the house fields
+    private static final long CLOCK_UNSET = 1L << 48;
+    private static final long COLDER = 1L << 49;
+    private static final long WARMER = 1L << 50;
+    private static final long ALARM_CODE_OK = 1L << 51;
+    private static final long LOCK_CODE_OK = 1L << 52;
+    private static final long NIGHT = 1L << 53;
+    private static final long LOCK_REQUESTED = 1L << 54;
+    private static final long UNLOCK_REQUESTED = 1L << 55;
+
+    /** The on/off fields the rules read */
+    private static final long RULE_FIELDS = DS | LS | PS | APS | AS | AA | AW | HUS | CHS | HM | LKS | EOE | KLE
+            | NLE | LIS | IDS;
+
+    /** The on/off fields every evaluated state has */
+    private static final long RESULT_FIELDS = RULE_FIELDS | HES | PM;
+
+    /** The fields without which the evaluation fails or takes a path the rules do not cover */
+    private static final long REQUIRED_FIELDS = DS | LS | PS | APS | AS | AA | HUS | CHS | HM | LKS | EOE | KLE
+            | NLE | TEMP_READING.mask() | TARGET_TEMP.mask() | NIGHT_START_TIME.mask() | NIGHT_END_TIME.mask()
+            | ALARM_PASSCODE.mask();
+
+    /** The rules of {@link #interpretState}, block for block */
+    private static final RuleSet RULES = RuleSet.builder()
+            .first(Rule.when(CLOCK_UNSET, 0).log("Current time not set, read from system"))
+
+            .first(Rule.when(LS, PS).clear(LS).log("Cannot turn on light because user not home"),
+                    Rule.when(LS | PS, 0).log("Light on"))
+
+            .first(Rule.when(DS | AS, PS).set(AA).log("Break in detected: Activating alarm"),
+                    Rule.when(DS, PS).clear(DS).log("Closed door because house vacant"),
+                    Rule.when(DS, 0).log("Door open"),
+                    Rule.when(AS | PS, DS).set(AA).log("Break in detected: Activating alarm"),
+                    Rule.otherwise().log("Closed door"))
+
+            // Auto lock the house
+            .first(Rule.when(AW, 0).clear(LS | DS | AW).set(AS))
+
+            .first(Rule.when(APS, LS | AS).set(LS).log("House is occupied", "Turning on light"),
+                    Rule.when(APS, 0).log("House is occupied"))
+
+            .first(Rule.when(AS, 0).log("Alarm enabled"),
+                    Rule.when(0, PS).set(AS).log("Cannot disable the alarm, house is empty"),
+                    Rule.when(AA, ALARM_CODE_OK).set(AS).log("Cannot disable alarm, invalid passcode given"),
+                    Rule.when(AA | ALARM_CODE_OK, 0).clear(AA).log("Correct passcode entered, disabled alarm"))
+            .first(Rule.when(0, AS).clear(AA).log("Alarm disabled"))
+            .first(Rule.when(AS | PS, DS).set(AA).log("Activating alarm"),
+                    Rule.when(AS | DS, PS).set(AA).log("Activating alarm"))
+
+            .first(Rule.when(COLDER, 0).set(HES)
+                            .log("Turning on heater, target temperature = {target}F, current temperature = {temperature}F"),
+                    Rule.otherwise().clear(HES))
+            .first(Rule.when(WARMER, CHS).set(CHS)
+                            .log("Turning on air conditioner target temperature = {target}F, current temperature = {temperature}F"),
+                    Rule.when(WARMER, 0),
+                    Rule.otherwise().clear(CHS))
+            .first(Rule.when(CHS, 0).clear(HM),
+                    Rule.when(HES, 0).set(HM))
+            .first(Rule.when(HM | CHS, 0).clear(CHS | HUS).log("Turning off air conditioner"),
+                    Rule.when(HM, 0).clear(CHS | HUS))
+            .first(Rule.when(HES, HM).clear(HES).log("Turning off heater"),
+                    Rule.when(0, HM).clear(HES))
+            .first(Rule.when(HUS, HM).log("Enabled Dehumidifier"),
+                    Rule.otherwise().clear(HUS).log("Automatically disabled dehumidifier when running heater"))
+
+            .first(Rule.when(NLE | NIGHT, LKS).set(LKS).clear(DS)
+                            .log("Door locked during night time", "Door closed with night lock"),
+                    Rule.when(NLE, 0),
+                    Rule.otherwise().log("Night Lock is disabled"))
+            .first(Rule.when(EOE | LOCK_REQUESTED | LKS, 0).log("Door already locked"),
+                    Rule.when(EOE | LOCK_REQUESTED | LOCK_CODE_OK, 0).set(LKS).clear(DS)
+                            .log("Door locked with electronic operation", "Door closed with electronic operation"),
+                    Rule.when(EOE | LOCK_REQUESTED, 0).log("Invalid passcode given to lock door"),
+                    Rule.when(EOE | UNLOCK_REQUESTED, LKS).log("Door already unlocked"),
+                    Rule.when(EOE | UNLOCK_REQUESTED | LOCK_CODE_OK, 0).clear(LKS).set(DS)
+                            .log("Door unlocked with electronic operation", "Door opened with electronic operation"),
+                    Rule.when(EOE | UNLOCK_REQUESTED, 0).log("Invalid passcode given to unlock door"),
+                    Rule.when(EOE, 0),
+                    Rule.otherwise().log("Electronic operation of lock is disabled"))
+            .first(Rule.when(APS | KLE, 0).clear(LKS | APS).set(DS)
+                            .log("Arriving home, automatically unlocking door", "Door unlocked with keyless entry"),
+                    Rule.when(APS, 0).clear(APS).log("Arriving home, keyless entry disabled"))
+
+            .first(Rule.when(LIS | IDS, PS).set(PM | LKS).clear(DS)
+                            .log("Intruder detected, house is empty, lock and close door", "Door closed", "Door locked"),
+                    Rule.when(LIS | IDS | PS, 0).set(PM | DS).clear(LKS)
+                            .log("Intruder detected, but house is occupied, unlock and open door"),
+                    Rule.otherwise().clear(PM))
+            .first(Rule.when(LKS, 0).clear(DS).log("Door closed as door is locked"))
+            .first(Rule.when(DS, 0).clear(LKS).log("Door opened so door is unlocked"))
+            .first(Rule.when(PM, 0).log("Panel Message: Possbiel Intruder detected! Please check the house!"),
+                    Rule.otherwise().log("Panel Message: All clear"))
+            .compile();
+
+    static {
+        if (HouseStateField.values().length > 48) {
+            throw new IllegalStateException("The rule comparisons overlap the house state fields");
+        }
+    }
+
+    /** The rules that evaluate complete states */
+    private final RuleSet rules;
+
+    /** The remembered outcomes of the rules, or null to run the rules for every state */
+    private final MemoizedRuleSet memo;
+
+    /**
+     * Create an evaluator that runs the rules for every state
+     */
+    public StaticTartanStateEvaluator() {
+        this(RULES, 0);
+    }
+
+    /**
+     * Create an evaluator that remembers the outcomes of the rules. Houses in a state that was evaluated
+     * before are evaluated with a table lookup
+     * @param cacheSize the most outcomes to remember
+     */
+    public StaticTartanStateEvaluator(int cacheSize) {
+        this(RULES, cacheSize);
+    }
+
+    /**
+     * Create an evaluator with other rules, such as rules read with {@link #getRuleBits()}. The rules evaluate
+     * states that have every value they need; the others are still evaluated by {@link #interpretState}
+     * @param rules the rules
+     * @param cacheSize the most outcomes to remember; 0 runs the rules for every state
+     */
+    public StaticTartanStateEvaluator(RuleSet rules, int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative");
+        }
+        this.rules = Objects.requireNonNull(rules);
+        this.memo = cacheSize > 0 ? new MemoizedRuleSet(rules, cacheSize) : null;
+    }
+
+    /**
+     * Get the rules the evaluator is built with unless it is given others
+     * @return the rules
+     */
+    public static RuleSet getDefaultRules() {
+        return RULES;
+    }
+
+    /**
+     * Get the names rules may use for the bits they read and change: the key of each on/off house field, and
+     * CLOCK_UNSET, COLDER, WARMER, ALARM_CODE_OK, LOCK_CODE_OK, NIGHT, LOCK_REQUESTED and UNLOCK_REQUESTED for
+     * the comparisons made before the rules run
+     * @return the bit of each name
+     */
+    public static Map<String, Long> getRuleBits() {
+        Map<String, Long> bits = new LinkedHashMap<>();
+        for (HouseStateField field : HouseStateField.values()) {
+            if (field.getKind() == HouseStateField.Kind.FLAG || field.getKind() == HouseStateField.Kind.HVAC_MODE) {
+                bits.put(field.getKey(), field.mask());
+            }
+        }
+        bits.put("CLOCK_UNSET", CLOCK_UNSET);
+        bits.put("COLDER", COLDER);
+        bits.put("WARMER", WARMER);
+        bits.put("ALARM_CODE_OK", ALARM_CODE_OK);
+        bits.put("LOCK_CODE_OK", LOCK_CODE_OK);
+        bits.put("NIGHT", NIGHT);
+        bits.put("LOCK_REQUESTED", LOCK_REQUESTED);
+        bits.put("UNLOCK_REQUESTED", UNLOCK_REQUESTED);
+        return Collections.unmodifiableMap(bits);
+    }
+
+    /**
+     * Get the rules that evaluate complete states
+     * @return the rules
+     */
+    public RuleSet getRules() {
+        return rules;
+    }
+
+    /**
+     * Get the remembered outcomes of the rules
+     * @return the outcomes, or null if the rules run for every state
+     */
+    public MemoizedRuleSet getMemo() {
+        return memo;
+    }
+
     private String formatLogEntry(String entry) {
-        Long timeStamp = System.currentTimeMillis();
-        SimpleDateFormat sdf = new SimpleDateFormat("MMM dd,yyyy HH:mm");
-        return "[" + sdf.format(new Date(timeStamp)) + "]: " + entry + "\n";
+        return EvaluationLog.timestamp(System.currentTimeMillis()) + entry + "\n";
     }
 
     /**
@@ -26,107 +237,359 @@ public class StaticTartanStateEvaluator implements TartanStateEvaluator {
      */
     @Override
     public Map<String, Object> evaluateState(Map<String, Object> inState, StringBuffer log) {
+        HouseState state = new HouseState();
+        state.putAll(inState);
+        evaluateState(state, log);
+        return state.toMap();
+    }
 
-        // These are the state variables that reflect the current configuration of the house
-
-        Integer tempReading = null; // the current temperature
-        Integer targetTempSetting = null; // the user-desired temperature setting
-        Integer humidityReading = null; // the current humidity
-        Boolean doorState = null; // the state of the door (true if open, false if closed)
-        Boolean lightState = null; // the state of the light (true if on, false if off)
-        Boolean proximityState = null; // the state of the proximity sensor (true of house occupied, false if vacant)
-        Boolean arrivingProximityState = null; // the state of the proximity sensor when arriving home
-        Boolean alarmState = null; // the alarm state (true if enabled, false if disabled)
-        Boolean humidifierState = null; // the humidifier state (true if on, false if off)
-        Boolean heaterOnState = null; // the heater state (true if on, false if off)
-        Boolean chillerOnState = null; // the chiller state (true if on, false if off)
-        Boolean alarmActiveState = null; // the alarm active state (true if alarm sounding, false if alarm not sounding)
-        Boolean awayTimerState = false;  // assume that the away timer did not trigger this evaluation
-        Boolean awayTimerAlreadySet = false;
-        String alarmPassCode = null;
-        String hvacSetting = null; // the HVAC mode setting, either Heater or Chiller
-        String givenPassCode = "";
-        
-        Boolean smartDoorLockState = null; // the smart door lock state (true if locked, false if unlocked)
-        Boolean lockElectronicOperationEnabled = null; // the electronic operation of the lock (true if enabled, false if disabled)
-        Boolean lockKeylessEntryEnabled = null; // the keyless entry of the lock (true if enabled, false if disabled)
-        String doorRequest = null; // the door request (LOCK or UNLOCK)
-        String lockPassCode = ""; // the passcode to lock or unlock the door
-        String givenLockPassCode = ""; // the passcode given to lock or unlock the door
-        Boolean lockNightLockEnabled = null; // // the night lock feature of the smart lock (true if enabled, false if disabled)
-        Integer nightStartTime = null; // the night mode start time (24-hour format)
-        Integer nightEndTime = null; // the night mode end time (24-hour format)
-        Integer currentTime = null; // the current time (24-hour format)
-        Boolean lockIntruderDefenseMode = false; // the intruder sensor mode (true if enabled, false if disabled)
-        Boolean intruderDetectedSensor = false; // the intruder detected sensor (true if detected, false if not detected)
-        Boolean panelMessage = false; // the message displayed on the panel
+    /**
+     * Ensure the requested state is permitted, in place. The evaluated state holds the house fields, the
+     * away timer, the passcodes, the target temperature and the night times. A complete state is evaluated by
+     * the compiled rules; a state that lacks values goes through {@link #interpretState} so that it fails, or
+     * not, exactly as it always has
+     *
+     * @param state The new state to evaluate; replaced by the evaluated state
+     * @param log The log of state evaluations
+     * @throws NullPointerException if the state lacks a value the evaluation needs. The state is then
+     * partly evaluated
+     */
+    @Override
+    public void evaluateState(HouseState state, StringBuffer log) {
+        if (!isComplete(state)) {
+            interpretState(state, log);
+            return;
+        }
+        String prefix = EvaluationLog.timestamp(System.currentTimeMillis());
+        int target = state.getInt(TARGET_TEMP);
+        int temperature = state.getTemperature();
+        evaluateComplete(state, message -> log.append(prefix)
+                .append(EvaluationLog.format(message, target, temperature)).append('\n'), null);
+    }
 
+    /**
+     * Ensure the requested state is permitted, in place, recording the messages of the compiled rules
+     * without formatting them. Nothing is recorded if the log is disabled
+     *
+     * @param state The new state to evaluate; replaced by the evaluated state
+     * @param log The log of the house
+     * @throws NullPointerException if the state lacks a value the evaluation needs. The state is then
+     * partly evaluated
+     */
+    @Override
+    public void evaluateState(HouseState state, EvaluationLog log) {
+        evaluateState(state, log, null);
+    }
+
+    /**
+     * Ensure the requested state is permitted, in place, running only the rules that read what changed since
+     * the last evaluation of the same house. Only the messages of those rules are recorded
+     *
+     * @param state The new state to evaluate; replaced by the evaluated state
+     * @param log The log of the house
+     * @param trace What the rules did on the last evaluation of the house, or null to run them all
+     * @throws NullPointerException if the state lacks a value the evaluation needs. The state is then
+     * partly evaluated
+     */
+    @Override
+    public void evaluateState(HouseState state, EvaluationLog log, RuleTrace trace) {
+        if (!isComplete(state)) {
+            if (trace != null) {
+                trace.reset();
+            }
+            StringBuffer text = new StringBuffer();
+            try {
+                interpretState(state, text);
+            } finally {
+                log.recordText(text);
+            }
+            return;
+        }
+        if (!log.isEnabled()) {
+            evaluateComplete(state, message -> { }, trace);
+            return;
+        }
+        long time = System.currentTimeMillis();
+        int target = state.getInt(TARGET_TEMP);
+        int temperature = state.getTemperature();
+        evaluateComplete(state, message -> log.record(time, message, target, temperature), trace);
+    }
+
+    /**
+     * Evaluate a complete state with the compiled rules
+     * @param state the state to evaluate; replaced by the evaluated state
+     * @param logger receives the messages of the rules that fire, with the temperatures not filled in
+     * @param trace what the rules did on the last evaluation of the house, or null to run them all
+     */
+    private void evaluateComplete(HouseState state, Consumer<String> logger, RuleTrace trace) {
         System.out.println("Evaluating new state statically");
 
-        Set<String> keys = inState.keySet();
-        for (String key : keys) {
-
-            if (key.equals(IoTValues.TEMP_READING)) {
-                tempReading = (Integer) inState.get(key);
-            } else if (key.equals(IoTValues.HUMIDITY_READING)) {
-                humidityReading = (Integer) inState.get(key);
-            } else if (key.equals(IoTValues.TARGET_TEMP)) {
-                targetTempSetting = (Integer) inState.get(key);
-            } else if (key.equals(IoTValues.HUMIDIFIER_STATE)) {
-                humidifierState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.DOOR_STATE)) {
-                doorState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.LIGHT_STATE)) {
-                lightState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.PROXIMITY_STATE)) {
-                proximityState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.ALARM_STATE)) {
-                alarmState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.HEATER_STATE)) {
-                heaterOnState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.CHILLER_STATE)) {
-                chillerOnState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.HVAC_MODE)) {
-                hvacSetting = (String) inState.get(key);
-            } else if (key.equals(IoTValues.ALARM_PASSCODE)) {
-                alarmPassCode = (String) inState.get(key);
-            } else if (key.equals(IoTValues.GIVEN_PASSCODE)) {
-                givenPassCode = (String) inState.get(key);
-            } else if (key.equals(IoTValues.AWAY_TIMER)) {
-                // This is a hack!
-                awayTimerState = (Boolean) inState.getOrDefault(key, false);
-             } else if (key.equals(IoTValues.ALARM_ACTIVE)) {
-                alarmActiveState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.LOCK_STATE)) {
-                smartDoorLockState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.LOCK_ELECTRONIC_OPERATION_ENABLE)) {
-                lockElectronicOperationEnabled = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.LOCK_REQUEST)) {
-                doorRequest = (String) inState.get(key);
-            } else if (key.equals(IoTValues.LOCK_GIVEN_PASSCODE)) {
-                givenLockPassCode = (String) inState.get(key);
-            } else if (key.equals(IoTValues.LOCK_PASSCODE)) {
-                lockPassCode = (String) inState.get(key);
-            } else if (key.equals(IoTValues.ARRIVING_PROXIMITY_STATE)) {
-                arrivingProximityState = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.LOCK_KEYLESS_ENTRY_ENABLE)) {
-                lockKeylessEntryEnabled = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.LOCK_INTRUDER_SENSOR_MODE)) {
-                lockIntruderDefenseMode = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.INTRUDER_DETECTION_SENSOR)) {
-                intruderDetectedSensor = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.PANEL_MESSAGE)) {
-                panelMessage = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.LOCK_NIGHT_LOCK_ENABLED)) {
-                lockNightLockEnabled = (Boolean) inState.get(key);
-            } else if (key.equals(IoTValues.NIGHT_START_TIME)) {
-                nightStartTime = (Integer) inState.get(key);
-            } else if (key.equals(IoTValues.NIGHT_END_TIME)) {
-                nightEndTime = (Integer) inState.get(key);
-            } else if (key.equals(IoTValues.CURRENT_TIME)) {
-                currentTime = (Integer) inState.get(key);
-            } 
+        int tempReading = state.getTemperature();
+        int targetTempSetting = state.getInt(TARGET_TEMP);
+        int nightStartTime = state.getInt(NIGHT_START_TIME);
+        int nightEndTime = state.getInt(NIGHT_END_TIME);
+        String givenPassCode = text(state, GIVEN_PASSCODE, "");
+        String lockPassCode = text(state, LOCK_PASSCODE, "");
+        String givenLockPassCode = text(state, LOCK_GIVEN_PASSCODE, "");
+        String doorRequest = state.getText(LOCK_REQUEST);
+
+        // the comparisons the rules need become bits next to the house state
+        long bits = state.getFlagMask() & RULE_FIELDS;
+
+        int currentTime = state.has(CURRENT_TIME) ? state.getInt(CURRENT_TIME) : -1;
+        if (currentTime == -1) {
+            bits |= CLOCK_UNSET;
+            LocalTime now = LocalTime.now();
+            currentTime = now.getHour() * 100 + now.getMinute();
+        }
+        if (tempReading < targetTempSetting) {
+            bits |= COLDER;
         }
+        if (tempReading > targetTempSetting) {
+            bits |= WARMER;
+        }
+        if (givenPassCode.compareTo(state.getText(ALARM_PASSCODE)) == 0) {
+            bits |= ALARM_CODE_OK;
+        }
+        if (givenLockPassCode.compareTo(lockPassCode) == 0) {
+            bits |= LOCK_CODE_OK;
+        }
+        if (nightStartTime > nightEndTime) { // Nighttime spans over midnight
+            if (currentTime >= nightStartTime || currentTime <= nightEndTime) {
+                bits |= NIGHT;
+            }
+        } else if (currentTime >= nightStartTime && currentTime <= nightEndTime) {
+            bits |= NIGHT;
+        }
+        if ("LOCK".equals(doorRequest)) {
+            bits |= LOCK_REQUESTED;
+        } else if ("UNLOCK".equals(doorRequest)) {
+            bits |= UNLOCK_REQUESTED;
+        }
+
+        if (memo != null && trace != null) {
+            bits = memo.evaluate(bits, trace, logger);
+        } else if (memo != null) {
+            bits = memo.evaluate(bits, logger);
+        } else if (trace != null) {
+            bits = rules.evaluate(bits, trace, logger);
+        } else {
+            bits = rules.evaluate(bits, logger);
+        }
+
+        state.setFlags(RESULT_FIELDS, bits);
+        state.setText(GIVEN_PASSCODE, givenPassCode);
+        state.setText(LOCK_REQUEST, "");
+        state.setText(LOCK_GIVEN_PASSCODE, "");
+        state.setText(LOCK_PASSCODE, lockPassCode);
+
+        // inputs only
+        state.remove(HUMIDITY_READING);
+        state.remove(ALARM_DELAY);
+        state.remove(CURRENT_TIME);
+    }
+
+    /**
+     * Ensure the requested states of many houses are permitted, in place. The houses with a complete state
+     * are evaluated together: each comparison the rules need is computed column by column, and then each
+     * block of the compiled rules runs over all of them in one pass. The other houses go through
+     * {@link #interpretState} one by one, after the complete ones. The compiled rules always run; remembered
+     * outcomes are not used, since a pass over the batch costs less than a lookup per house
+     *
+     * @param batch The new states to evaluate; replaced by the evaluated states
+     * @param logs The log of state evaluations of each house, by index in the batch. The array, or an entry in
+     * it, may be null to discard the messages
+     * @throws NullPointerException if a state lacks a value the evaluation needs. The houses after it are
+     * then not evaluated
+     */
+    @Override
+    public void evaluateStates(HouseStateBatch batch, StringBuffer[] logs) {
+        int size = batch.size();
+        long[] present = batch.getPresentMasks();
+        long[] flags = batch.getFlagMasks();
+        String[] lockRequests = batch.getTexts(LOCK_REQUEST);
+
+        // houses the rules can evaluate, and the others
+        int[] houses = new int[size];
+        int count = 0;
+        int[] incomplete = new int[size];
+        int incompleteCount = 0;
+        for (int i = 0; i < size; i++) {
+            if ((present[i] & REQUIRED_FIELDS) == REQUIRED_FIELDS && ((flags[i] & EOE) == 0 || lockRequests[i] != null)) {
+                houses[count++] = i;
+            } else {
+                incomplete[incompleteCount++] = i;
+            }
+        }
+
+        if (count > 0) {
+            System.out.println("Evaluating " + count + " new states statically");
+            evaluateComplete(batch, houses, count, logs);
+        }
+
+        HouseState state = new HouseState();
+        for (int k = 0; k < incompleteCount; k++) {
+            int i = incomplete[k];
+            batch.get(i, state);
+            interpretState(state, logs != null && logs[i] != null ? logs[i] : new StringBuffer());
+            batch.set(i, state);
+        }
+    }
+
+    private void evaluateComplete(HouseStateBatch batch, int[] houses, int count, StringBuffer[] logs) {
+        long[] present = batch.getPresentMasks();
+        long[] flags = batch.getFlagMasks();
+        int[] temperatures = batch.getNumbers(TEMP_READING);
+        int[] targets = batch.getNumbers(TARGET_TEMP);
+        int[] nightStarts = batch.getNumbers(NIGHT_START_TIME);
+        int[] nightEnds = batch.getNumbers(NIGHT_END_TIME);
+        int[] currentTimes = batch.getNumbers(CURRENT_TIME);
+        String[] givenPassCodes = batch.getTexts(GIVEN_PASSCODE);
+        String[] alarmPassCodes = batch.getTexts(ALARM_PASSCODE);
+        String[] lockPassCodes = batch.getTexts(LOCK_PASSCODE);
+        String[] givenLockPassCodes = batch.getTexts(LOCK_GIVEN_PASSCODE);
+        String[] lockRequests = batch.getTexts(LOCK_REQUEST);
+        long currentTimeMask = CURRENT_TIME.mask();
+
+        LocalTime now = LocalTime.now();
+        int clock = now.getHour() * 100 + now.getMinute();
+
+        // the comparisons the rules need become bits next to the house state, one column at a time
+        long[] bits = new long[count];
+        for (int k = 0; k < count; k++) {
+            bits[k] = flags[houses[k]] & RULE_FIELDS;
+        }
+        for (int k = 0; k < count; k++) {
+            int i = houses[k];
+            int temperature = temperatures[i];
+            int target = targets[i];
+            bits[k] |= (temperature < target ? COLDER : 0L) | (temperature > target ? WARMER : 0L);
+        }
+        for (int k = 0; k < count; k++) {
+            int i = houses[k];
+            int currentTime = (present[i] & currentTimeMask) != 0 ? currentTimes[i] : -1;
+            if (currentTime == -1) {
+                bits[k] |= CLOCK_UNSET;
+                currentTime = clock;
+            }
+            int start = nightStarts[i];
+            int end = nightEnds[i];
+            boolean night = start > end // Nighttime spans over midnight
+                    ? currentTime >= start || currentTime <= end
+                    : currentTime >= start && currentTime <= end;
+            bits[k] |= night ? NIGHT : 0L;
+        }
+        for (int k = 0; k < count; k++) {
+            int i = houses[k];
+            String givenPassCode = Objects.requireNonNullElse(givenPassCodes[i], "");
+            String lockPassCode = Objects.requireNonNullElse(lockPassCodes[i], "");
+            String givenLockPassCode = Objects.requireNonNullElse(givenLockPassCodes[i], "");
+            if (givenPassCode.compareTo(alarmPassCodes[i]) == 0) {
+                bits[k] |= ALARM_CODE_OK;
+            }
+            if (givenLockPassCode.compareTo(lockPassCode) == 0) {
+                bits[k] |= LOCK_CODE_OK;
+            }
+            if ("LOCK".equals(lockRequests[i])) {
+                bits[k] |= LOCK_REQUESTED;
+            } else if ("UNLOCK".equals(lockRequests[i])) {
+                bits[k] |= UNLOCK_REQUESTED;
+            }
+        }
+
+        short[] fired = logs != null ? new short[rules.getBlockCount() * count] : null;
+        rules.evaluate(bits, count, fired);
+
+        long resultMask = RESULT_FIELDS | GIVEN_PASSCODE.mask() | LOCK_REQUEST.mask() | LOCK_GIVEN_PASSCODE.mask()
+                | LOCK_PASSCODE.mask();
+        long inputMask = HUMIDITY_READING.mask() | ALARM_DELAY.mask() | currentTimeMask;
+        int[] humidities = batch.getNumbers(HUMIDITY_READING);
+        int[] alarmDelays = batch.getNumbers(ALARM_DELAY);
+        for (int k = 0; k < count; k++) {
+            int i = houses[k];
+            present[i] = (present[i] | resultMask) & ~inputMask;
+            flags[i] = ((flags[i] & ~RESULT_FIELDS) | (bits[k] & RESULT_FIELDS)) & ~inputMask;
+            humidities[i] = 0;
+            alarmDelays[i] = 0;
+            currentTimes[i] = 0;
+            givenPassCodes[i] = Objects.requireNonNullElse(givenPassCodes[i], "");
+            lockPassCodes[i] = Objects.requireNonNullElse(lockPassCodes[i], "");
+            givenLockPassCodes[i] = "";
+            lockRequests[i] = "";
+        }
+
+        if (fired == null) {
+            return;
+        }
+        String prefix = EvaluationLog.timestamp(System.currentTimeMillis());
+        for (int k = 0; k < count; k++) {
+            StringBuffer log = logs[houses[k]];
+            if (log == null) {
+                continue;
+            }
+            int target = targets[houses[k]];
+            int temperature = temperatures[houses[k]];
+            rules.replay(fired, count, k, message -> log.append(prefix)
+                    .append(EvaluationLog.format(message, target, temperature)).append('\n'));
+        }
+    }
+
+    /**
+     * Check if a state has every value the compiled rules need
+     * @param state the state to evaluate
+     * @return true if the rules can evaluate the state, false if it must be interpreted
+     */
+    private static boolean isComplete(HouseState state) {
+        return (state.getPresentMask() & REQUIRED_FIELDS) == REQUIRED_FIELDS
+                && (!state.getFlag(LOCK_ELECTRONIC_OPERATION_ENABLE) || state.has(LOCK_REQUEST));
+    }
+
+    /**
+     * Ensure the requested state is permitted, in place, by running the rules as written out in code. This
+     * is the evaluation the compiled rules reproduce
+     *
+     * @param state The new state to evaluate; replaced by the evaluated state
+     * @param log The log of state evaluations
+     * @throws NullPointerException if the state lacks a value the evaluation needs. The state is then
+     * partly evaluated
+     */
+    void interpretState(HouseState state, StringBuffer log) {
+
+        // These are the state variables that reflect the current configuration of the house. A variable is
+        // null when the state has no value for it, just as when the state was a map
+
+        Integer tempReading = number(state, TEMP_READING); // the current temperature
+        Integer targetTempSetting = number(state, TARGET_TEMP); // the user-desired temperature setting
+        Boolean doorState = flag(state, DOOR_STATE); // the state of the door (true if open, false if closed)
+        Boolean lightState = flag(state, LIGHT_STATE); // the state of the light (true if on, false if off)
+        Boolean proximityState = flag(state, PROXIMITY_STATE); // the state of the proximity sensor (true of house occupied, false if vacant)
+        Boolean arrivingProximityState = flag(state, ARRIVING_PROXIMITY_STATE); // the state of the proximity sensor when arriving home
+        Boolean alarmState = flag(state, ALARM_STATE); // the alarm state (true if enabled, false if disabled)
+        Boolean humidifierState = flag(state, HUMIDIFIER_STATE); // the humidifier state (true if on, false if off)
+        Boolean heaterOnState = flag(state, HEATER_STATE); // the heater state (true if on, false if off)
+        Boolean chillerOnState = flag(state, CHILLER_STATE); // the chiller state (true if on, false if off)
+        Boolean alarmActiveState = flag(state, ALARM_ACTIVE); // the alarm active state (true if alarm sounding, false if alarm not sounding)
+        Boolean awayTimerState = state.getFlag(AWAY_TIMER);  // assume that the away timer did not trigger this evaluation
+        String alarmPassCode = state.getText(ALARM_PASSCODE);
+        String hvacSetting = state.has(HVAC_MODE) // the HVAC mode setting, either Heater or Chiller
+                ? (state.getFlag(HVAC_MODE) ? HouseState.HVAC_HEATER : HouseState.HVAC_CHILLER) : null;
+        String givenPassCode = text(state, GIVEN_PASSCODE, "");
+
+        Boolean smartDoorLockState = flag(state, LOCK_STATE); // the smart door lock state (true if locked, false if unlocked)
+        Boolean lockElectronicOperationEnabled = flag(state, LOCK_ELECTRONIC_OPERATION_ENABLE); // the electronic operation of the lock (true if enabled, false if disabled)
+        Boolean lockKeylessEntryEnabled = flag(state, LOCK_KEYLESS_ENTRY_ENABLE); // the keyless entry of the lock (true if enabled, false if disabled)
+        String doorRequest = state.getText(LOCK_REQUEST); // the door request (LOCK or UNLOCK)
+        String lockPassCode = text(state, LOCK_PASSCODE, ""); // the passcode to lock or unlock the door
+        String givenLockPassCode = text(state, LOCK_GIVEN_PASSCODE, ""); // the passcode given to lock or unlock the door
+        Boolean lockNightLockEnabled = flag(state, LOCK_NIGHT_LOCK_ENABLED); // // the night lock feature of the smart lock (true if enabled, false if disabled)
+        Integer nightStartTime = number(state, NIGHT_START_TIME); // the night mode start time (24-hour format)
+        Integer nightEndTime = number(state, NIGHT_END_TIME); // the night mode end time (24-hour format)
+        Integer currentTime = number(state, CURRENT_TIME); // the current time (24-hour format)
+        Boolean lockIntruderDefenseMode = state.getFlag(LOCK_INTRUDER_SENSOR_MODE); // the intruder sensor mode (true if enabled, false if disabled)
+        Boolean intruderDetectedSensor = state.getFlag(INTRUDER_DETECTION_SENSOR); // the intruder detected sensor (true if detected, false if not detected)
+        Boolean panelMessage = false; // the message displayed on the panel
+
+        System.out.println("Evaluating new state statically");
 
         if (currentTime == null || currentTime == -1) {
             log.append(formatLogEntry("Current time not set, read from system"));
@@ -426,34 +889,63 @@ public class StaticTartanStateEvaluator implements TartanStateEvaluator {
             log.append(formatLogEntry("Panel Message: All clear"));
         }
 
-        Map<String, Object> newState = new Hashtable<>();
-        newState.put(IoTValues.DOOR_STATE, doorState);
-        newState.put(IoTValues.AWAY_TIMER, awayTimerState);
-        newState.put(IoTValues.LIGHT_STATE, lightState);
-        newState.put(IoTValues.PROXIMITY_STATE, proximityState);
-        newState.put(IoTValues.ALARM_STATE, alarmState);
-        newState.put(IoTValues.HUMIDIFIER_STATE, humidifierState);
-        newState.put(IoTValues.HEATER_STATE, heaterOnState);
-        newState.put(IoTValues.CHILLER_STATE, chillerOnState);
-        newState.put(IoTValues.ALARM_ACTIVE, alarmActiveState);
-        newState.put(IoTValues.HVAC_MODE, hvacSetting);
-        newState.put(IoTValues.ALARM_PASSCODE, alarmPassCode);
-        newState.put(IoTValues.GIVEN_PASSCODE, givenPassCode);
-        newState.put(IoTValues.LOCK_STATE, smartDoorLockState);
-        newState.put(IoTValues.LOCK_ELECTRONIC_OPERATION_ENABLE, lockElectronicOperationEnabled);
-        newState.put(IoTValues.LOCK_KEYLESS_ENTRY_ENABLE, lockKeylessEntryEnabled);
-        newState.put(IoTValues.ARRIVING_PROXIMITY_STATE, arrivingProximityState);
-        newState.put(IoTValues.LOCK_REQUEST, "");
-        newState.put(IoTValues.LOCK_GIVEN_PASSCODE, "");
-        newState.put(IoTValues.LOCK_PASSCODE, lockPassCode);
-        newState.put(IoTValues.LOCK_NIGHT_LOCK_ENABLED, lockNightLockEnabled);
-        newState.put(IoTValues.NIGHT_START_TIME, nightStartTime);
-        newState.put(IoTValues.NIGHT_END_TIME, nightEndTime);
-        newState.put(IoTValues.LOCK_INTRUDER_SENSOR_MODE, lockIntruderDefenseMode);
-        newState.put(IoTValues.INTRUDER_DETECTION_SENSOR, intruderDetectedSensor);
-        newState.put(IoTValues.PANEL_MESSAGE, panelMessage);
-        newState.put(IoTValues.TEMP_READING, tempReading);
-        newState.put(IoTValues.TARGET_TEMP, targetTempSetting);
-        return newState; 
+        // the sensors and settings that were not changed keep their values; a missing value fails just as
+        // it did when the evaluated state was a Hashtable
+        putFlag(state, DOOR_STATE, doorState);
+        putFlag(state, AWAY_TIMER, awayTimerState);
+        putFlag(state, LIGHT_STATE, lightState);
+        putFlag(state, PROXIMITY_STATE, proximityState);
+        putFlag(state, ALARM_STATE, alarmState);
+        putFlag(state, HUMIDIFIER_STATE, humidifierState);
+        putFlag(state, HEATER_STATE, heaterOnState);
+        putFlag(state, CHILLER_STATE, chillerOnState);
+        putFlag(state, ALARM_ACTIVE, alarmActiveState);
+        putFlag(state, HVAC_MODE, hvacSetting.equals(HouseState.HVAC_HEATER));
+        putText(state, ALARM_PASSCODE, alarmPassCode);
+        putText(state, GIVEN_PASSCODE, givenPassCode);
+        putFlag(state, LOCK_STATE, smartDoorLockState);
+        putFlag(state, LOCK_ELECTRONIC_OPERATION_ENABLE, lockElectronicOperationEnabled);
+        putFlag(state, LOCK_KEYLESS_ENTRY_ENABLE, lockKeylessEntryEnabled);
+        putFlag(state, ARRIVING_PROXIMITY_STATE, arrivingProximityState);
+        putText(state, LOCK_REQUEST, "");
+        putText(state, LOCK_GIVEN_PASSCODE, "");
+        putText(state, LOCK_PASSCODE, lockPassCode);
+        putFlag(state, LOCK_NIGHT_LOCK_ENABLED, lockNightLockEnabled);
+        putNumber(state, NIGHT_START_TIME, nightStartTime);
+        putNumber(state, NIGHT_END_TIME, nightEndTime);
+        putFlag(state, LOCK_INTRUDER_SENSOR_MODE, lockIntruderDefenseMode);
+        putFlag(state, INTRUDER_DETECTION_SENSOR, intruderDetectedSensor);
+        putFlag(state, PANEL_MESSAGE, panelMessage);
+        putNumber(state, TEMP_READING, tempReading);
+        putNumber(state, TARGET_TEMP, targetTempSetting);
+
+        // inputs only
+        state.remove(HUMIDITY_READING);
+        state.remove(ALARM_DELAY);
+        state.remove(CURRENT_TIME);
+    }
+
+    private static Boolean flag(HouseState state, HouseStateField field) {
+        return state.has(field) ? state.getFlag(field) : null;
+    }
+
+    private static Integer number(HouseState state, HouseStateField field) {
+        return state.has(field) ? state.getInt(field) : null;
+    }
+
+    private static String text(HouseState state, HouseStateField field, String otherwise) {
+        return state.has(field) ? state.getText(field) : otherwise;
+    }
+
+    private static void putFlag(HouseState state, HouseStateField field, Boolean value) {
+        state.setFlag(field, Objects.requireNonNull(value, field.getKey()));
+    }
+
+    private static void putNumber(HouseState state, HouseStateField field, Integer value) {
+        state.setInt(field, Objects.requireNonNull(value, field.getKey()));
+    }
+
+    private static void putText(HouseState state, HouseStateField field, String value) {
+        state.setText(field, Objects.requireNonNull(value, field.getKey()));
     }
 }
@@ -1,11 +1,15 @@
 package tartan.smarthome.resources;
 
+import tartan.smarthome.resources.iotcontroller.EvaluationLog;
+import tartan.smarthome.resources.iotcontroller.HousePollingScheduler;
+import tartan.smarthome.resources.iotcontroller.HouseState;
 import tartan.smarthome.resources.iotcontroller.IoTControlManager;
 import tartan.smarthome.resources.iotcontroller.IoTValues;
 import io.dropwizard.hibernate.UnitOfWork;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.core.TartanEventLog;
 import tartan.smarthome.core.TartanHome;
 import tartan.smarthome.core.TartanHomeData;
 import tartan.smarthome.core.TartanHomeValues;
@@ -15,9 +19,10 @@ import java.time.LocalTime;
 import java.time.temporal.ChronoUnit;
 import java.util.Hashtable;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static java.time.temporal.ChronoUnit.MILLIS;
+import static tartan.smarthome.resources.iotcontroller.HouseStateField.*;
 
 /***
  * The service layer for the Tartan Home System. Additional inputs and control mechanisms should be accessed here.
@@ -56,8 +61,13 @@ public class TartanHomeService {
 
     // status parameters
     private HomeDAO homeDAO;
+    private HousePollingScheduler pollingScheduler;
+    private TartanStateEvaluator evaluator;
     private boolean authenticated;
 
+    // the event log entries already written to the service log. Guarded by the controller
+    private long loggedCursor = 0;
+
     // historian parameters
     private Boolean logHistory;
     private int historyTimer = 60000;
@@ -67,7 +77,28 @@ public class TartanHomeService {
      * @param dao handle to a database
      */
     public TartanHomeService(HomeDAO dao) {
+        this(dao, HousePollingScheduler.getSharedScheduler());
+    }
+
+    /**
+     * Create a new Tartan Home Service
+     * @param dao handle to a database
+     * @param pollingScheduler runs the state updates for the house
+     */
+    public TartanHomeService(HomeDAO dao, HousePollingScheduler pollingScheduler) {
+        this(dao, pollingScheduler, new StaticTartanStateEvaluator());
+    }
+
+    /**
+     * Create a new Tartan Home Service
+     * @param dao handle to a database
+     * @param pollingScheduler runs the state updates for the house
+     * @param evaluator evaluates the state of the house; it may be shared with other houses
+     */
+    public TartanHomeService(HomeDAO dao, HousePollingScheduler pollingScheduler, TartanStateEvaluator evaluator) {
         this.homeDAO = dao;
+        this.pollingScheduler = pollingScheduler;
+        this.evaluator = evaluator;
     }
 
     /**
@@ -105,7 +136,12 @@ public class TartanHomeService {
         this.prevLightState = true;
 
         // Create and initialize the controller for this house
-        this.controller = new IoTControlManager(user, password, new StaticTartanStateEvaluator());
+        this.controller = new IoTControlManager(user, password, evaluator,
+                pollingScheduler);
+        this.controller.setPushUpdates(Boolean.TRUE.equals(settings.getPushUpdates()));
+        if (settings.getEventLogSize() != null) {
+            this.controller.setEventLogSize(settings.getEventLogSize());
+        }
         
         TartanHome temp = new TartanHome();
         temp.setAlarmDelay(alarmDelay);
@@ -130,16 +166,17 @@ public class TartanHomeService {
     }
 
     /**
-     * Start a thread to log house history on a delay
+     * Start a thread to log house history on a delay. It is a virtual thread if they are enabled
      */
     public void startHistorian() {
 
-        new Thread(new Runnable() {
+        pollingScheduler.startThread("historian-" + name, new Runnable() {
             @Override
             public void run() {
                 while (logHistory) {
                     try {
-                        TartanHome state = getState();
+                        // the polls and pushed updates keep the state current, so the house is not asked again
+                        TartanHome state = getLastState();
                         if (state != null) {
                             TartanHomeData home = new TartanHomeData(state);
                             LOGGER.info("Logging " + name + "@" + address + " state");
@@ -152,7 +189,7 @@ public class TartanHomeService {
                     }
                 }
             }
-        }).start();
+        });
     }
 
     /**
@@ -172,6 +209,14 @@ public class TartanHomeService {
         return name;
     }
 
+    /**
+     * Get the experiment group of this house
+     * @return the group
+     */
+    public String getGroupExperiment() {
+        return groupExperiment;
+    }
+
     public Boolean authenticate(String user, String pass) {
         this.authenticated = (this.user.equals(user) && this.password.equals(pass));
         return this.authenticated;
@@ -461,35 +506,54 @@ public class TartanHomeService {
     }
 
     /**
-     * Set the house state in the hardware
+     * Set the house state in the hardware and wait for the house to answer. The house is waited on outside the
+     * monitor, so a virtual thread waiting does not pin its carrier
      * @param h the new state
-     * @return true
+     * @return true if the house accepted the new state; false otherwise
      */
     public Boolean setState(TartanHome h) {
+        return setStateAsync(h).join();
+    }
+
+    /**
+     * Set the house state in the hardware without waiting for the house to answer
+     * @param h the new state
+     * @return true if the house accepted the new state; false otherwise
+     */
+    public CompletableFuture<Boolean> setStateAsync(TartanHome h) {
+        Map<String, Object> iotState;
         synchronized (controller) {
-                        
-            Map<String, Object> userSettings = new Hashtable<String, Object>();
-            if (h.getAlarmDelay()!=null) {
-                this.alarmDelay = h.getAlarmDelay();
-                userSettings.put(IoTValues.ALARM_DELAY, Integer.parseInt(this.alarmDelay)); 
+            controller.updateSettings(toUserSettings(h));
+            iotState = toIotState(h);
+        }
+        return controller.processStateUpdateAsync(iotState);
+    }
 
-            }
-            if (h.getTargetTemp()!=null) {
-                this.targetTemp = h.getTargetTemp();
-                userSettings.put(IoTValues.TARGET_TEMP, Integer.parseInt(this.targetTemp)); 
-            }           
-            if (h.getNightStartTime()!=null) {
-                this.nightStartTime = h.getNightStartTime();
-                userSettings.put(IoTValues.NIGHT_START_TIME, Integer.parseInt(this.nightStartTime)); 
-            }
-            if (h.getNightEndTime()!=null) {
-                this.nightEndTime = h.getNightEndTime();
-                userSettings.put(IoTValues.NIGHT_END_TIME, Integer.parseInt(this.nightEndTime)); 
-            }
-            controller.updateSettings(userSettings);  
-            controller.processStateUpdate(toIotState(h));  
+    /**
+     * Collect the user settings carried by a state update
+     * @param h the new state
+     * @return the settings that were set in the update
+     */
+    private Map<String, Object> toUserSettings(TartanHome h) {
+        Map<String, Object> userSettings = new Hashtable<String, Object>();
+        if (h.getAlarmDelay()!=null) {
+            this.alarmDelay = h.getAlarmDelay();
+            userSettings.put(IoTValues.ALARM_DELAY, Integer.parseInt(this.alarmDelay)); 
+
+        }
+        if (h.getTargetTemp()!=null) {
+            this.targetTemp = h.getTargetTemp();
+            userSettings.put(IoTValues.TARGET_TEMP, Integer.parseInt(this.targetTemp)); 
+        }           
+        if (h.getNightStartTime()!=null) {
+            this.nightStartTime = h.getNightStartTime();
+            userSettings.put(IoTValues.NIGHT_START_TIME, Integer.parseInt(this.nightStartTime)); 
+        }
+        if (h.getNightEndTime()!=null) {
+            this.nightEndTime = h.getNightEndTime();
+            userSettings.put(IoTValues.NIGHT_END_TIME, Integer.parseInt(this.nightEndTime)); 
         }
-        return true;
+        return userSettings;
     }
 
     /**
@@ -497,6 +561,67 @@ public class TartanHomeService {
      * @return the current state
      */
     public TartanHome getState() {
+        // the house is waited on outside the monitor, so a virtual thread waiting does not pin its carrier
+        HouseState state = controller.getCurrentHouseState();
+        logEvents();
+        return toTartanHome(state);
+    }
+
+    /**
+     * Get the state of the house as the last poll or pushed update left it, without contacting the house
+     * @return the last state
+     */
+    public TartanHome getLastState() {
+        HouseState state = controller.getLastHouseState();
+        logEvents();
+        return toTartanHome(state);
+    }
+
+    /**
+     * Write the event log entries recorded since the last call to the service log
+     */
+    private void logEvents() {
+        synchronized (controller) {
+            if (LOGGER.isInfoEnabled()) {
+                EvaluationLog.Page page = controller.getEventLog().read(loggedCursor);
+                loggedCursor = page.getNext();
+                if (page.getMissed() > 0) {
+                    LOGGER.info(page.getMissed() + " log entries were overwritten before they were logged");
+                }
+                for (String l : page.getLines()) {
+                    LOGGER.info(l);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetch the event log entries recorded since a cursor
+     * @param cursor 0 for the whole log, or the next cursor of the previous read
+     * @return the new entries and the cursor for the next read
+     */
+    public TartanEventLog getEventLog(long cursor) {
+        EvaluationLog log = controller.getEventLog();
+        EvaluationLog.Page page = log.read(cursor);
+        return new TartanEventLog(name, page.getLines(), page.getNext(), page.getMissed(),
+                log.getOverwrittenCount());
+    }
+
+    /**
+     * Fetch the current state of the house without blocking the caller while the house is contacted
+     * @return the current state
+     */
+    public CompletableFuture<TartanHome> getStateAsync() {
+        return controller.getCurrentHouseStateAsync().thenApplyAsync(this::toTartanHome,
+                pollingScheduler.getExecutor());
+    }
+
+    /**
+     * Convert the state reported by the house to the home model
+     * @param state the house state, or null if the house did not answer
+     * @return the home model
+     */
+    TartanHome toTartanHome(HouseState state) {
 
         TartanHome tartanHome = new TartanHome();
 
@@ -512,13 +637,6 @@ public class TartanHomeService {
         tartanHome.setAuthenticated(String.valueOf(this.authenticated));
         tartanHome.setGroupExperiment(this.groupExperiment);
 
-        Map<String, Object> state = null;
-        synchronized (controller) {
-            state = controller.getCurrentState();            
-            for (String l : controller.getLogMessages()) {
-                LOGGER.info(l);
-            }
-        }
         if (state == null) {
             LOGGER.info("zUsing default state");
             // There is no state, but something must be returned.
@@ -548,172 +666,110 @@ public class TartanHomeService {
         }
 
         // A valid state was found, so use it
+        LOGGER.info("State: " + state);
 
-        Set<String> keys = state.keySet();
-        for (String key : keys) {
-            LOGGER.info("State element: " + key + "=" + state.get(key));
-            if (key.equals(IoTValues.TEMP_READING)) {
-                tartanHome.setTemperature(String.valueOf(state.get(key)));
-            } else if (key.equals(IoTValues.HUMIDITY_READING)) {
-                tartanHome.setHumidity(String.valueOf(state.get(key)));
-            }
-            else if (key.equals(IoTValues.TARGET_TEMP)) {
-                tartanHome.setTargetTemp(String.valueOf(state.get(key)));
-            } else if(key.equals(IoTValues.NIGHT_START_TIME)) {
-                tartanHome.setNightStartTime(String.valueOf(state.get(key)));
-            } else if(key.equals(IoTValues.NIGHT_END_TIME)) {
-                tartanHome.setNightEndTime(String.valueOf(state.get(key)));
-            } else if (key.equals(IoTValues.HUMIDIFIER_STATE)) {
-                Boolean humidifierState = (Boolean)state.get(key);
-                if (humidifierState) {
-                    tartanHome.setHumidifier(String.valueOf(TartanHomeValues.ON));
-                } else {
-                    tartanHome.setHumidifier(String.valueOf(TartanHomeValues.OFF));
-                }
-            } else if (key.equals(IoTValues.DOOR_STATE)) {
-                Boolean doorState = (Boolean)state.get(key);
-                if (doorState) {
-                    tartanHome.setDoor(TartanHomeValues.OPEN);
-                } else {
-                    tartanHome.setDoor(TartanHomeValues.CLOSED);
-                }
-            } else if (key.equals(IoTValues.LIGHT_STATE)) {
-                Boolean lightState = (Boolean)state.get(key);
-                if (lightState) {
-                    tartanHome.setLight(TartanHomeValues.ON);
-                } else {
-                    tartanHome.setLight(TartanHomeValues.OFF);
-                }
+        if (state.has(TEMP_READING)) {
+            tartanHome.setTemperature(String.valueOf(state.getTemperature()));
+        }
+        if (state.has(HUMIDITY_READING)) {
+            tartanHome.setHumidity(String.valueOf(state.getHumidity()));
+        }
+        if (state.has(TARGET_TEMP)) {
+            tartanHome.setTargetTemp(String.valueOf(state.getInt(TARGET_TEMP)));
+        }
+        if (state.has(NIGHT_START_TIME)) {
+            tartanHome.setNightStartTime(String.valueOf(state.getInt(NIGHT_START_TIME)));
+        }
+        if (state.has(NIGHT_END_TIME)) {
+            tartanHome.setNightEndTime(String.valueOf(state.getInt(NIGHT_END_TIME)));
+        }
+        if (state.has(HUMIDIFIER_STATE)) {
+            tartanHome.setHumidifier(state.getFlag(HUMIDIFIER_STATE) ? TartanHomeValues.ON : TartanHomeValues.OFF);
+        }
+        if (state.has(DOOR_STATE)) {
+            tartanHome.setDoor(state.getFlag(DOOR_STATE) ? TartanHomeValues.OPEN : TartanHomeValues.CLOSED);
+        }
+        if (state.has(LIGHT_STATE)) {
+            boolean currentState = state.getFlag(LIGHT_STATE);      // true = on, false = off
+            boolean previousState = this.prevLightState;  // same, true/false
 
-                boolean currentState = lightState;      // true = on, false = off
-                boolean previousState = this.prevLightState;  // same, true/false
+            tartanHome.setLight(currentState ? TartanHomeValues.ON : TartanHomeValues.OFF);
 
-                // Light just turned ON
-                if (currentState && !previousState) {
-                    // record the time we turned on
-                    this.timeLightMinutesUpdated = LocalTime.now();
-                }
-                // Light remains ON
-                else if (currentState && previousState) {
-                    // accumulate usage
-                    LocalTime now = LocalTime.now();
-                    Long diff = this.timeLightMinutesUpdated.until(now, ChronoUnit.MILLIS);
-                    this.timeLightMinutesUpdated = now;
-                    this.lightsOnDuration += diff;
-                }
-                // Light just turned OFF
-                else if (!currentState && previousState) {
-                    // do one final accumulation for that on-cycle
-                    LocalTime now = LocalTime.now();
-                    Long diff = this.timeLightMinutesUpdated.until(now, ChronoUnit.MILLIS);
-                    this.timeLightMinutesUpdated = now;
-                    this.lightsOnDuration += diff;
-                }
-                // If it's OFF and stays OFF, do nothing
-                
-                tartanHome.setMinutesLightsOn(lightsOnDuration);
-                this.prevLightState = currentState;
-
-            } else if (key.equals(IoTValues.PROXIMITY_STATE)) {
-                Boolean proxState = (Boolean)state.get(key);
-                if (proxState) {
-                    tartanHome.setProximity(TartanHomeValues.OCCUPIED);
-                } else {
-                    tartanHome.setProximity(TartanHomeValues.EMPTY);
-                }
-            } else if (key.equals(IoTValues.LOCK_STATE)) {
-                Boolean lockState = (Boolean)state.get(key);
-                if (lockState) {
-                    tartanHome.setDoorLock(TartanHomeValues.LOCK);
-                } else {
-                    tartanHome.setDoorLock(TartanHomeValues.UNLOCK);
-                }
-            } else if (key.equals(IoTValues.ARRIVING_PROXIMITY_STATE)) {
-                Boolean arrivingProxState = (Boolean)state.get(key);
-                if (arrivingProxState) {
-                    tartanHome.setArrivingProximity(TartanHomeValues.ARRIVING);
-                } else {
-                    tartanHome.setArrivingProximity(TartanHomeValues.NOT_ARRIVING);
-                }
-            } else if (key.equals(IoTValues.LOCK_KEYLESS_ENTRY_ENABLE)) {
-                Boolean keylessEntryState = (Boolean)state.get(key);
-                if (keylessEntryState) {
-                    tartanHome.setKeyLessEntry(TartanHomeValues.ON);
-                } else {
-                    tartanHome.setKeyLessEntry(TartanHomeValues.OFF);
-                }
-            } else if (key.equals(IoTValues.LOCK_ELECTRONIC_OPERATION_ENABLE)) {
-                Boolean electronicOperationState = (Boolean)state.get(key);
-                if (electronicOperationState) {
-                    tartanHome.setElectronicOperation(TartanHomeValues.ON);
-                } else {
-                    tartanHome.setElectronicOperation(TartanHomeValues.OFF);
-                }
-            } else if (key.equals(IoTValues.LOCK_NIGHT_LOCK_ENABLED)) {
-                Boolean nightLockEnabled = (Boolean)state.get(key);
-                if (nightLockEnabled) {
-                    tartanHome.setLockNightLockEnabled(TartanHomeValues.ON);
-                } else {
-                    tartanHome.setLockNightLockEnabled(TartanHomeValues.OFF);
-                }
-            } else if (key.equals(IoTValues.LOCK_INTRUDER_SENSOR_MODE)) {
-                Boolean lockIntruderSensorMode = (Boolean)state.get(key);
-                if (lockIntruderSensorMode) {
-                    tartanHome.setLockIntruderSensorMode(TartanHomeValues.ON);
-                } else {
-                    tartanHome.setLockIntruderSensorMode(TartanHomeValues.OFF);
-                }
-            } else if (key.equals(IoTValues.INTRUDER_DETECTION_SENSOR)) {
-                Boolean intruderDetectionSensor = (Boolean)state.get(key);
-                if (intruderDetectionSensor) {
-                    tartanHome.setIntruderDetectionSensor(TartanHomeValues.ON);
-                } else {
-                    tartanHome.setIntruderDetectionSensor(TartanHomeValues.OFF);
-                }
-            } else if (key.equals(IoTValues.PANEL_MESSAGE)) {
-                Boolean panelMessage = (Boolean)state.get(key);
-                if (panelMessage) {
-                    tartanHome.setPanelMessage(TartanHomeValues.ON);
-                } else {
-                    tartanHome.setPanelMessage(TartanHomeValues.OFF);
-                }
+            // Light just turned ON
+            if (currentState && !previousState) {
+                // record the time we turned on
+                this.timeLightMinutesUpdated = LocalTime.now();
             }
-            else if (key.equals(IoTValues.ALARM_STATE)) {
-                Boolean alarmState = (Boolean)state.get(key);
-                if (alarmState) {
-                    tartanHome.setAlarmArmed(TartanHomeValues.ARMED);
-                } else {
-                    tartanHome.setAlarmArmed(TartanHomeValues.DISARMED);
-                }
+            // Light remains ON
+            else if (currentState && previousState) {
+                // accumulate usage
+                LocalTime now = LocalTime.now();
+                Long diff = this.timeLightMinutesUpdated.until(now, ChronoUnit.MILLIS);
+                this.timeLightMinutesUpdated = now;
+                this.lightsOnDuration += diff;
             }
-            else if (key.equals(IoTValues.ALARM_ACTIVE)) {
-                Boolean alarmActiveState = (Boolean)state.get(key);
-                if (alarmActiveState) {
-                    tartanHome.setAlarmActive(TartanHomeValues.ACTIVE);
-                } else {
-                    tartanHome.setAlarmActive(TartanHomeValues.INACTIVE);
-                }
-
-            } else if (key.equals(IoTValues.HVAC_MODE)) {
-                if (state.get(key).equals("Heater")) {
-                    tartanHome.setHvacMode(TartanHomeValues.HEAT);
-                } else if (state.get(key).equals("Chiller")) {
-                    tartanHome.setHvacMode(TartanHomeValues.COOL);
-                }
-
-                // If either heat or chill is on then the hvac is on
-                String heaterState = String.valueOf(state.get(IoTValues.HEATER_STATE));
-                String chillerState = String.valueOf(state.get(IoTValues.CHILLER_STATE));
-
-                if (heaterState.equals("true") || chillerState.equals("true")) {
-                    tartanHome.setHvacState(TartanHomeValues.ON);
+            // Light just turned OFF
+            else if (!currentState && previousState) {
+                // do one final accumulation for that on-cycle
+                LocalTime now = LocalTime.now();
+                Long diff = this.timeLightMinutesUpdated.until(now, ChronoUnit.MILLIS);
+                this.timeLightMinutesUpdated = now;
+                this.lightsOnDuration += diff;
+            }
+            // If it's OFF and stays OFF, do nothing
 
-                } else {
-                    tartanHome.setHvacState(TartanHomeValues.OFF);
-                }
+            tartanHome.setMinutesLightsOn(lightsOnDuration);
+            this.prevLightState = currentState;
+        }
+        if (state.has(PROXIMITY_STATE)) {
+            tartanHome.setProximity(state.getFlag(PROXIMITY_STATE) ? TartanHomeValues.OCCUPIED : TartanHomeValues.EMPTY);
+        }
+        if (state.has(LOCK_STATE)) {
+            tartanHome.setDoorLock(state.getFlag(LOCK_STATE) ? TartanHomeValues.LOCK : TartanHomeValues.UNLOCK);
+        }
+        if (state.has(ARRIVING_PROXIMITY_STATE)) {
+            tartanHome.setArrivingProximity(state.getFlag(ARRIVING_PROXIMITY_STATE)
+                    ? TartanHomeValues.ARRIVING : TartanHomeValues.NOT_ARRIVING);
+        }
+        if (state.has(LOCK_KEYLESS_ENTRY_ENABLE)) {
+            tartanHome.setKeyLessEntry(state.getFlag(LOCK_KEYLESS_ENTRY_ENABLE) ? TartanHomeValues.ON : TartanHomeValues.OFF);
+        }
+        if (state.has(LOCK_ELECTRONIC_OPERATION_ENABLE)) {
+            tartanHome.setElectronicOperation(state.getFlag(LOCK_ELECTRONIC_OPERATION_ENABLE)
+                    ? TartanHomeValues.ON : TartanHomeValues.OFF);
+        }
+        if (state.has(LOCK_NIGHT_LOCK_ENABLED)) {
+            tartanHome.setLockNightLockEnabled(state.getFlag(LOCK_NIGHT_LOCK_ENABLED)
+                    ? TartanHomeValues.ON : TartanHomeValues.OFF);
+        }
+        if (state.has(LOCK_INTRUDER_SENSOR_MODE)) {
+            tartanHome.setLockIntruderSensorMode(state.getFlag(LOCK_INTRUDER_SENSOR_MODE)
+                    ? TartanHomeValues.ON : TartanHomeValues.OFF);
+        }
+        if (state.has(INTRUDER_DETECTION_SENSOR)) {
+            tartanHome.setIntruderDetectionSensor(state.getFlag(INTRUDER_DETECTION_SENSOR)
+                    ? TartanHomeValues.ON : TartanHomeValues.OFF);
+        }
+        if (state.has(PANEL_MESSAGE)) {
+            tartanHome.setPanelMessage(state.getFlag(PANEL_MESSAGE) ? TartanHomeValues.ON : TartanHomeValues.OFF);
+        }
+        if (state.has(ALARM_STATE)) {
+            tartanHome.setAlarmArmed(state.getFlag(ALARM_STATE) ? TartanHomeValues.ARMED : TartanHomeValues.DISARMED);
+        }
+        if (state.has(ALARM_ACTIVE)) {
+            tartanHome.setAlarmActive(state.getFlag(ALARM_ACTIVE) ? TartanHomeValues.ACTIVE : TartanHomeValues.INACTIVE);
+        }
+        if (state.has(HVAC_MODE)) {
+            tartanHome.setHvacMode(state.getFlag(HVAC_MODE) ? TartanHomeValues.HEAT : TartanHomeValues.COOL);
+
+            // If either heat or chill is on then the hvac is on
+            if (state.getFlag(HEATER_STATE) || state.getFlag(CHILLER_STATE)) {
+                tartanHome.setHvacState(TartanHomeValues.ON);
+            } else {
+                tartanHome.setHvacState(TartanHomeValues.OFF);
             }
         }
-        
+
         return tartanHome;
     }
 
@@ -722,7 +778,7 @@ public class TartanHomeService {
      * @param tartanHome the state
      * @return a map of settings appropriate for the hardware
      */
-    private Map<String, Object> toIotState(TartanHome tartanHome) {
+    Map<String, Object> toIotState(TartanHome tartanHome) {
         Map<String, Object> state = new Hashtable<>();
         
         if (tartanHome.getProximity()!=null) {
@@ -773,11 +829,11 @@ public class TartanHomeService {
         if (tartanHome.getAlarmActive()!=null) {
             state.put(IoTValues.ALARM_ACTIVE, toIoTAlarmActiveState(tartanHome));
         }
-        // entering a passcode also disables the alarm
+        // entering a passcode also disables the alarm. The update is left as it is, since the same one may be
+        // sent to many houses
         if (tartanHome.getAlarmPasscode()!=null) {
             state.put(IoTValues.GIVEN_PASSCODE, toIoTPasscode(tartanHome));
-            tartanHome.setAlarmArmed(TartanHomeValues.DISARMED);
-            state.put(IoTValues.ALARM_STATE, toIoTAlarmArmedState(tartanHome));
+            state.put(IoTValues.ALARM_STATE, false);
         }
         else {
             if (tartanHome.getAlarmArmed() != null) {
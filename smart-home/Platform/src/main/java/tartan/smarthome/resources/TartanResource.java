@@ -8,14 +8,20 @@ import org.slf4j.LoggerFactory;
 import tartan.smarthome.TartanHomeSettings;
 import tartan.smarthome.auth.TartanUser;
 import tartan.smarthome.core.TartanHome;
+import tartan.smarthome.core.TartanRollupData;
 import tartan.smarthome.db.HomeDAO;
+import tartan.smarthome.resources.iotcontroller.HousePollingScheduler;
 import tartan.smarthome.views.SmartHomeView;
 
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.Suspended;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The resource class implements the HTTP handlers via Jersey.
@@ -30,6 +36,9 @@ public class TartanResource {
     // There is one service per home
     private ArrayList<TartanHomeService> services;
 
+    // The history of the houses
+    private final HomeDAO homeDAO;
+
     public List<TartanHomeService> getAllServices() {
         return services;
     }
@@ -41,10 +50,36 @@ public class TartanResource {
      * @param historyTimer how often to log history
      */
     public TartanResource(List<TartanHomeSettings> houses, HomeDAO homeDAO, Integer historyTimer) {
+        this(houses, homeDAO, historyTimer, HousePollingScheduler.getSharedScheduler());
+    }
+
+    /**
+     * Create and connect to a list of houses
+     * @param houses the settings for each hose
+     * @param homeDAO the historian
+     * @param historyTimer how often to log history
+     * @param pollingScheduler runs the state updates for all houses
+     */
+    public TartanResource(List<TartanHomeSettings> houses, HomeDAO homeDAO, Integer historyTimer,
+                          HousePollingScheduler pollingScheduler) {
+        this(houses, homeDAO, historyTimer, pollingScheduler, new StaticTartanStateEvaluator());
+    }
+
+    /**
+     * Create and connect to a list of houses
+     * @param houses the settings for each hose
+     * @param homeDAO the historian
+     * @param historyTimer how often to log history
+     * @param pollingScheduler runs the state updates for all houses
+     * @param evaluator evaluates the state of every house
+     */
+    public TartanResource(List<TartanHomeSettings> houses, HomeDAO homeDAO, Integer historyTimer,
+                          HousePollingScheduler pollingScheduler, TartanStateEvaluator evaluator) {
 
+        this.homeDAO = homeDAO;
         this.services = new ArrayList<>(houses.size());
         for (TartanHomeSettings homeSettings : houses) {
-            TartanHomeService service = new TartanHomeService(homeDAO);
+            TartanHomeService service = new TartanHomeService(homeDAO, pollingScheduler, evaluator);
             service.initializeSettings(homeSettings, historyTimer);
 
             if (!service.isConnected()) {
@@ -88,26 +123,94 @@ public class TartanResource {
     }
 
     /**
-     * Fetch the current house state via HTTP GET. Managed by Jersey
+     * Fetch the current house state via HTTP GET. Managed by Jersey. The request is suspended while the
+     * house is contacted so that it does not hold a server thread for the round trip
      * @param house the house
      * @param user the user allowed to access this house
-     * @return a view of the house or null
+     * @param asyncResponse resumed with a view of the house, or no content
      */
     @GET
     @Produces({MediaType.TEXT_HTML, MediaType.APPLICATION_JSON})
     @Path("/state/{house}")
     @Timed
     @UnitOfWork
-    public SmartHomeView state(@PathParam("house") String house,  @Auth TartanUser user) {
+    public void state(@PathParam("house") String house,  @Auth TartanUser user,
+                      @Suspended AsyncResponse asyncResponse) {
         // There are better ways to check authorization, but this works fine
         if (user.getHouse().equals(house)) {
             LOGGER.info("Received a house GET for house: " + house);
             TartanHomeService service = getHomeService(house);
-            if (service == null) return null;
+            if (service != null) {
+                service.getStateAsync()
+                        .thenApply(SmartHomeView::new)
+                        .whenComplete((view, t) -> {
+                            if (t != null) {
+                                asyncResponse.resume(t);
+                            } else {
+                                asyncResponse.resume(view);
+                            }
+                        });
+                return;
+            }
+        }
+        asyncResponse.resume(Response.noContent().build());
+    }
 
-            return new SmartHomeView(service.getState());
+    /**
+     * Fetch the event log entries of a house recorded since a cursor via HTTP GET, e.g.
+     * /smarthome/log/mse?since=120. A client passes the next cursor of each answer to the following request
+     * to get only the entries it has not seen
+     * @param house the house
+     * @param since 0 for the whole log, or the next cursor of the previous answer
+     * @param user the user allowed to access this house
+     * @return the new entries, or UNAUTHORIZED
+     */
+    @GET
+    @Path("/log/{house}")
+    @Timed
+    public Response log(@PathParam("house") String house, @QueryParam("since") @DefaultValue("0") long since,
+                        @Auth TartanUser user) {
+        if (user.getHouse().equals(house)) {
+            TartanHomeService service = getHomeService(house);
+            if (service != null) {
+                return Response.ok(service.getEventLog(since)).build();
+            }
         }
-        return null;
+        return Response.status(Response.Status.UNAUTHORIZED).build();
+    }
+
+    /**
+     * Fetch the minute, hour or day rollups of a house via HTTP GET, e.g.
+     * /smarthome/rollups/mse?period=hour&amp;from=1741392000000, for dashboards that would otherwise read the
+     * whole history
+     * @param house the house
+     * @param period minute, hour or day
+     * @param from the earliest start of a rollup in milliseconds since the epoch, or 0 for a day before to
+     * @param to the time the rollups start before in milliseconds since the epoch, or 0 for now
+     * @param user the user allowed to access this house
+     * @return the rollups, oldest first, or NOT_FOUND if rollups are not kept
+     */
+    @GET
+    @Path("/rollups/{house}")
+    @Timed
+    public Response rollups(@PathParam("house") String house,
+                            @QueryParam("period") @DefaultValue(TartanRollupData.HOUR) String period,
+                            @QueryParam("from") @DefaultValue("0") long from,
+                            @QueryParam("to") @DefaultValue("0") long to,
+                            @Auth TartanUser user) {
+        if (!user.getHouse().equals(house)) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        if (homeDAO == null || !homeDAO.hasHistoryRollup()) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        if (!TartanRollupData.MINUTE.equals(period) && !TartanRollupData.HOUR.equals(period)
+                && !TartanRollupData.DAY.equals(period)) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        long end = to > 0 ? to : System.currentTimeMillis();
+        long start = from > 0 ? from : end - TimeUnit.DAYS.toMillis(1);
+        return Response.ok(homeDAO.findRollups(house, period, new Date(start), new Date(end))).build();
     }
 
     /**
@@ -136,32 +239,38 @@ public class TartanResource {
 
 
     /**
-     * update the house state via a HTTP POST. Managed by Jersey
+     * update the house state via a HTTP POST. Managed by Jersey. The request is suspended until the
+     * house has been updated
      * @param house the house
      * @param user the user allowed to access this house
      * @param h the new state
-     * @return either HTTP OK or UNAUTHORIZED
+     * @param asyncResponse resumed with either HTTP OK or UNAUTHORIZED
      */
     @POST
     @Path("/update/{house}")
     @Consumes(MediaType.APPLICATION_JSON)
     @Timed
-    public Response update(@PathParam("house") String house, @Auth TartanUser user, TartanHome h) {
+    public void update(@PathParam("house") String house, @Auth TartanUser user, TartanHome h,
+                       @Suspended AsyncResponse asyncResponse) {
         if (user.getHouse().equals(house)) {
             LOGGER.info("Received a house POST to house " + house);
             TartanHomeService service = getHomeService(house);
             if (service != null) {
                 // tell the house about the update
-                service.setState(h);
-
-                return Response
-                        .status(Response.Status.OK)
-                        .build();
+                service.setStateAsync(h).whenComplete((accepted, t) -> {
+                    if (t != null) {
+                        asyncResponse.resume(t);
+                    } else {
+                        asyncResponse.resume(Response
+                                .status(Response.Status.OK)
+                                .build());
+                    }
+                });
+                return;
             }
         }
-        return Response
+        asyncResponse.resume(Response
                 .status(Response.Status.UNAUTHORIZED)
-                .build();
+                .build());
     }
 }
-
@@ -1,8 +1,66 @@
-
 package tartan.smarthome.resources;
 
 import java.util.Map;
 
+import tartan.smarthome.resources.iotcontroller.EvaluationLog;
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.HouseStateBatch;
+import tartan.smarthome.resources.rules.RuleTrace;
+
 public interface TartanStateEvaluator {
-    public Map<String, Object> evaluateState(Map<String, Object> inState, StringBuffer log);    
-}
\ No newline at end of file
+    public Map<String, Object> evaluateState(Map<String, Object> inState, StringBuffer log);
+
+    /**
+     * Evaluate a house state in place. Evaluators that work on maps are adapted through
+     * {@link #evaluateState(Map, StringBuffer)}
+     * @param state the state to evaluate; replaced by the evaluated state
+     * @param log the log of state evaluations
+     */
+    default void evaluateState(HouseState state, StringBuffer log) {
+        Map<String, Object> newState = evaluateState(state.toMap(), log);
+        state.clear();
+        state.putAll(newState);
+    }
+
+    /**
+     * Evaluate a house state in place, recording the messages in the log of the house. By default the
+     * messages are written out as text through {@link #evaluateState(HouseState, StringBuffer)}
+     * @param state the state to evaluate; replaced by the evaluated state
+     * @param log the log of the house
+     */
+    default void evaluateState(HouseState state, EvaluationLog log) {
+        StringBuffer text = new StringBuffer();
+        try {
+            evaluateState(state, text);
+        } finally {
+            log.recordText(text);
+        }
+    }
+
+    /**
+     * Evaluate a house state in place, given what the rules did on the last evaluation of the same house, so
+     * that only the rules that read what changed need to run. By default every rule runs
+     * @param state the state to evaluate; replaced by the evaluated state
+     * @param log the log of the house
+     * @param trace what the rules did on the last evaluation of the house; updated for this one
+     */
+    default void evaluateState(HouseState state, EvaluationLog log, RuleTrace trace) {
+        evaluateState(state, log);
+    }
+
+    /**
+     * Evaluate the states of many houses in place. By default each house is evaluated in turn through
+     * {@link #evaluateState(HouseState, StringBuffer)}
+     * @param batch the states to evaluate; replaced by the evaluated states
+     * @param logs the log of state evaluations of each house, by index in the batch. The array, or an entry in
+     * it, may be null to discard the messages
+     */
+    default void evaluateStates(HouseStateBatch batch, StringBuffer[] logs) {
+        HouseState state = new HouseState();
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i, state);
+            evaluateState(state, logs != null && logs[i] != null ? logs[i] : new StringBuffer());
+            batch.set(i, state);
+        }
+    }
+}
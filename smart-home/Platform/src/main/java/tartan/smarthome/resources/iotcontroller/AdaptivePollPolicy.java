@@ -0,0 +1,65 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * Decides how long to wait before polling a house again. A house that needs attention, because its state
+ * just changed or an alarm or intruder is active, is polled at the minimum interval. Every quiet poll after
+ * that doubles the interval, up to the ceiling. Missed polls use the base interval, so the time it takes to
+ * notice an unreachable house does not depend on how quiet it was.
+ *
+ * A policy belongs to one house and is not thread safe.
+ */
+public class AdaptivePollPolicy {
+
+    private final long minIntervalMs;
+    private final long baseIntervalMs;
+    private final long maxIntervalMs;
+    private long intervalMs;
+
+    /**
+     * Create a policy
+     * @param minIntervalMs the interval for houses that need attention
+     * @param baseIntervalMs the first interval, and the interval after a missed poll
+     * @param maxIntervalMs the ceiling for quiet houses
+     */
+    public AdaptivePollPolicy(long minIntervalMs, long baseIntervalMs, long maxIntervalMs) {
+        if (minIntervalMs < 1 || baseIntervalMs < minIntervalMs || maxIntervalMs < baseIntervalMs) {
+            throw new IllegalArgumentException("Poll intervals must satisfy 0 < min <= base <= max");
+        }
+        this.minIntervalMs = minIntervalMs;
+        this.baseIntervalMs = baseIntervalMs;
+        this.maxIntervalMs = maxIntervalMs;
+        this.intervalMs = baseIntervalMs;
+    }
+
+    /**
+     * Get the current interval
+     * @return the delay before the next poll
+     */
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * Record a completed poll
+     * @param changed true if the state of the house changed
+     * @param urgent true if the house needs close watching, such as an active alarm
+     * @return the delay before the next poll
+     */
+    public long polled(boolean changed, boolean urgent) {
+        if (changed || urgent) {
+            intervalMs = minIntervalMs;
+        } else {
+            intervalMs = Math.min(maxIntervalMs, intervalMs * 2);
+        }
+        return intervalMs;
+    }
+
+    /**
+     * Record a poll that got no state from the house
+     * @return the delay before the next poll
+     */
+    public long missed() {
+        intervalMs = baseIntervalMs;
+        return intervalMs;
+    }
+}
@@ -0,0 +1,277 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.lang.invoke.VarHandle;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The event log of a house. An entry is recorded as its time, its message and the target and current
+ * temperature the message may mention, in arrays allocated up front; the text is only made when the log is
+ * read. The messages are the constants the evaluator and controller log, so recording one copies a reference.
+ *
+ * The log is a ring: once full, each entry replaces the oldest one. A log without room records nothing, and
+ * evaluators check {@link #isEnabled()} to skip logging altogether.
+ *
+ * Entries are numbered in the order they are recorded, and a reader passes the number after the last entry
+ * it saw to {@link #read(long)} to get only the newer ones. No lock is taken. A slot is claimed by setting
+ * its stamp to the entry being written, and the stamp is set again once the entry is complete, so a reader
+ * sees an entry only when it is whole and notices when it was replaced while being read. A writer only
+ * waits for another in the rare case that the log wrapped around while the previous entry for the same slot
+ * was still being written.
+ */
+public class EvaluationLog {
+
+    /** The place in a message for the target temperature */
+    public static final String TARGET = "{target}";
+
+    /** The place in a message for the current temperature */
+    public static final String TEMPERATURE = "{temperature}";
+
+    /** The time of an entry that was recorded as text, timestamps included */
+    private static final long RENDERED = Long.MIN_VALUE;
+
+    /** A timestamp for every minute, which is all the log shows */
+    private static final class Timestamp {
+        final long minute;
+        final String text;
+
+        Timestamp(long minute, String text) {
+            this.minute = minute;
+            this.text = text;
+        }
+    }
+
+    private static volatile Timestamp lastTimestamp = new Timestamp(-1, "");
+
+    private final long[] times;
+    private final String[] messages;
+    private final int[] targets;
+    private final int[] temperatures;
+
+    /** The entry in each slot: 2n+1 while entry n is written, 2n+2 once it is; 0 for none */
+    private final AtomicLongArray stamps;
+
+    /** The number of entries recorded */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * The entries a reader got from the log
+     */
+    public static final class Page {
+        private final List<String> lines;
+        private final long next;
+        private final long missed;
+
+        Page(List<String> lines, long next, long missed) {
+            this.lines = Collections.unmodifiableList(lines);
+            this.next = next;
+            this.missed = missed;
+        }
+
+        /**
+         * Get the entries as text
+         * @return the entries, oldest first
+         */
+        public List<String> getLines() {
+            return lines;
+        }
+
+        /**
+         * Get the cursor for the next read
+         * @return the number of the first entry not read
+         */
+        public long getNext() {
+            return next;
+        }
+
+        /**
+         * Get the number of entries the reader asked for that were overwritten before they could be read
+         * @return the number of entries missed
+         */
+        public long getMissed() {
+            return missed;
+        }
+    }
+
+    /**
+     * Create an empty log
+     * @param capacity the most entries to keep; 0 records nothing
+     */
+    public EvaluationLog(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative");
+        }
+        times = new long[capacity];
+        messages = new String[capacity];
+        targets = new int[capacity];
+        temperatures = new int[capacity];
+        stamps = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * Check if the log records anything
+     * @return true if entries are kept, false if they are discarded
+     */
+    public boolean isEnabled() {
+        return times.length > 0;
+    }
+
+    /**
+     * Record an entry now
+     * @param message the message
+     */
+    public void record(String message) {
+        record(System.currentTimeMillis(), message, 0, 0);
+    }
+
+    /**
+     * Record an entry
+     * @param time the time of the entry, in milliseconds since the epoch
+     * @param message the message, which may mention {@link #TARGET} and {@link #TEMPERATURE}
+     * @param target the target temperature
+     * @param temperature the current temperature
+     */
+    public void record(long time, String message, int target, int temperature) {
+        if (times.length == 0) {
+            return;
+        }
+        long n = count.getAndIncrement();
+        int i = (int) (n % times.length);
+        long writing = 2 * n + 1;
+        while (true) {
+            long stamp = stamps.get(i);
+            if (stamp > writing) {
+                return; // a later entry took the slot, so this one is already overwritten
+            }
+            if ((stamp & 1) != 0) {
+                Thread.onSpinWait(); // an earlier entry is still being written into the slot
+            } else if (stamps.compareAndSet(i, stamp, writing)) {
+                break;
+            }
+        }
+        times[i] = time;
+        messages[i] = message;
+        targets[i] = target;
+        temperatures[i] = temperature;
+        stamps.set(i, writing + 1);
+    }
+
+    /**
+     * Record entries that are already text, such as the log of an evaluator that writes its own
+     * @param text the entries, timestamps included
+     */
+    public void recordText(CharSequence text) {
+        if (times.length > 0 && text.length() > 0) {
+            record(RENDERED, text.toString(), 0, 0);
+        }
+    }
+
+    /**
+     * Get the number of entries kept
+     * @return the number of entries
+     */
+    public int size() {
+        return (int) Math.min(count.get(), times.length);
+    }
+
+    /**
+     * Get the number of entries recorded since the log was created
+     * @return the number of entries, which is also the cursor of the next entry
+     */
+    public long getRecordedCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the number of entries that were replaced by newer ones
+     * @return the number of entries overwritten
+     */
+    public long getOverwrittenCount() {
+        return Math.max(0L, count.get() - times.length);
+    }
+
+    /**
+     * Turn the entries into text
+     * @return the entries, oldest first, one line each unless they were recorded as text
+     */
+    public List<String> render() {
+        return read(0L).getLines();
+    }
+
+    /**
+     * Turn the entries recorded since a cursor into text. Reading stops before an entry that is still being
+     * written, which the next read returns
+     * @param cursor the number of the first entry wanted: 0 for all, or the cursor of the previous read. A
+     * cursor past the end of the log, such as one from before a restart, reads from the end
+     * @return the entries, and the cursor for the next read
+     */
+    public Page read(long cursor) {
+        long end = count.get();
+        long n = Math.min(Math.max(cursor, 0L), end);
+        long first = Math.max(n, end - times.length);
+        long missed = first - n;
+        List<String> lines = new ArrayList<>((int) (end - first));
+        for (n = first; n < end; n++) {
+            int i = (int) (n % times.length);
+            long written = 2 * n + 2;
+            long stamp = stamps.get(i);
+            if (stamp < written) {
+                break; // not written yet
+            }
+            if (stamp > written) {
+                missed++;
+                continue;
+            }
+            long time = times[i];
+            String message = messages[i];
+            int target = targets[i];
+            int temperature = temperatures[i];
+            VarHandle.acquireFence();
+            if (stamps.get(i) != written) {
+                missed++; // replaced while it was read
+                continue;
+            }
+            if (time == RENDERED) {
+                lines.add(message);
+            } else {
+                lines.add(timestamp(time) + format(message, target, temperature) + "\n");
+            }
+        }
+        return new Page(lines, n, missed);
+    }
+
+    /**
+     * Fill in the temperatures a message mentions
+     * @param message the message
+     * @param target the target temperature
+     * @param temperature the current temperature
+     * @return the message text
+     */
+    public static String format(String message, int target, int temperature) {
+        if (message.indexOf('{') < 0) {
+            return message;
+        }
+        return message.replace(TARGET, String.valueOf(target)).replace(TEMPERATURE, String.valueOf(temperature));
+    }
+
+    /**
+     * Get the timestamp that starts a log line
+     * @param time the time, in milliseconds since the epoch
+     * @return the timestamp, such as "[Nov 05,2015 14:30]: "
+     */
+    public static String timestamp(long time) {
+        long minute = Math.floorDiv(time, 60000L);
+        Timestamp last = lastTimestamp;
+        if (last.minute != minute) {
+            SimpleDateFormat sdf = new SimpleDateFormat("MMM dd,yyyy HH:mm");
+            last = new Timestamp(minute, "[" + sdf.format(new Date(time)) + "]: ");
+            lastTimestamp = last;
+        }
+        return last.text;
+    }
+}
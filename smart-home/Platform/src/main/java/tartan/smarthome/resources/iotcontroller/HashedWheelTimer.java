@@ -0,0 +1,259 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A timer for large numbers of mostly cancelled timeouts, such as the away timers of every house. Timeouts
+ * are kept in a ring of buckets ("the wheel") that a single thread advances one bucket per tick, so
+ * scheduling and cancelling are O(1) no matter how many timeouts are pending. Timeouts fire on the tick after
+ * their deadline, so the tick duration is the timer's precision.
+ *
+ * Tasks run on the timer thread and must be short: anything that blocks should be handed to an executor.
+ */
+public class HashedWheelTimer {
+
+    /** the tick of the shared timer; away timers are whole seconds, so this is plenty */
+    public static final long DEFAULT_TICK_MS = 100;
+
+    /** the number of buckets in the shared timer */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final int NEW = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private static HashedWheelTimer sharedTimer = null;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+
+    /** handed from scheduling threads to the timer thread */
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong pending = new AtomicLong();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    /**
+     * Get the timer shared by all houses in this JVM
+     * @return the shared timer
+     */
+    public static synchronized HashedWheelTimer getSharedTimer() {
+        if (sharedTimer == null) {
+            sharedTimer = new HashedWheelTimer("away-timer-wheel", DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+        }
+        return sharedTimer;
+    }
+
+    /**
+     * Create and start a timer
+     * @param name the name of the timer thread
+     * @param tickMs the duration of one tick
+     * @param wheelSize the number of buckets; rounded up to a power of two
+     */
+    public HashedWheelTimer(String name, long tickMs, int wheelSize) {
+        if (tickMs < 1) {
+            throw new IllegalArgumentException("The tick must be at least 1 ms");
+        }
+        if (wheelSize < 1 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid wheel size: " + wheelSize);
+        }
+        int size = Integer.highestOneBit(wheelSize - 1 == 0 ? 1 : (wheelSize - 1) << 1);
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        startTime = System.nanoTime();
+
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedule a task
+     * @param task the task, run on the timer thread
+     * @param delay how long from now to run it
+     * @param unit the unit of the delay
+     * @return the handle used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!running) {
+            throw new IllegalStateException("The timer is stopped");
+        }
+        long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+        Timeout timeout = new Timeout(task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Get the number of timeouts that have been scheduled but have neither fired nor been cancelled
+     * @return the pending count
+     */
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Stop the timer. Pending timeouts never fire
+     */
+    public void shutdown() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException ie) {
+                    continue; // running was cleared, or a spurious interrupt
+                }
+            }
+            removeCancelled();
+            addNew(tick);
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void addNew(long currentTick) {
+        Timeout t;
+        while ((t = added.poll()) != null) {
+            if (t.state.get() == CANCELLED) {
+                continue;
+            }
+            long ticks = t.deadline / tickNanos;
+            t.remainingRounds = (ticks - currentTick) / wheel.length;
+            // a timeout already past its deadline goes in the current bucket
+            wheel[(int) (Math.max(ticks, currentTick) & mask)].add(t);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    /**
+     * A scheduled task
+     */
+    public final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(NEW);
+
+        // only used by the timer thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task
+         * @return true if cancelled, false if it already fired or was cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(NEW, CANCELLED)) {
+                return false;
+            }
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(NEW, EXPIRED)) {
+                return;
+            }
+            pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                re.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The timeouts that fall on one slot of the wheel, as a doubly linked list
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        void remove(Timeout t) {
+            if (t.prev != null) {
+                t.prev.next = t.next;
+            } else {
+                head = t.next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            } else {
+                tail = t.prev;
+            }
+            t.next = t.prev = null;
+            t.bucket = null;
+        }
+
+        void expire() {
+            Timeout t = head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.remainingRounds <= 0) {
+                    remove(t);
+                    t.expire();
+                } else if (t.isCancelled()) {
+                    remove(t);
+                } else {
+                    t.remainingRounds--;
+                }
+                t = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Runs the polling cycle of every house on a small, fixed pool of threads instead of a sleeping thread per
+ * house. A cycle is asynchronous: it returns as soon as the house has been asked for its state, and the next
+ * cycle is scheduled when the previous one completes, so a slow house never holds a pool thread.
+ *
+ * The first poll of each house is offset within the polling interval using the golden ratio, so houses
+ * registered together are spread evenly over the interval rather than polled all at once.
+ *
+ * The delay before each cycle can be fixed, or chosen after every cycle, as {@link AdaptivePollPolicy} does
+ * within the interval bounds of the scheduler.
+ *
+ * With virtual threads enabled, the pool only keeps time: each cycle, and any other per-house work started
+ * through {@link #startThread(String, Runnable)}, runs on its own virtual thread, so work that blocks costs
+ * almost nothing per house.
+ */
+public class HousePollingScheduler {
+
+    /** the number of threads used by the shared scheduler */
+    public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /** the default shortest delay between polls of a house */
+    public static final long DEFAULT_MIN_POLL_INTERVAL_MS = 1000;
+
+    /** the default longest delay between polls of a quiet house */
+    public static final long DEFAULT_MAX_POLL_INTERVAL_MS = 60000;
+
+    /** the fractional part of the golden ratio */
+    private static final double GOLDEN_FRACTION = 0.6180339887498949;
+
+    private static HousePollingScheduler sharedScheduler = null;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /** runs cycles and their work; the pool itself, or a virtual thread per task */
+    private final Executor workExecutor;
+    private final boolean virtualThreads;
+
+    /** the bounds of adaptive poll intervals */
+    private final long minPollIntervalMs;
+    private final long maxPollIntervalMs;
+
+    /** counts registered houses, to pick the next offset */
+    private final AtomicInteger registrations = new AtomicInteger();
+
+    /**
+     * Get the scheduler shared by all houses in this JVM
+     * @return the shared scheduler
+     */
+    public static synchronized HousePollingScheduler getSharedScheduler() {
+        if (sharedScheduler == null) {
+            sharedScheduler = new HousePollingScheduler(DEFAULT_THREADS);
+        }
+        return sharedScheduler;
+    }
+
+    /**
+     * Create a new scheduler
+     * @param threads the number of polling threads
+     */
+    public HousePollingScheduler(int threads) {
+        this(threads, false);
+    }
+
+    /**
+     * Create a new scheduler
+     * @param threads the number of polling threads
+     * @param virtualThreads true to run house work on virtual threads, false to run it on the polling threads
+     */
+    public HousePollingScheduler(int threads, boolean virtualThreads) {
+        this(threads, virtualThreads, DEFAULT_MIN_POLL_INTERVAL_MS, DEFAULT_MAX_POLL_INTERVAL_MS);
+    }
+
+    /**
+     * Create a new scheduler
+     * @param threads the number of polling threads
+     * @param virtualThreads true to run house work on virtual threads, false to run it on the polling threads
+     * @param minPollIntervalMs the shortest delay between polls of a house that needs attention
+     * @param maxPollIntervalMs the longest delay between polls of a quiet house
+     */
+    public HousePollingScheduler(int threads, boolean virtualThreads, long minPollIntervalMs, long maxPollIntervalMs) {
+        if (minPollIntervalMs < 1 || maxPollIntervalMs < minPollIntervalMs) {
+            throw new IllegalArgumentException("Poll intervals must satisfy 0 < min <= max");
+        }
+        this.minPollIntervalMs = minPollIntervalMs;
+        this.maxPollIntervalMs = maxPollIntervalMs;
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one polling thread is required");
+        }
+        AtomicInteger count = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread t = new Thread(r, "house-poller-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        this.virtualThreads = virtualThreads;
+        this.workExecutor = virtualThreads ? VirtualThreads.newExecutor("house-worker-") : executor;
+    }
+
+    /**
+     * Check the execution mode
+     * @return true if house work runs on virtual threads
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Start a long running task for a house, on a virtual thread if they are enabled
+     * @param name the thread name
+     * @param task the task
+     * @return the started thread
+     */
+    public Thread startThread(String name, Runnable task) {
+        if (virtualThreads) {
+            return VirtualThreads.start(name, task);
+        }
+        Thread t = new Thread(task, name);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Create the poll policy for a house, within the bounds of this scheduler
+     * @param baseIntervalMs the first interval, and the interval after a missed poll
+     * @return the policy
+     */
+    public AdaptivePollPolicy newPollPolicy(long baseIntervalMs) {
+        long base = Math.max(minPollIntervalMs, Math.min(maxPollIntervalMs, baseIntervalMs));
+        return new AdaptivePollPolicy(minPollIntervalMs, base, maxPollIntervalMs);
+    }
+
+    /**
+     * Get an executor for work that is part of a polling cycle, such as evaluating the new state
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        return workExecutor;
+    }
+
+    /**
+     * Start polling a house
+     * @param cycle starts one polling cycle and returns when it completes
+     * @param intervalMs the delay between the end of one cycle and the start of the next
+     * @return the handle used to stop polling
+     */
+    public Poller schedule(Supplier<? extends CompletionStage<?>> cycle, long intervalMs) {
+        return schedule(cycle, () -> intervalMs, intervalMs);
+    }
+
+    /**
+     * Start polling a house with a delay that is chosen after each cycle
+     * @param cycle starts one polling cycle and returns when it completes
+     * @param nextDelayMs asked for the delay before the next cycle once a cycle completes
+     * @param firstIntervalMs the interval the first poll is spread over
+     * @return the handle used to stop polling
+     */
+    public Poller schedule(Supplier<? extends CompletionStage<?>> cycle, LongSupplier nextDelayMs,
+                           long firstIntervalMs) {
+        int n = registrations.getAndIncrement();
+        double fraction = (n * GOLDEN_FRACTION) % 1.0;
+        Poller poller = new Poller(cycle, nextDelayMs);
+        poller.scheduleNext((long) (fraction * firstIntervalMs));
+        return poller;
+    }
+
+    /**
+     * Stop all polling. Cycles that are running are allowed to finish
+     */
+    public void shutdown() {
+        executor.shutdown();
+        if (workExecutor != executor) {
+            ((ExecutorService) workExecutor).shutdown();
+        }
+    }
+
+    /**
+     * Wait for running cycles to finish after a shutdown
+     * @param timeout how long to wait
+     * @param unit the unit of the timeout
+     * @return true if the scheduler stopped, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!executor.awaitTermination(timeout, unit)) {
+            return false;
+        }
+        if (workExecutor != executor) {
+            return ((ExecutorService) workExecutor).awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * The polling of one house
+     */
+    public class Poller {
+        private final Supplier<? extends CompletionStage<?>> cycle;
+        private final LongSupplier nextDelayMs;
+        private volatile boolean cancelled = false;
+        private volatile ScheduledFuture<?> next = null;
+
+        private Poller(Supplier<? extends CompletionStage<?>> cycle, LongSupplier nextDelayMs) {
+            this.cycle = cycle;
+            this.nextDelayMs = nextDelayMs;
+        }
+
+        /**
+         * Stop polling. A cycle that is running is allowed to finish
+         */
+        public void cancel() {
+            cancelled = true;
+            ScheduledFuture<?> f = next;
+            if (f != null) {
+                f.cancel(false);
+            }
+        }
+
+        /**
+         * Check if polling was stopped
+         * @return true if cancelled, false otherwise
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void scheduleNext(long delayMs) {
+            if (cancelled || executor.isShutdown()) {
+                return;
+            }
+            try {
+                next = executor.schedule(this::dispatch, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                // the scheduler is shutting down
+            }
+        }
+
+        private void dispatch() {
+            if (workExecutor == executor) {
+                run();
+                return;
+            }
+            try {
+                workExecutor.execute(this::run);
+            } catch (RejectedExecutionException ree) {
+                // the scheduler is shutting down
+            }
+        }
+
+        private void run() {
+            if (cancelled) {
+                return;
+            }
+            CompletionStage<?> stage;
+            try {
+                stage = cycle.get();
+            } catch (RuntimeException re) {
+                re.printStackTrace();
+                scheduleNext(nextDelayMs.getAsLong());
+                return;
+            }
+            stage.whenComplete((r, t) -> {
+                if (t != null) {
+                    t.printStackTrace();
+                }
+                scheduleNext(nextDelayMs.getAsLong());
+            });
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * The state of a house, kept in primitives so it can be filled in place for every update and passed from the
+ * connection through evaluation without a map. Each {@link HouseStateField} is one bit: the present mask
+ * records which fields have a value and the flag mask holds the on/off values (for the HVAC mode, set means
+ * Heater). Readings, settings and times are kept as ints, and passcodes and requests as strings.
+ *
+ * Instances are reusable and not thread safe.
+ */
+public class HouseState {
+
+    public static final String HVAC_HEATER = "Heater";
+    public static final String HVAC_CHILLER = "Chiller";
+
+    // package-private so that a HouseStateBatch can copy them
+    long present = 0L;
+    long flags = 0L;
+    final int[] numbers = new int[HouseStateField.NUMBER_SLOTS];
+    final String[] texts = new String[HouseStateField.TEXT_SLOTS];
+
+    /**
+     * Forget all values so the record can be reused
+     */
+    public void clear() {
+        present = 0L;
+        flags = 0L;
+        Arrays.fill(numbers, 0);
+        Arrays.fill(texts, null);
+    }
+
+    /**
+     * Copy another state into this one
+     * @param other the state to copy
+     */
+    public void copyFrom(HouseState other) {
+        present = other.present;
+        flags = other.flags;
+        System.arraycopy(other.numbers, 0, numbers, 0, numbers.length);
+        System.arraycopy(other.texts, 0, texts, 0, texts.length);
+    }
+
+    /**
+     * Make a copy of this state
+     * @return the copy
+     */
+    public HouseState copy() {
+        HouseState copy = new HouseState();
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    /**
+     * Set the fields that have a value in another state, leaving the others as they are
+     * @param other the state to merge into this one
+     */
+    public void putAll(HouseState other) {
+        long m = other.present;
+        flags = (flags & ~m) | (other.flags & m);
+        present |= m;
+        for (HouseStateField field : HouseStateField.fields()) {
+            if ((m & field.mask()) == 0) {
+                continue;
+            }
+            switch (field.getKind()) {
+                case READING:
+                case NUMBER:
+                    numbers[field.slot()] = other.numbers[field.slot()];
+                    break;
+                case TEXT:
+                    texts[field.slot()] = other.texts[field.slot()];
+                    break;
+                default:
+            }
+        }
+    }
+
+    /**
+     * Set the fields found in a state map. Keys that are not house fields, and values of the wrong type, are
+     * ignored
+     * @param state the state map
+     */
+    public void putAll(Map<String,Object> state) {
+        for (Map.Entry<String,Object> e : state.entrySet()) {
+            HouseStateField field = HouseStateField.lookup(e.getKey());
+            if (field == null) {
+                continue;
+            }
+            Object value = e.getValue();
+            switch (field.getKind()) {
+                case READING:
+                case NUMBER:
+                    if (value instanceof Integer) {
+                        setInt(field, (Integer) value);
+                    }
+                    break;
+                case HVAC_MODE:
+                    if (value instanceof String) {
+                        setFlag(field, HVAC_HEATER.equals(value));
+                    }
+                    break;
+                case TEXT:
+                    if (value instanceof String) {
+                        setText(field, (String) value);
+                    }
+                    break;
+                default:
+                    if (value instanceof Boolean) {
+                        setFlag(field, (Boolean) value);
+                    }
+            }
+        }
+    }
+
+    /**
+     * Check if a field has a value
+     * @param field the field
+     * @return true if the field has a value, false otherwise
+     */
+    public boolean has(HouseStateField field) {
+        return (present & field.mask()) != 0;
+    }
+
+    /**
+     * Clear the value of a field
+     * @param field the field
+     */
+    public void remove(HouseStateField field) {
+        long m = field.mask();
+        present &= ~m;
+        flags &= ~m;
+        if (field.getKind() == HouseStateField.Kind.TEXT) {
+            texts[field.slot()] = null;
+        } else if (field.slot() >= 0) {
+            numbers[field.slot()] = 0;
+        }
+    }
+
+    /**
+     * Get an on/off value. For the HVAC mode, true means Heater
+     * @param field the field
+     * @return the value, or false if the field has no value
+     */
+    public boolean getFlag(HouseStateField field) {
+        return (flags & field.mask()) != 0;
+    }
+
+    /**
+     * Set an on/off value. For the HVAC mode, true means Heater
+     * @param field the field
+     * @param value the new value
+     */
+    public void setFlag(HouseStateField field, boolean value) {
+        long m = field.mask();
+        present |= m;
+        if (value) {
+            flags |= m;
+        } else {
+            flags &= ~m;
+        }
+    }
+
+    /**
+     * Set several on/off values at once
+     * @param fields a mask of the on/off fields to set
+     * @param values a mask with the bit of every field to turn on set; bits outside the fields are ignored
+     */
+    public void setFlags(long fields, long values) {
+        present |= fields;
+        flags = (flags & ~fields) | (values & fields);
+    }
+
+    /**
+     * Get a numeric value. Readings and numbers are returned as is; on/off fields are 1 when set and 0
+     * otherwise
+     * @param field the field
+     * @return the value, or 0 if the field has no value
+     */
+    public int getInt(HouseStateField field) {
+        switch (field.getKind()) {
+            case READING:
+            case NUMBER:
+                return numbers[field.slot()];
+            case TEXT:
+                throw new IllegalArgumentException(field.getKey() + " is not a number");
+            default:
+                return getFlag(field) ? 1 : 0;
+        }
+    }
+
+    /**
+     * Set a value as it appears on the wire. Readings and numbers are stored as is; for on/off fields 1 means
+     * on
+     * @param field the field
+     * @param value the new value
+     */
+    public void setInt(HouseStateField field, int value) {
+        switch (field.getKind()) {
+            case READING:
+            case NUMBER:
+                numbers[field.slot()] = value;
+                present |= field.mask();
+                break;
+            case TEXT:
+                throw new IllegalArgumentException(field.getKey() + " is not a number");
+            default:
+                setFlag(field, value == 1);
+        }
+    }
+
+    /**
+     * Get a passcode or request
+     * @param field a text field
+     * @return the value, or null if the field has no value
+     */
+    public String getText(HouseStateField field) {
+        if (field.getKind() != HouseStateField.Kind.TEXT) {
+            throw new IllegalArgumentException(field.getKey() + " is not text");
+        }
+        return texts[field.slot()];
+    }
+
+    /**
+     * Set a passcode or request
+     * @param field a text field
+     * @param value the new value, or null to clear it
+     */
+    public void setText(HouseStateField field, String value) {
+        if (field.getKind() != HouseStateField.Kind.TEXT) {
+            throw new IllegalArgumentException(field.getKey() + " is not text");
+        }
+        if (value == null) {
+            remove(field);
+            return;
+        }
+        texts[field.slot()] = value;
+        present |= field.mask();
+    }
+
+    /**
+     * Compare with another state. Readings, numbers and texts are compared by presence only
+     * @param other the state to compare with
+     * @return a mask of the fields reported by only one of the states, or with different on/off values
+     */
+    public long changedFields(HouseState other) {
+        return (present ^ other.present) | ((flags ^ other.flags) & present & other.present);
+    }
+
+    /**
+     * Get the mask of fields that have a value
+     * @return a mask with the bit of every field with a value set
+     */
+    public long getPresentMask() {
+        return present;
+    }
+
+    /**
+     * Get the on/off values of all fields
+     * @return a mask with the bit of every field that is on set
+     */
+    public long getFlagMask() {
+        return flags;
+    }
+
+    public int getTemperature() {
+        return numbers[HouseStateField.TEMP_READING.slot()];
+    }
+
+    public int getHumidity() {
+        return numbers[HouseStateField.HUMIDITY_READING.slot()];
+    }
+
+    /**
+     * Convert to a state map. Only fields with a value are included
+     * @return the state map
+     */
+    public Map<String,Object> toMap() {
+        Hashtable<String,Object> state = new Hashtable<String, Object>();
+        for (HouseStateField field : HouseStateField.fields()) {
+            if (!has(field)) {
+                continue;
+            }
+            switch (field.getKind()) {
+                case READING:
+                case NUMBER:
+                    state.put(field.getKey(), getInt(field));
+                    break;
+                case HVAC_MODE:
+                    state.put(field.getKey(), getFlag(field) ? HVAC_HEATER : HVAC_CHILLER);
+                    break;
+                case TEXT:
+                    state.put(field.getKey(), getText(field));
+                    break;
+                default:
+                    state.put(field.getKey(), getFlag(field));
+            }
+        }
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
@@ -0,0 +1,155 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.Arrays;
+
+/**
+ * The states of many houses, laid out column by column so that they can be evaluated in tight loops: one
+ * array holds the present mask of every house, one the flag mask, and each reading, number and text field has
+ * its own array. The columns have the same meaning as the fields of a {@link HouseState}; the value of a
+ * field a house has no value for is 0 or null.
+ *
+ * A batch has a fixed capacity and is reusable. It is not thread safe.
+ */
+public class HouseStateBatch {
+
+    private final long[] present;
+    private final long[] flags;
+    private final int[][] numbers;
+    private final String[][] texts;
+    private int size = 0;
+
+    /**
+     * Create an empty batch
+     * @param capacity the most houses the batch holds
+     */
+    public HouseStateBatch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        present = new long[capacity];
+        flags = new long[capacity];
+        numbers = new int[HouseStateField.NUMBER_SLOTS][capacity];
+        texts = new String[HouseStateField.TEXT_SLOTS][capacity];
+    }
+
+    /**
+     * Get the number of houses in the batch
+     * @return the number of houses
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the most houses the batch holds
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return present.length;
+    }
+
+    /**
+     * Remove all houses so the batch can be reused
+     */
+    public void clear() {
+        for (String[] column : texts) {
+            Arrays.fill(column, 0, size, null);
+        }
+        size = 0;
+    }
+
+    /**
+     * Add the state of a house
+     * @param state the state
+     * @return the index of the house in the batch
+     * @throws IllegalStateException if the batch is full
+     */
+    public int add(HouseState state) {
+        if (size == present.length) {
+            throw new IllegalStateException("The batch is full");
+        }
+        size++;
+        set(size - 1, state);
+        return size - 1;
+    }
+
+    /**
+     * Replace the state of a house
+     * @param i the index of the house
+     * @param state the state
+     */
+    public void set(int i, HouseState state) {
+        checkIndex(i);
+        present[i] = state.present;
+        flags[i] = state.flags;
+        for (int s = 0; s < numbers.length; s++) {
+            numbers[s][i] = state.numbers[s];
+        }
+        for (int s = 0; s < texts.length; s++) {
+            texts[s][i] = state.texts[s];
+        }
+    }
+
+    /**
+     * Copy the state of a house out of the batch
+     * @param i the index of the house
+     * @param state receives the state
+     */
+    public void get(int i, HouseState state) {
+        checkIndex(i);
+        state.present = present[i];
+        state.flags = flags[i];
+        for (int s = 0; s < numbers.length; s++) {
+            state.numbers[s] = numbers[s][i];
+        }
+        for (int s = 0; s < texts.length; s++) {
+            state.texts[s] = texts[s][i];
+        }
+    }
+
+    /**
+     * Get the present masks of all houses
+     * @return the column, indexed by house. Only the first {@link #size()} entries are in use
+     */
+    public long[] getPresentMasks() {
+        return present;
+    }
+
+    /**
+     * Get the on/off values of all houses
+     * @return the column, indexed by house. Only the first {@link #size()} entries are in use
+     */
+    public long[] getFlagMasks() {
+        return flags;
+    }
+
+    /**
+     * Get the values of a reading or number field for all houses
+     * @param field a reading or number field
+     * @return the column, indexed by house. Only the first {@link #size()} entries are in use
+     */
+    public int[] getNumbers(HouseStateField field) {
+        if (field.getKind() != HouseStateField.Kind.READING && field.getKind() != HouseStateField.Kind.NUMBER) {
+            throw new IllegalArgumentException(field.getKey() + " is not a number");
+        }
+        return numbers[field.slot()];
+    }
+
+    /**
+     * Get the values of a text field for all houses
+     * @param field a text field
+     * @return the column, indexed by house. Only the first {@link #size()} entries are in use
+     */
+    public String[] getTexts(HouseStateField field) {
+        if (field.getKind() != HouseStateField.Kind.TEXT) {
+            throw new IllegalArgumentException(field.getKey() + " is not text");
+        }
+        return texts[field.slot()];
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("House " + i + " is not in a batch of " + size);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package tartan.smarthome.resources.iotcontroller;
+
+/**
+ * The fields of a house state. The fields a house reports in a state update message come first, followed by
+ * the settings and requests the controller adds before the state is evaluated. The ordinal of each field is
+ * its bit in the masks kept by {@link HouseState}
+ */
+public enum HouseStateField {
+
+    TEMP_READING(IoTValues.TEMP_READING, Kind.READING),
+    HUMIDITY_READING(IoTValues.HUMIDITY_READING, Kind.READING),
+    HUMIDIFIER_STATE(IoTValues.HUMIDIFIER_STATE, Kind.FLAG),
+    DOOR_STATE(IoTValues.DOOR_STATE, Kind.FLAG),
+    LIGHT_STATE(IoTValues.LIGHT_STATE, Kind.FLAG),
+    PROXIMITY_STATE(IoTValues.PROXIMITY_STATE, Kind.FLAG),
+    ARRIVING_PROXIMITY_STATE(IoTValues.ARRIVING_PROXIMITY_STATE, Kind.FLAG),
+    ALARM_STATE(IoTValues.ALARM_STATE, Kind.FLAG),
+    HVAC_MODE(IoTValues.HVAC_MODE, Kind.HVAC_MODE),
+    ALARM_ACTIVE(IoTValues.ALARM_ACTIVE, Kind.FLAG),
+    HEATER_STATE(IoTValues.HEATER_STATE, Kind.FLAG),
+    CHILLER_STATE(IoTValues.CHILLER_STATE, Kind.FLAG),
+    LOCK_STATE(IoTValues.LOCK_STATE, Kind.FLAG),
+    LOCK_ELECTRONIC_OPERATION_ENABLE(IoTValues.LOCK_ELECTRONIC_OPERATION_ENABLE, Kind.FLAG),
+    LOCK_KEYLESS_ENTRY_ENABLE(IoTValues.LOCK_KEYLESS_ENTRY_ENABLE, Kind.FLAG),
+    LOCK_NIGHT_LOCK_ENABLED(IoTValues.LOCK_NIGHT_LOCK_ENABLED, Kind.FLAG),
+    LOCK_INTRUDER_SENSOR_MODE(IoTValues.LOCK_INTRUDER_SENSOR_MODE, Kind.FLAG),
+    INTRUDER_DETECTION_SENSOR(IoTValues.INTRUDER_DETECTION_SENSOR, Kind.FLAG),
+    PANEL_MESSAGE(IoTValues.PANEL_MESSAGE, Kind.FLAG),
+
+    // not reported by the house
+    AWAY_TIMER(IoTValues.AWAY_TIMER, Kind.FLAG, false),
+    TARGET_TEMP(IoTValues.TARGET_TEMP, Kind.NUMBER, false),
+    ALARM_DELAY(IoTValues.ALARM_DELAY, Kind.NUMBER, false),
+    NIGHT_START_TIME(IoTValues.NIGHT_START_TIME, Kind.NUMBER, false),
+    NIGHT_END_TIME(IoTValues.NIGHT_END_TIME, Kind.NUMBER, false),
+    CURRENT_TIME(IoTValues.CURRENT_TIME, Kind.NUMBER, false),
+    ALARM_PASSCODE(IoTValues.ALARM_PASSCODE, Kind.TEXT, false),
+    GIVEN_PASSCODE(IoTValues.GIVEN_PASSCODE, Kind.TEXT, false),
+    LOCK_PASSCODE(IoTValues.LOCK_PASSCODE, Kind.TEXT, false),
+    LOCK_GIVEN_PASSCODE(IoTValues.LOCK_GIVEN_PASSCODE, Kind.TEXT, false),
+    LOCK_REQUEST(IoTValues.LOCK_REQUEST, Kind.TEXT, false);
+
+    /** How the value of a field is represented */
+    public enum Kind {
+        /** an on/off value, 1 or 0 on the wire */
+        FLAG,
+        /** a sensor reading */
+        READING,
+        /** the HVAC mode, 1 for Heater and 0 for Chiller on the wire */
+        HVAC_MODE,
+        /** a setting or time of day */
+        NUMBER,
+        /** a passcode or request */
+        TEXT
+    }
+
+    /** values() copies the array on every call, so keep one copy for lookups */
+    private static final HouseStateField[] FIELDS = values();
+
+    /** the number of int and String values a state holds */
+    static final int NUMBER_SLOTS;
+    static final int TEXT_SLOTS;
+
+    static {
+        int numbers = 0;
+        int texts = 0;
+        for (HouseStateField f : FIELDS) {
+            if (f.kind == Kind.READING || f.kind == Kind.NUMBER) {
+                f.slot = numbers++;
+            } else if (f.kind == Kind.TEXT) {
+                f.slot = texts++;
+            }
+        }
+        NUMBER_SLOTS = numbers;
+        TEXT_SLOTS = texts;
+    }
+
+    private final String key;
+    private final Kind kind;
+    private final boolean reported;
+    private int slot = -1;
+
+    HouseStateField(String key, Kind kind) {
+        this(key, kind, true);
+    }
+
+    HouseStateField(String key, Kind kind, boolean reported) {
+        this.key = key;
+        this.kind = kind;
+        this.reported = reported;
+    }
+
+    /**
+     * Get the protocol (and state map) key of this field
+     * @return the key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get the value representation
+     * @return the kind of value
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Check if the house reports this field
+     * @return true for fields of state update messages, false for the fields the controller adds
+     */
+    public boolean isReported() {
+        return reported;
+    }
+
+    /**
+     * Get the index of the value of a number, reading or text field in the arrays kept by {@link HouseState}
+     * @return the index, or -1 for on/off fields
+     */
+    int slot() {
+        return slot;
+    }
+
+    /**
+     * Get the bit for this field
+     * @return the mask with only this field set
+     */
+    public long mask() {
+        return 1L << ordinal();
+    }
+
+    /**
+     * Find the field for a key without creating a string for the key
+     * @param chars the characters holding the key
+     * @param start the index of the first character of the key
+     * @param end the index after the last character of the key
+     * @return the field, or null if the key is not a known field
+     */
+    public static HouseStateField lookup(CharSequence chars, int start, int end) {
+        int len = end - start;
+        for (HouseStateField f : FIELDS) {
+            String k = f.key;
+            if (k.length() != len) {
+                continue;
+            }
+            int i = 0;
+            while (i < len && k.charAt(i) == chars.charAt(start + i)) {
+                i++;
+            }
+            if (i == len) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the field for a state map key
+     * @param key the key
+     * @return the field, or null if the key is not a known field
+     */
+    public static HouseStateField lookup(String key) {
+        return lookup(key, 0, key.length());
+    }
+
+    /**
+     * Get all fields
+     * @return the fields, in ordinal order. The array must not be modified
+     */
+    static HouseStateField[] fields() {
+        return FIELDS;
+    }
+}
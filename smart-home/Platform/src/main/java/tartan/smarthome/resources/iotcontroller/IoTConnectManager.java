@@ -1,9 +1,10 @@
 package tartan.smarthome.resources.iotcontroller;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
  * Manages connection to the IoT house
@@ -17,6 +18,21 @@ public class IoTConnectManager {
     // Connection to the house
     private IoTConnection connection;
 
+    // reused for every state update from the house
+    private final StateUpdateParser parser = new StateUpdateParser();
+    private final HouseState reportedState = new HouseState();
+
+    // The settable fields whose value the house has confirmed, either by reporting them or by accepting a
+    // set state request, and the fields of the set state requests it has not answered yet with the values
+    // last sent for them. The house applies requests in order, so a field on its way will have the value
+    // last sent; only fields that differ from that, or from the confirmed value otherwise, are sent.
+    private final Object ackLock = new Object();
+    private long ackedFields = 0L;
+    private long ackedValues = 0L;
+    private final List<Long> inFlight = new ArrayList<>();
+    private long inFlightFields = 0L;
+    private long sentValues = 0L;
+
     /**
      * Set up the connection manager with a connection
      * @param conn the (established) connection
@@ -30,278 +46,199 @@ public class IoTConnectManager {
      */
     public void disconnectFromHouse() {
         connection.disconnect();
+        forgetAcknowledged();
+    }
+
+    /**
+     * Connect to the house again after the connection was lost. What the house confirmed before is forgotten,
+     * since it may have changed, or missed requests, while nobody was connected
+     * @return true if connected, false otherwise
+     */
+    public Boolean reconnect() {
+        forgetAcknowledged();
+        return connection.connect();
+    }
+
+    private void forgetAcknowledged() {
+        synchronized (ackLock) {
+            ackedFields = 0L;
+            ackedValues = 0L;
+        }
     }
 
     /**
      * Get the state from the house
      * @return the new state of things
      */
-    public synchronized Map<String,Object> getState() {
+    public Map<String,Object> getState() {
+        return getStateAsync().join();
+    }
+
+    /**
+     * Get the state from the house without blocking. Responses are matched to requests in the order they
+     * were sent, so any number of requests may be outstanding on the connection.
+     * @return the new state of things, or null if the house did not answer
+     */
+    public CompletableFuture<Map<String,Object>> getStateAsync() {
+        return getHouseStateAsync().thenApply(state -> state == null ? null : state.toMap());
+    }
+
+    /**
+     * Get the state from the house without blocking, without converting it to a map
+     * @return a new record holding the reported state, or null if the house did not answer
+     */
+    public CompletableFuture<HouseState> getHouseStateAsync() {
 
         System.out.println("Requesting state");
 
-        synchronized (connection) {
-            String update = connection.sendMessageToHouse(IoTValues.GET_STATE + IoTValues.MSG_END);
-            if (update == null) {
-                return null;
+        return connection.sendMessageAsync(IoTValues.GET_STATE + IoTValues.MSG_END)
+                .thenApply(this::handleStateUpdate)
+                .exceptionally(t -> null);
+    }
+
+    /**
+     * Ask the house to push its state whenever it changes. Pushed updates are processed like the answer to a
+     * get state request, so they also confirm the fields the house has
+     * @param listener receives a new record for each pushed state, on the connection's selector thread
+     * @return true if the house accepted; false if it does not push updates. A house that does not know the
+     * request answers it with an error; one that does not answer at all costs the connection, as any
+     * request would, since its state updates could no longer be told apart from pushed ones
+     */
+    public CompletableFuture<Boolean> subscribeAsync(Consumer<HouseState> listener) {
+
+        connection.setUpdateListener(msg -> {
+            HouseState state = handleStateUpdate(msg);
+            if (state != null) {
+                listener.accept(state);
             }
+        });
 
-            return handleStateUpdate(update);
-        }
+        return connection.sendMessageAsync(IoTValues.PUSH_SUBSCRIBE + IoTValues.MSG_END)
+                .thenApply(IoTConnectManager::isOk)
+                .exceptionally(t -> false);
     }
 
-
+    /**
+     * Send a state change request to the house
+     * @param state the new state
+     * @return true if the state was accepted; false otherwise
+     */
+    public Boolean setState(Map<String, Object> state) {
+        return setStateAsync(state).join();
+    }
 
     /**
      * Send a state change request to the house
      * @param state the new state
      * @return true if the state was accepted; false otherwise
      */
-    public synchronized Boolean setState(Map<String, Object> state) {
-
-        StringBuffer newState = new StringBuffer();
-        Set<String> keys = state.keySet();
-        int count = 0;
-        for (String key : keys) {
-
-            if (key.equals(IoTValues.DOOR_STATE)) {
-
-                Boolean newDoorState = (Boolean) state.get(key);
-                newState.append(IoTValues.DOOR_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newDoorState) {
-                    newState.append(IoTValues.DOOR_OPEN);
-                } else {
-                    newState.append(IoTValues.DOOR_CLOSE);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.LOCK_STATE)) {
-                Boolean newLockState = (Boolean) state.get(key);
-                newState.append(IoTValues.LOCK_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newLockState) {
-                    newState.append(IoTValues.LOCK);
-                } else {
-                    newState.append(IoTValues.UNLOCK);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.ARRIVING_PROXIMITY_STATE)) {
-                Boolean newProximityState = (Boolean) state.get(key);
-                newState.append(IoTValues.ARRIVING_PROXIMITY_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newProximityState) {
-                    newState.append("1");
-                } else {
-                    newState.append("0");
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.LOCK_KEYLESS_ENTRY_ENABLE)) {
-                Boolean newKeylessEntry = (Boolean) state.get(key);
-                newState.append(IoTValues.LOCK_KEYLESS_ENTRY_ENABLE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newKeylessEntry) {
-                    newState.append(IoTValues.LOCK);
-                } else {
-                    newState.append(IoTValues.UNLOCK);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.LOCK_NIGHT_LOCK_ENABLED)) {
-                Boolean newNightLock = (Boolean) state.get(key);
-                newState.append(IoTValues.LOCK_NIGHT_LOCK_ENABLED);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newNightLock) {
-                    newState.append("1");
-                } else {
-                    newState.append("0");
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } 
-            else if (key.equals(IoTValues.LOCK_ELECTRONIC_OPERATION_ENABLE)) {
-                Boolean newElectronicOperation = (Boolean) state.get(key);
-                newState.append(IoTValues.LOCK_ELECTRONIC_OPERATION_ENABLE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newElectronicOperation) {
-                    newState.append("1");
-                } else {
-                    newState.append("0");
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.LOCK_INTRUDER_SENSOR_MODE)) {
-                Boolean newIntruderSensorMode = (Boolean) state.get(key);
-                newState.append(IoTValues.LOCK_INTRUDER_SENSOR_MODE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newIntruderSensorMode) {
-                    newState.append("1");
-                } else {
-                    newState.append("0");
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.INTRUDER_DETECTION_SENSOR)) {
-                Boolean newIntruderDetectionSensor = (Boolean) state.get(key);
-                newState.append(IoTValues.INTRUDER_DETECTION_SENSOR);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newIntruderDetectionSensor) {
-                    newState.append("1");
-                } else {
-                    newState.append("0");
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.PANEL_MESSAGE)) {
-                Boolean newPanelMessage = (Boolean) state.get(key);
-                newState.append(IoTValues.PANEL_MESSAGE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newPanelMessage) {
-                    newState.append("1");
-                } else {
-                    newState.append("0");
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            }
-            else if (key.equals(IoTValues.LIGHT_STATE)) {
-                Boolean newLightState = (Boolean) state.get(key);
-                newState.append(IoTValues.LIGHT_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newLightState) {
-                    newState.append(IoTValues.LIGHT_ON);
-                } else {
-                    newState.append(IoTValues.LIGHT_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.LIGHT_STATE)) {
-                Boolean newLightState = (Boolean) state.get(key);
-                newState.append(IoTValues.LIGHT_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newLightState) {
-                    newState.append(IoTValues.LIGHT_ON);
-                } else {
-                    newState.append(IoTValues.LIGHT_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.ALARM_STATE)) {
-                Boolean newAlarmState = (Boolean) state.get(key);
-                newState.append(IoTValues.ALARM_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newAlarmState) {
-                    newState.append(IoTValues.ALARM_ENABLED);
-                } else {
-                    newState.append(IoTValues.ALARM_DISABLED);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.ALARM_ACTIVE)) {
-                Boolean newAlarmState = (Boolean) state.get(key);
-                newState.append(IoTValues.ALARM_ACTIVE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newAlarmState) {
-                    newState.append(IoTValues.ALARM_ON);
-                } else {
-                    newState.append(IoTValues.ALARM_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            }else if (key.equals(IoTValues.HUMIDIFIER_STATE)) {
-                Boolean newHumidifierState = (Boolean) state.get(key);
-                newState.append(IoTValues.HUMIDIFIER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newHumidifierState) {
-                    newState.append(IoTValues.HUMIDIFIER_ON);
-                } else {
-                    newState.append(IoTValues.HUMIDIFIER_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.CHILLER_STATE)) {
-                Boolean newChillerState = (Boolean) state.get(key);
-                newState.append(IoTValues.CHILLER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newChillerState) {
-                    newState.append(IoTValues.CHILLER_ON);
-                } else {
-                    newState.append(IoTValues.CHILLER_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            } else if (key.equals(IoTValues.HEATER_STATE)) {
-                Boolean newHeaterState = (Boolean) state.get(key);
-                newState.append(IoTValues.HEATER_STATE);
-                newState.append(IoTValues.PARAM_EQ);
-                if (newHeaterState) {
-                    newState.append(IoTValues.HEATER_ON);
-                } else {
-                    newState.append(IoTValues.HEATER_OFF);
-                }
-                count++;
-                if (count<keys.size()) {
-                    newState.append(IoTValues.PARAM_DELIM);
-                }
-            }
+    public Boolean setState(HouseState state) {
+        return setStateAsync(state).join();
+    }
+
+    /**
+     * Send a state change request to the house without blocking
+     * @param state the new state
+     * @return true if the state was accepted; false otherwise
+     */
+    public CompletableFuture<Boolean> setStateAsync(Map<String, Object> state) {
+
+        HouseState newState = new HouseState();
+        newState.putAll(state);
+        return setStateAsync(newState);
+    }
+
+    /**
+     * Send a state change request to the house without blocking. Only the fields that differ from the state
+     * the house last confirmed, or from the value last sent while a request for them is on its way, are sent;
+     * if nothing differs the house is not contacted at all. The fields are captured now and encoded straight
+     * into the connection's write buffer when the request is sent
+     * @param state the new state
+     * @return true if the state was accepted (or already in place); false otherwise
+     */
+    public CompletableFuture<Boolean> setStateAsync(HouseState state) {
+
+        System.out.println("New state for house: "
+                + SetStateEncoder.toString(state.getPresentMask(), state.getFlagMask()));
+
+        final long values = state.getFlagMask();
+        final long fields = send(state.getPresentMask() & SetStateEncoder.SETTABLE_FIELDS, values);
+        if (fields == 0L) {
+            return CompletableFuture.completedFuture(true);
         }
 
-        //newState.append(IoTValues.MSG_END); // append protocol request terminator
-        StringBuffer msg
-                = new StringBuffer(IoTValues.SET_STATE + IoTValues.MSG_DELIM + newState.toString() + IoTValues.MSG_END);
-        System.out.println("New state for house: " + msg.toString());
+        return connection.sendMessageAsync(out -> SetStateEncoder.encode(fields, values, out))
+                .thenApply(response -> {
+                    System.out.println("Response: " + response);
+                    boolean accepted = isOk(response);
+                    acknowledge(fields, values, accepted);
+                    return accepted;
+                })
+                .exceptionally(t -> {
+                    System.out.println("No response");
+                    acknowledge(fields, values, false);
+                    return false;
+                });
+    }
 
-        String response = null;
-        synchronized (connection) {
-            response = connection.sendMessageToHouse(msg.toString());
+    /**
+     * Find the fields that must be sent to put the house in a state, and record them as on their way
+     * @param fields the fields of the new state
+     * @param values the values of the new state
+     * @return the fields that the house will not have once the requests on their way are applied
+     */
+    private long send(long fields, long values) {
+        synchronized (ackLock) {
+            long expectedFields = ackedFields | inFlightFields;
+            long expectedValues = (ackedValues & ~inFlightFields) | (sentValues & inFlightFields);
+            long changed = fields & (~expectedFields | (values ^ expectedValues));
+            if (changed != 0L) {
+                inFlight.add(changed);
+                inFlightFields |= changed;
+                sentValues = (sentValues & ~changed) | (values & changed);
+            }
+            return changed;
         }
-        if (response == null) {
-            System.out.println("No response");
-            return false;
+    }
+
+    /**
+     * Record the answer to a set state request
+     * @param fields the fields that were sent
+     * @param values the values that were sent
+     * @param accepted true if the house accepted them
+     */
+    private void acknowledge(long fields, long values, boolean accepted) {
+        synchronized (ackLock) {
+            inFlight.remove(Long.valueOf(fields));
+            inFlightFields = 0L;
+            for (long f : inFlight) {
+                inFlightFields |= f;
+            }
+            if (accepted) {
+                ackedFields |= fields;
+                ackedValues = (ackedValues & ~fields) | (values & fields);
+            } else {
+                // the house may or may not have applied them, so send them again next time
+                ackedFields &= ~fields;
+            }
         }
-        System.out.println("Response: " + response);
+    }
 
-        return response.equals(IoTValues.OK);
+    /**
+     * Check a set state response. The house terminates it like any other message
+     * @param response the response
+     * @return true if the house accepted the request
+     */
+    private static boolean isOk(String response) {
+        return response.equals(IoTValues.OK) || response.equals(IoTValues.OK + IoTValues.MSG_END);
     }
 
     /**
      * Process the new state reported by the house
      * @param stateUpdateMsg the new state message
-     * @return the new state
+     * @return a new record holding the new state
      */
-    private Map<String,Object> handleStateUpdate(String stateUpdateMsg) {
+    HouseState handleStateUpdate(String stateUpdateMsg) {
 
         if (stateUpdateMsg == null) {
             return null;
@@ -311,145 +248,19 @@ public class IoTConnectManager {
         }
 
         System.out.println("State Update: " + stateUpdateMsg);
-        Hashtable<String,Object> state = new Hashtable<String, Object>();
-
-        String[] req = stateUpdateMsg.split(IoTValues.MSG_DELIM);
-
-        // invalid state update
-        if (req.length != 2) {
-            return null;
-        }
-        // is this a state update
-        String cmd = req[0];
-        String body = req[1];
 
-        if (!cmd.equals(IoTValues.STATE_UPDATE)) { // only message that comes from house
-            return null;
-        }
-
-        if (String.valueOf(body.charAt(body.length()-1)).equals(IoTValues.MSG_END)) {
-            body = body.substring(0, body.length() - 1);
-        }
-        if (body==null) {
-            return null;
-        }
-        StringTokenizer pt = new StringTokenizer(body, IoTValues.PARAM_DELIM);
-
-        // process the new state
-        while (pt.hasMoreTokens()) {
-            String param = pt.nextToken();
-            String data[] = param.split(IoTValues.PARAM_EQ);
-            Integer val = Integer.parseInt(data[1]);
-
-            if (data[0].equals(IoTValues.LIGHT_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.LIGHT_STATE, true);
-                } else {
-                    state.put(IoTValues.LIGHT_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.ALARM_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.ALARM_STATE, true);
-                } else {
-                state.put(IoTValues.ALARM_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.DOOR_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.DOOR_STATE, true);
-                } else {
-                    state.put(IoTValues.DOOR_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.LOCK_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.LOCK_STATE, true);
-                } else {
-                    state.put(IoTValues.LOCK_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.ARRIVING_PROXIMITY_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.ARRIVING_PROXIMITY_STATE, true);
-                } else {
-                    state.put(IoTValues.ARRIVING_PROXIMITY_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.LOCK_KEYLESS_ENTRY_ENABLE)) {
-                if (val == 1) {
-                    state.put(IoTValues.LOCK_KEYLESS_ENTRY_ENABLE, true);
-                } else {
-                    state.put(IoTValues.LOCK_KEYLESS_ENTRY_ENABLE, false);
-                }
-            } else if (data[0].equals(IoTValues.LOCK_ELECTRONIC_OPERATION_ENABLE)) {
-                if (val == 1) {
-                    state.put(IoTValues.LOCK_ELECTRONIC_OPERATION_ENABLE, true);
-                } else {
-                    state.put(IoTValues.LOCK_ELECTRONIC_OPERATION_ENABLE, false);
-                }
-            } else if (data[0].equals(IoTValues.LOCK_NIGHT_LOCK_ENABLED)) {
-                if (val == 1) {
-                    state.put(IoTValues.LOCK_NIGHT_LOCK_ENABLED, true);
-                } else {
-                    state.put(IoTValues.LOCK_NIGHT_LOCK_ENABLED, false);
-                }
-            } else if (data[0].equals(IoTValues.LOCK_INTRUDER_SENSOR_MODE)) {
-                if (val == 1) {
-                    state.put(IoTValues.LOCK_INTRUDER_SENSOR_MODE, true);
-                } else {
-                    state.put(IoTValues.LOCK_INTRUDER_SENSOR_MODE, false);
-                }
-            } else if (data[0].equals(IoTValues.INTRUDER_DETECTION_SENSOR)) {
-                if (val == 1) {
-                    state.put(IoTValues.INTRUDER_DETECTION_SENSOR, true);
-                } else {
-                    state.put(IoTValues.INTRUDER_DETECTION_SENSOR, false);
-                }
-            } else if (data[0].equals(IoTValues.PANEL_MESSAGE)) {
-                if (val == 1) {
-                    state.put(IoTValues.PANEL_MESSAGE, true);
-                } else {
-                    state.put(IoTValues.PANEL_MESSAGE, false);
-                }
-            } else if (data[0].equals(IoTValues.HUMIDIFIER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.HUMIDIFIER_STATE, true);
-                } else {
-                    state.put(IoTValues.HUMIDIFIER_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.PROXIMITY_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.PROXIMITY_STATE, true);
-                } else {
-                    state.put(IoTValues.PROXIMITY_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.ALARM_ACTIVE)) {
-                if (val == 1) {
-                    state.put(IoTValues.ALARM_ACTIVE, true);
-                } else {
-                    state.put(IoTValues.ALARM_ACTIVE, false);
-                }
-            } else if (data[0].equals(IoTValues.HEATER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.HEATER_STATE, true);
-                } else {
-                    state.put(IoTValues.HEATER_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.CHILLER_STATE)) {
-                if (val == 1) {
-                    state.put(IoTValues.CHILLER_STATE, true);
-                } else {
-                    state.put(IoTValues.CHILLER_STATE, false);
-                }
-            } else if (data[0].equals(IoTValues.TEMP_READING)) {
-                state.put(IoTValues.TEMP_READING, val);
-            } else if (data[0].equals(IoTValues.HUMIDITY_READING)) {
-                state.put(IoTValues.HUMIDITY_READING, val);
-            } else if (data[0].equals(IoTValues.HVAC_MODE)) {
-                if (val == 1) {
-                    state.put(IoTValues.HVAC_MODE, "Heater");
-                } else {
-                    state.put(IoTValues.HVAC_MODE, "Chiller");
-                }
+        // responses may complete on different threads, so the reusable record is guarded
+        synchronized (reportedState) {
+            if (!parser.parse(stateUpdateMsg, reportedState)) {
+                return null;
+            }
+            // what the house reports is what it has
+            synchronized (ackLock) {
+                ackedFields = reportedState.getPresentMask() & SetStateEncoder.SETTABLE_FIELDS;
+                ackedValues = reportedState.getFlagMask();
             }
+            return reportedState.copy();
         }
-        return state;
     }
 
     /**
@@ -1,28 +1,73 @@
 package tartan.smarthome.resources.iotcontroller;
 
-import java.io.*;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 /**
  * A connection to an IoT-enabled house. This class handles the network connection to the house
  *
+ * The connection is a non-blocking channel multiplexed on a shared {@link IoTTransport}, so houses do not
+ * need a thread each. The house answers requests in order, one line per request, so requests are queued
+ * and written one at a time; each response line completes the oldest outstanding request. A request is
+ * encoded into the connection's write buffer only when it is about to be written, so the buffer is reused.
+ *
+ * A house in push mode also sends state updates nobody asked for. A state update line that arrives while
+ * the oldest request expects some other answer, has not been written in full yet, or while nothing is
+ * outstanding, is handed to the update listener instead. Every state update carries the complete state, so it does not matter which of several
+ * state updates answers a get state request.
+ *
+ * A request the house does not answer in time leaves the connection unusable, since any later line could be
+ * the late answer to it rather than the answer to the request behind it. So a timeout closes the connection,
+ * failing everything outstanding, and the owner reconnects to start again from a known point.
+ *
  * Project: LG Exec Ed Program
  * Copyright: 2015 Jeffrey S. Gennari
  * Versions:
  * 1.0 November 2015 - initial version
  */
 public class IoTConnection {
-    private Boolean isConnected = false;
+    /** how long to wait for the house to answer a request */
+    public static final long RESPONSE_TIMEOUT_MS = 10000;
+
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    /** the house reads a request with a single 1024 byte receive, so nothing larger can be sent */
+    public static final int MAX_MESSAGE_SIZE = 1024;
+
+    private volatile Boolean isConnected = false;
+
+    private volatile long responseTimeoutMs = RESPONSE_TIMEOUT_MS;
 
     /** connection settings */
     private String address = null;
     private Integer port = 5050; // the default port for the house
 
     /** The connection is private so it can be controlled */
-    private Socket houseSocket=null;
-    private BufferedWriter out=null;
-    private BufferedReader in = null;
+    private final IoTTransport transport;
+    private IoTTransport.SelectorLoop loop = null;
+    private SocketChannel houseChannel = null;
+    private SelectionKey key = null;
+
+    /** Only touched by the selector thread */
+    private final ArrayDeque<Request> pending = new ArrayDeque<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE);
+    private final StringBuilder line = new StringBuilder();
+
+    /** Receives the state updates pushed by the house */
+    private volatile Consumer<String> updateListener = null;
 
     /**
      * Get the house address
@@ -46,9 +91,19 @@ public class IoTConnection {
      * @return the established connection or null
      */
     public IoTConnection(String addr, Integer port) {
+        this(addr, port, IoTTransport.getSharedTransport());
+    }
+
+    /**
+     * Create a connection on a specific transport
+     * @param addr the house address
+     * @param port the house port
+     * @param transport the transport that drives the connection
+     */
+    public IoTConnection(String addr, Integer port, IoTTransport transport) {
         this.address = addr;
         this.port = port;
-
+        this.transport = transport;
     }
 
     /**
@@ -59,6 +114,23 @@ public class IoTConnection {
         return isConnected;
     }
 
+    /**
+     * Set how long to wait for the house to answer a request before giving up on the connection
+     * @param millis the timeout in milliseconds
+     */
+    public void setResponseTimeout(long millis) {
+        this.responseTimeoutMs = millis;
+    }
+
+    /**
+     * Set the listener for state updates the house sends on its own. It is called on the selector thread, so
+     * it must hand anything that is not trivial to another thread
+     * @param listener the listener, or null to drop pushed updates
+     */
+    public void setUpdateListener(Consumer<String> listener) {
+        this.updateListener = listener;
+    }
+
     /**
      * Send a message to the house and get a response
      * @param msg the message to send
@@ -66,30 +138,73 @@ public class IoTConnection {
      */
     public String sendMessageToHouse(String msg) {
         try {
+            // the response fails by itself if the house does not answer in time
+            return sendMessageAsync(msg).get();
+
+        } catch (ExecutionException e) {
+            // no response from the house
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
 
-            out.write(msg, 0, msg.length());
-            out.flush();
+    /**
+     * Queue a message for the house without waiting for the response. The returned future completes on
+     * the selector thread when the response arrives, or exceptionally if the connection fails or the house
+     * does not answer in time (which closes the connection), so
+     * dependent work that is not trivial should use the *Async stages of the future.
+     * @param msg the message to send
+     * @return the response
+     */
+    public CompletableFuture<String> sendMessageAsync(String msg) {
+        byte[] bytes = msg.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > MAX_MESSAGE_SIZE) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Message too long: " + bytes.length));
+        }
+        return sendMessageAsync(out -> out.put(bytes), msg.startsWith(IoTValues.GET_STATE));
+    }
 
-            return in.readLine();
+    /**
+     * Queue a message that is encoded on the selector thread, directly into the connection's reusable write
+     * buffer, when it is the next request to be written. The encoder must not write more than
+     * {@link #MAX_MESSAGE_SIZE} bytes, and must not depend on state that may change before it runs.
+     * @param encoder writes the message into the buffer it is given
+     * @return the response
+     */
+    public CompletableFuture<String> sendMessageAsync(Consumer<ByteBuffer> encoder) {
+        return sendMessageAsync(encoder, false);
+    }
 
-        } catch (IOException ioe) {
-            //ioe.printStackTrace();
+    /**
+     * Queue a message that is encoded on the selector thread
+     * @param encoder writes the message into the buffer it is given
+     * @param stateReply true if the house answers with a state update
+     * @return the response
+     */
+    private CompletableFuture<String> sendMessageAsync(Consumer<ByteBuffer> encoder, boolean stateReply) {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        if (!isConnected) {
+            response.completeExceptionally(new ClosedChannelException());
+            return response;
         }
-        return null;
+        Request request = new Request(encoder, response, stateReply);
+        IoTTransport.SelectorLoop requestLoop = loop;
+        requestLoop.execute(() -> enqueue(request));
+        response.orTimeout(responseTimeoutMs, TimeUnit.MILLISECONDS).whenComplete((r, t) -> {
+            if (t instanceof TimeoutException) {
+                requestLoop.execute(() -> timedOut(request));
+            }
+        });
+        return response;
     }
 
     /**
      * Disconnect from the house
      */
     public void disconnect() {
-        if (houseSocket!=null) {
-            if (houseSocket.isConnected()) {
-                try {
-                    houseSocket.close();
-                } catch (IOException e) {
-
-                }
-            }
+        if (loop != null) {
+            loop.execute(this::close);
         }
         isConnected = false;
     }
@@ -101,19 +216,179 @@ public class IoTConnection {
     public Boolean connect() {
 
         try {
-            houseSocket = new Socket(this.address, this.port);
-
-            out = new BufferedWriter(new OutputStreamWriter(houseSocket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader( houseSocket.getInputStream()));
+            // connecting is rare, so it is done in blocking mode before the channel is handed to a selector
+            houseChannel = SocketChannel.open(new InetSocketAddress(this.address, this.port));
+            houseChannel.configureBlocking(false);
 
-        } catch (UnknownHostException uhe) {
+        } catch (UnresolvedAddressException uae) {
             System.err.println("Unknown host: " + address);
             return false;
         } catch (IOException ioe){
             return false;
         }
+
+        loop = transport.nextLoop();
+        loop.execute(this::register);
         isConnected = true;
         return true;
     }
 
+    /* The remaining methods run on the selector thread */
+
+    private void register() {
+        try {
+            key = houseChannel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+        } catch (IOException ioe) {
+            close();
+        }
+    }
+
+    private void enqueue(Request request) {
+        if (key == null || !key.isValid()) {
+            request.response.completeExceptionally(new ClosedChannelException());
+            return;
+        }
+        pending.add(request);
+        if (pending.size() == 1) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Handle a ready channel
+     * @param readyKey the key selected for this connection
+     */
+    void handleReady(SelectionKey readyKey) {
+        try {
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                writePending();
+            }
+            if (readyKey.isValid() && readyKey.isReadable()) {
+                readResponses();
+            }
+        } catch (IOException ioe) {
+            close();
+        }
+    }
+
+    private void writePending() throws IOException {
+        Request head;
+        while ((head = pending.peek()) != null && !head.encoded) {
+            writeBuffer.clear();
+            try {
+                head.encoder.accept(writeBuffer);
+                head.encoded = true;
+            } catch (RuntimeException re) {
+                // this request cannot be sent, but the ones behind it can
+                pending.poll();
+                head.response.completeExceptionally(re);
+            }
+            writeBuffer.flip();
+        }
+        if (head != null) {
+            houseChannel.write(writeBuffer);
+            if (writeBuffer.hasRemaining()) {
+                return;
+            }
+            head.written = true;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void readResponses() throws IOException {
+        int n = houseChannel.read(readBuffer);
+        if (n < 0) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            char c = (char) readBuffer.get();
+            if (c == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                completeRequest(line.toString());
+                line.setLength(0);
+            } else {
+                line.append(c);
+            }
+        }
+        readBuffer.clear();
+    }
+
+    private void completeRequest(String response) {
+        Request head = pending.peek();
+        boolean stateUpdate = response.startsWith(IoTValues.STATE_UPDATE);
+        if (head == null || !head.written || (stateUpdate && !head.stateReply)) {
+            // pushed by the house, since it cannot answer a request it has not read in full; anything else
+            // nobody asked for has nobody to tell
+            Consumer<String> listener = updateListener;
+            if (stateUpdate && listener != null) {
+                try {
+                    listener.accept(response);
+                } catch (RuntimeException re) {
+                    re.printStackTrace();
+                }
+            }
+            return;
+        }
+        Request done = pending.poll();
+        if (!pending.isEmpty()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        done.response.complete(response);
+    }
+
+    /**
+     * Give up on a connection whose house did not answer a request in time. The request may already have
+     * left the queue if the connection was closed meanwhile, and then there is nothing to do
+     * @param request the request that timed out
+     */
+    private void timedOut(Request request) {
+        if (pending.contains(request)) {
+            System.err.println("No response from house at " + address + ":" + port + ", closing the connection");
+            close();
+        }
+    }
+
+    /**
+     * Close the channel and fail any outstanding requests
+     */
+    void close() {
+        isConnected = false;
+        if (key != null) {
+            key.cancel();
+        }
+        if (houseChannel != null) {
+            try {
+                houseChannel.close();
+            } catch (IOException e) {
+
+            }
+        }
+        Request r;
+        while ((r = pending.poll()) != null) {
+            r.response.completeExceptionally(new ClosedChannelException());
+        }
+        line.setLength(0);
+    }
+
+    /**
+     * A request waiting to be written or answered
+     */
+    private static class Request {
+        final Consumer<ByteBuffer> encoder;
+        final CompletableFuture<String> response;
+        final boolean stateReply;
+        boolean encoded = false;
+        boolean written = false;
+
+        Request(Consumer<ByteBuffer> encoder, CompletableFuture<String> response, boolean stateReply) {
+            this.encoder = encoder;
+            this.response = response;
+            this.stateReply = stateReply;
+        }
+    }
 }
@@ -1,10 +1,13 @@
 package tartan.smarthome.resources.iotcontroller;
 
 import java.io.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import tartan.smarthome.resources.TartanStateEvaluator;
+import tartan.smarthome.resources.rules.RuleTrace;
 
 /**
  * Controls the state of the IoT house. This class manages house state; it is
@@ -17,6 +20,12 @@ import tartan.smarthome.resources.TartanStateEvaluator;
 
 public class IoTControlManager {
 
+    /** the delay before the first poll of the house, and between polls while it does not answer */
+    public static final long POLL_INTERVAL_MS = 5000;
+
+    /** the number of event log entries kept for the house, unless configured otherwise */
+    public static final int DEFAULT_EVENT_LOG_SIZE = 1000;
+
     /** connection to the house */
     private IoTConnectManager connMgr;
 
@@ -28,18 +37,54 @@ public class IoTControlManager {
     /** the path to user settings and credentials */
     private String settingsPath;
 
-    /** the log messages */
-    private Vector<String> logMessages;
+    /** the event log of the house */
+    private EvaluationLog eventLog = new EvaluationLog(DEFAULT_EVENT_LOG_SIZE);
 
     private LoginHandler loginHandler;
 
-    /** Thread to manage state updates */
-    private Thread updateThread;
+    /** Runs the state updates */
+    private HousePollingScheduler scheduler;
+
+    /** The scheduled state updates for this house */
+    private HousePollingScheduler.Poller poller;
+
+    /** Polls in a row that got no state from the house */
+    private int missedUpdates = 0;
+
+    /** Chooses the delay before the next poll */
+    private AdaptivePollPolicy pollPolicy;
+    private volatile long nextPollDelayMs = POLL_INTERVAL_MS;
+
+    /** The state the house reported on the last poll, to notice changes */
+    private final HouseState previousReported = new HouseState();
+
+    /** Ask the house to push state changes; polls then only check that the house is still there */
+    private volatile boolean pushUpdates = false;
+    private volatile boolean pushActive = false;
+
+    /** Set when the house is disconnected on purpose, so that the polls do not reconnect it */
+    private volatile boolean disconnected = false;
+
+    /** Runs the away timers of all houses */
+    private final HashedWheelTimer awayTimers = HashedWheelTimer.getSharedTimer();
+
+    /** The pending away timer, if the house is vacant */
+    private volatile HashedWheelTimer.Timeout awayTimer = null;
 
     /** Handle updates to the house state */
     private TartanStateEvaluator stateEvaluator;
 
-    private Map<String, Object> lastState;  
+    /** What the rules did on the last evaluation, so that the next one only reruns the rules that need it */
+    private final RuleTrace ruleTrace = new RuleTrace();
+
+    /** The last complete state of the house, including user settings. Guarded by itself */
+    private final HouseState lastState = new HouseState();
+
+    /** Set once the house has reported its state, so that the last state holds more than the settings */
+    private volatile boolean reported = false;
+
+    /** The user settings as house state fields. Guarded by itself */
+    private final HouseState settings = new HouseState();
 
     /**
      * Constructor for the controller
@@ -48,8 +93,22 @@ public class IoTControlManager {
      * @param password the password
      */
     public IoTControlManager(String user, String password, TartanStateEvaluator evaluator) {
+        this(user, password, evaluator, HousePollingScheduler.getSharedScheduler());
+    }
+
+    /**
+     * Constructor for the controller
+     *
+     * @param user      the user name
+     * @param password  the password
+     * @param evaluator the state evaluator
+     * @param scheduler runs the state updates for the house
+     */
+    public IoTControlManager(String user, String password, TartanStateEvaluator evaluator,
+                             HousePollingScheduler scheduler) {
 
-        logMessages = new Vector<String>();
+        this.scheduler = scheduler;
+        this.pollPolicy = scheduler.newPollPolicy(POLL_INTERVAL_MS);
 
         userSettings = new Hashtable<String, Object>();
 
@@ -62,8 +121,6 @@ public class IoTControlManager {
         loginHandler = new LoginHandler(this.users);
 
         connMgr = null;
-
-        lastState = new Hashtable<>();
     }
 
     /**
@@ -116,7 +173,9 @@ public class IoTControlManager {
         initialSettings.put(IoTValues.LOCK_PASSCODE, lockPasscode);
         
         // The away timer is not set to start
-        lastState.put(IoTValues.AWAY_TIMER, false);
+        synchronized (lastState) {
+            lastState.setFlag(HouseStateField.AWAY_TIMER, false);
+        }
 
         // update the settings
         updateSettings(initialSettings);
@@ -130,6 +189,9 @@ public class IoTControlManager {
     public void updateSettings(Map<String, Object> newSettings) {
         if (userSettings != null && newSettings != null) {
             userSettings.putAll(newSettings);
+            synchronized (settings) {
+                settings.putAll(newSettings);
+            }
         }
     }
 
@@ -142,113 +204,242 @@ public class IoTControlManager {
         return userSettings;
     }
 
-    public Thread getUpdateThread() {
-        return updateThread;
+    /**
+     * Choose whether the house is asked to push its state changes. Only houses that support push mode may be
+     * asked; it takes effect on the next connection
+     * @param pushUpdates true to ask for pushed updates
+     */
+    public void setPushUpdates(boolean pushUpdates) {
+        this.pushUpdates = pushUpdates;
+    }
+
+    /**
+     * Choose how many entries the event log of the house keeps. It takes effect before the house is
+     * connected; entries recorded until then are dropped
+     * @param size the number of entries; 0 records nothing
+     */
+    public void setEventLogSize(int size) {
+        this.eventLog = new EvaluationLog(size);
+    }
+
+    public HousePollingScheduler.Poller getPoller() {
+        return poller;
     }
 
     /**
-     * User-initiated state update
+     * User-initiated state update that waits for the house to answer
      * @param stateUpdate
      */
     public void processStateUpdate(Map<String, Object> stateUpdate) {
+        processStateUpdateAsync(stateUpdate).join();
+    }
 
-        StringBuffer log = new StringBuffer();
-
-        // User settings are part of the state
-        Map<String, Object> completeState = new Hashtable<>();
-        completeState.putAll(fetchState());
-        completeState.putAll(stateUpdate);     
-        Map<String, Object> newState = stateEvaluator.evaluateState(completeState, log);
-        logMessages.add(log.toString());
-        synchronized(connMgr) {
-            connMgr.setState(newState);
-        }
-        this.lastState.putAll(newState);
+    /**
+     * User-initiated state update that does not block the caller while the house is contacted
+     * @param stateUpdate
+     * @return true if the house accepted the new state; false otherwise
+     */
+    public CompletableFuture<Boolean> processStateUpdateAsync(Map<String, Object> stateUpdate) {
+        return getCurrentHouseStateAsync().thenComposeAsync(newState -> {
+            if (newState == null) {
+                return CompletableFuture.completedFuture(false);
+            }
+            newState.putAll(stateUpdate);
+            stateEvaluator.evaluateState(newState, eventLog, ruleTrace);
+            saveLastState(newState);
+            return connMgr.setStateAsync(newState);
+        }, scheduler.getExecutor());
     }
 
     public Map<String, Object> getCurrentState() {
+        HouseState state = fetchState();
+        return state == null ? null : state.toMap();
+    }
+
+    /**
+     * Fetch the complete state from the house
+     * @return the state, including user settings, or null if the house is not connected or did not answer
+     */
+    public HouseState getCurrentHouseState() {
         return fetchState();
     }
 
+    /**
+     * Fetch the complete state from the house without blocking the caller
+     * @return the state, or null if the house is not connected or did not answer
+     */
+    public CompletableFuture<Map<String, Object>> getCurrentStateAsync() {
+        return getCurrentHouseStateAsync().thenApply(state -> state == null ? null : state.toMap());
+    }
+
+    /**
+     * Fetch the complete state from the house without blocking the caller
+     * @return the state, including user settings, or null if the house is not connected or did not answer
+     */
+    public CompletableFuture<HouseState> getCurrentHouseStateAsync() {
+        if (connMgr == null || connMgr.isConnected() == false) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return connMgr.getHouseStateAsync().thenApply(this::updateLastState);
+    }
+
     /**
      * Fetch the complete state from the house
      * @return
      */
-    private Map<String, Object> fetchState() {
-        // Map<String, Object> state = null;
-        synchronized (connMgr) {
-            if (connMgr.isConnected() == false) {
-                return null;
+    private HouseState fetchState() {
+        // the connection matches answers to requests, so no monitor is needed, and a virtual thread waiting
+        // here does not pin its carrier
+        return getCurrentHouseStateAsync().join();
+    }
+
+    /**
+     * Record the state reported by the house
+     * @param state the reported state
+     * @return a copy of the complete state, including user settings, for the caller to evaluate
+     */
+    private HouseState updateLastState(HouseState state) {
+        if (state == null) {
+            return null;
+        }
+        synchronized (lastState) {
+            lastState.copyFrom(state);
+
+            // The away timer is controlled here
+            lastState.setFlag(HouseStateField.AWAY_TIMER, false);
+
+            // The state includes the user settings
+            synchronized (settings) {
+                lastState.putAll(settings);
             }
-            lastState = connMgr.getState();
+            reported = true;
+            return lastState.copy();
+        }
+    }
+
+    /**
+     * Get the last complete state of the house, as the polls and pushed updates left it, without contacting
+     * the house. It includes what the last evaluation sent to the house
+     * @return a copy of the state, or null if the house is not connected or has not reported its state yet
+     */
+    public HouseState getLastHouseState() {
+        if (!reported || connMgr == null || connMgr.isConnected() == false) {
+            return null;
+        }
+        synchronized (lastState) {
+            return lastState.copy();
         }
+    }
 
-        // The away timer is controlled here
-        lastState.put(IoTValues.AWAY_TIMER, false);
+    /**
+     * Merge an evaluated state into the last state
+     * @param newState the evaluated state
+     */
+    private void saveLastState(HouseState newState) {
+        synchronized (lastState) {
+            lastState.putAll(newState);
+        }
+    }
 
-        // The state includes the user settings 
-        lastState.putAll(userSettings);
-        // lastState.putAll(state);
-        return lastState;
+    /**
+     * Start polling the house state
+     */
+    private void startHouseUpdates() {
+        poller = scheduler.schedule(this::updateHouse, () -> nextPollDelayMs, POLL_INTERVAL_MS);
+        updateLog("Started update monitor");
     }
 
     /**
-     * Start a thread to poll the house state
+     * One state update: fetch the house state, evaluate it and send the result back to the house. Only the
+     * evaluation runs on a polling thread; the house is never waited on
+     * @return completes when the house has answered
      */
-    private void startHouseUpdateThread() {
+    private CompletableFuture<Boolean> updateHouse() {
+        if (connMgr != null && !connMgr.isConnected() && !disconnected) {
+            reconnect();
+        }
+        return getCurrentHouseStateAsync().thenComposeAsync(currentState -> {
+            if (currentState == null) {
+                nextPollDelayMs = pollPolicy.missed();
+                missedUpdates++;
+                if (missedUpdates > 6) { // 6 missed updates is 30 seconds
+                    return revertState();
+                }
+                return CompletableFuture.completedFuture(false);
+            }
+            return evaluateHouseState(currentState, true);
+        }, scheduler.getExecutor());
+    }
 
-        updateThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
+    /**
+     * Handle a state the house pushed. The evaluation is handed to the scheduler, since this is called on
+     * the connection's selector thread
+     * @param state the reported state
+     */
+    private void statePushed(HouseState state) {
+        try {
+            scheduler.getExecutor().execute(() -> evaluateHouseState(updateLastState(state), false));
+        } catch (RejectedExecutionException ree) {
+            // shutting down
+        }
+    }
 
-                Integer missedUpdates = 0;
-                while (true) {
+    /**
+     * Evaluate the state of the house and send the result back to the house
+     * @param currentState the complete state, including user settings
+     * @param polled true if the state was polled, false if the house pushed it
+     * @return completes when the house has answered
+     */
+    private CompletableFuture<Boolean> evaluateHouseState(HouseState currentState, boolean polled) {
+        // somebody is home, so the house must not be locked down
+        if (currentState.getFlag(HouseStateField.PROXIMITY_STATE)) {
+            cancelAwayTimer();
+        }
 
-                    Map<String, Object> currentState = fetchState();
-                    if (currentState != null) {
+        HouseState newState = currentState.copy();
+        stateEvaluator.evaluateState(newState, eventLog, ruleTrace);
 
-                        StringBuffer log = new StringBuffer();
-                        Map<String, Object> newState = stateEvaluator.evaluateState(currentState, log);
-                        logMessages.add(log.toString());
-                        
-                        // save this state 
-                        IoTControlManager.this.lastState.putAll(newState);
+        // poll again soon if anything is happening in the house, unless the house says so itself
+        if (polled) {
+            boolean urgent = newState.getFlag(HouseStateField.ALARM_ACTIVE)
+                    || newState.getFlag(HouseStateField.INTRUDER_DETECTION_SENSOR);
+            boolean changed = stateChanged(currentState, newState);
+            nextPollDelayMs = pushActive ? pollPolicy.polled(false, false) : pollPolicy.polled(changed, urgent);
+        }
 
-                        synchronized (connMgr) {
-                            connMgr.setState(newState);
-                        }
-                        
-                        // Must handle away timer here
-                        if (true == (Boolean) newState.getOrDefault(IoTValues.AWAY_TIMER, false)) {
-                            startAwayTimer();
-                        }
-                        else 
-                        missedUpdates = 0;
+        // save this state
+        saveLastState(newState);
 
-                    } else {
-                        missedUpdates++;
-                    }
+        // Must handle away timer here
+        if (newState.getFlag(HouseStateField.AWAY_TIMER)) {
+            startAwayTimer();
+        }
+        else
+        missedUpdates = 0;
 
-                    if (missedUpdates > 6) { // 6 missed updates is 30 seconds
-                        revertState();
-                    }
+        return connMgr.setStateAsync(newState);
+    }
 
-                    // currently a 5sec delay
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException ie) {
-                    }
-                }
-            }
-        });
-        updateThread.start();
-        updateLog("Started update monitor");
+    /**
+     * Check if a poll found the house changing: either the house reported a different state than on the last
+     * poll, or the evaluation changed something the house must be told about
+     * @param now the state reported by the house
+     * @param wanted the evaluated state
+     * @return true if the state changed
+     */
+    private boolean stateChanged(HouseState now, HouseState wanted) {
+        boolean changed = now.changedFields(previousReported) != 0
+                || (wanted.changedFields(now) & wanted.getPresentMask() & SetStateEncoder.SETTABLE_FIELDS) != 0;
+        previousReported.copyFrom(now);
+        return changed;
     }
 
-    private void revertState() {
-        synchronized (connMgr) {
-            connMgr.setState(this.lastState);
+    private CompletableFuture<Boolean> revertState() {
+        HouseState state;
+        synchronized (lastState) {
+            state = lastState.copy();
         }
+        return connMgr.setStateAsync(state);
     }
 
     /**
@@ -271,17 +462,53 @@ public class IoTControlManager {
         connMgr = new IoTConnectManager(conn);
 
         if (connMgr.isConnected()) {
-            startHouseUpdateThread();
+            disconnected = false;
+            startHouseUpdates();
+            subscribe();
             return true;
         }
         updateLog("Connected!");
         return false;
     }
 
+    /**
+     * Connect to the house again after the connection was lost, for instance because the house stopped
+     * answering. A failed attempt counts as a missed poll, and the next poll tries again
+     */
+    private void reconnect() {
+        pushActive = false;
+        if (connMgr.reconnect()) {
+            updateLog("Reconnected");
+            subscribe();
+        }
+    }
+
+    /**
+     * Ask the house to push its state changes, if configured to. A house that refuses, or does not answer,
+     * is not asked again and is polled instead
+     */
+    private void subscribe() {
+        if (pushUpdates) {
+            connMgr.subscribeAsync(this::statePushed).thenAccept(subscribed -> {
+                pushActive = subscribed;
+                if (!subscribed) {
+                    pushUpdates = false;
+                }
+                updateLog(subscribed ? "House pushes state updates" : "House does not push state updates");
+            });
+        }
+    }
+
     /**
      * Disconnect from a house
      */
     public void disconnectFromHouse() {
+        disconnected = true;
+        if (poller != null) {
+            poller.cancel();
+        }
+        cancelAwayTimer();
+        pushActive = false;
         if (connMgr.isConnected()) {
             connMgr.disconnectFromHouse();
         }
@@ -293,13 +520,23 @@ public class IoTControlManager {
      * @param logEntry the new log entry
      */
     public void updateLog(String logEntry) {
-        Long timeStamp = System.currentTimeMillis();
-        SimpleDateFormat sdf = new SimpleDateFormat("MMM dd,yyyy HH:mm");
-        logMessages.add("[" + sdf.format(new Date(timeStamp)) + "]: " + logEntry + "\n");
+        eventLog.record(logEntry);
     }
 
-    public Vector<String> getLogMessages() {
-        return logMessages;
+    /**
+     * Get the event log of the house as text
+     * @return the log entries, oldest first
+     */
+    public List<String> getLogMessages() {
+        return eventLog.render();
+    }
+
+    /**
+     * Get the event log of the house
+     * @return the log
+     */
+    public EvaluationLog getEventLog() {
+        return eventLog;
     }
 
     /**
@@ -307,31 +544,51 @@ public class IoTControlManager {
      * the house down
      */
     private void startAwayTimer() {
-        Timer t = new Timer();
 
         Integer awayTimeout = (Integer) userSettings.get(IoTValues.ALARM_DELAY);
 
-        t.schedule(new TimerTask() {
+        // the timer thread only hands the lockdown to the scheduler, which may wait on the house
+        HashedWheelTimer.Timeout previous = awayTimer;
+        awayTimer = awayTimers.schedule(() -> {
+            try {
+                scheduler.getExecutor().execute(this::awayTimerExpired);
+            } catch (RejectedExecutionException ree) {
+                // shutting down
+            }
+        }, awayTimeout, TimeUnit.SECONDS);
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
 
-            /**
-             * This anonymous thread updates the state when the house is vacant
-             */
-            @Override
-            public void run() {
+    /**
+     * Stop a pending away timer
+     */
+    private void cancelAwayTimer() {
+        HashedWheelTimer.Timeout t = awayTimer;
+        if (t != null) {
+            t.cancel();
+            awayTimer = null;
+        }
+    }
 
-                // signal that the away timer has fired
-                IoTControlManager.this.lastState.put(IoTValues.AWAY_TIMER, true);
+    /**
+     * Update the state when the house has been vacant for the away timeout
+     */
+    private void awayTimerExpired() {
 
-                synchronized (connMgr) {
+        // signal that the away timer has fired
+        HouseState newState;
+        synchronized (lastState) {
+            lastState.setFlag(HouseStateField.AWAY_TIMER, true);
+            newState = lastState.copy();
+        }
 
-                    StringBuffer log = new StringBuffer();
-                    Map<String, Object> newState = stateEvaluator.evaluateState(IoTControlManager.this.lastState, log);
-                    logMessages.add(log.toString());
-                    connMgr.setState(newState);
-                    IoTControlManager.this.lastState.putAll(newState);
-                }
-            }
-        }, awayTimeout * 1000);
+        // only the evaluation takes turns with the user's updates; the house is not waited on
+        synchronized (connMgr) {
+            stateEvaluator.evaluateState(newState, eventLog, ruleTrace);
+        }
+        connMgr.setStateAsync(newState).thenRun(() -> saveLastState(newState));
     }
 
     /**
@@ -0,0 +1,151 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The network transport shared by all house connections. Instead of a blocking socket per house, every
+ * connection is a non-blocking channel driven by one of a small, fixed number of selector threads. All
+ * channel I/O for a connection happens on the selector thread that owns it.
+ */
+public class IoTTransport {
+
+    /** the number of selector threads used by the shared transport */
+    public static final int DEFAULT_SELECTOR_THREADS = 2;
+
+    private static IoTTransport sharedTransport = null;
+
+    /** the selector threads */
+    private final SelectorLoop[] loops;
+
+    /** used to spread connections over the selector threads */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Get the transport shared by all houses in this JVM
+     * @return the shared transport
+     */
+    public static synchronized IoTTransport getSharedTransport() {
+        if (sharedTransport == null) {
+            sharedTransport = new IoTTransport(DEFAULT_SELECTOR_THREADS);
+        }
+        return sharedTransport;
+    }
+
+    /**
+     * Create a new transport
+     * @param selectorThreads the number of selector threads to run
+     */
+    public IoTTransport(int selectorThreads) {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("At least one selector thread is required");
+        }
+        loops = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            try {
+                loops[i] = new SelectorLoop("iot-selector-" + i);
+            } catch (IOException ioe) {
+                throw new IllegalStateException("Unable to open selector", ioe);
+            }
+        }
+    }
+
+    /**
+     * Pick the selector thread for a new connection
+     * @return the selector thread
+     */
+    SelectorLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Stop all selector threads. Connections still open on this transport are closed.
+     */
+    public void shutdown() {
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * A single selector thread. Work that touches a channel is handed to the loop through execute()
+     */
+    static class SelectorLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        SelectorLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Selector getSelector() {
+            return selector;
+        }
+
+        /**
+         * Run a task on the selector thread
+         * @param task the task
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        IoTConnection conn = (IoTConnection) key.attachment();
+                        conn.handleReady(key);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("Selector thread " + thread.getName() + " stopped: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((IoTConnection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException re) {
+                    re.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -58,6 +58,7 @@ public abstract class IoTValues {
     public static final String CHILLER_OFF = "0";
 
     public static final String OK = "OK";
+    public static final String ERROR = "ER";
 
     public static final String ALARM_DELAY = "ALARM_DELAY";
     public static final String ALARM_PASSCODE = "ALARM_PASSCODE";
@@ -66,6 +67,7 @@ public abstract class IoTValues {
     public static final String GET_STATE = "GS";
     public static final String SET_STATE = "SS";
     public static final String STATE_UPDATE = "SU";
+    public static final String PUSH_SUBSCRIBE = "PU";
 
     public static final String SETTINGS_FILE = "settings.txt";
     public static final String USERS_DB = "users.txt";
@@ -0,0 +1,113 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes set state messages (SS:K=V;K=V.) straight into a byte buffer. The bytes for the command and for
+ * each "key=" are computed once, so encoding a state is a handful of bulk puts and creates no garbage.
+ */
+public final class SetStateEncoder {
+
+    /** The fields the house accepts in a set state message. Readings and the HVAC mode are reported only */
+    public static final long SETTABLE_FIELDS = maskOf(
+            HouseStateField.DOOR_STATE,
+            HouseStateField.LOCK_STATE,
+            HouseStateField.ARRIVING_PROXIMITY_STATE,
+            HouseStateField.LOCK_KEYLESS_ENTRY_ENABLE,
+            HouseStateField.LOCK_NIGHT_LOCK_ENABLED,
+            HouseStateField.LOCK_ELECTRONIC_OPERATION_ENABLE,
+            HouseStateField.LOCK_INTRUDER_SENSOR_MODE,
+            HouseStateField.INTRUDER_DETECTION_SENSOR,
+            HouseStateField.PANEL_MESSAGE,
+            HouseStateField.LIGHT_STATE,
+            HouseStateField.ALARM_STATE,
+            HouseStateField.ALARM_ACTIVE,
+            HouseStateField.HUMIDIFIER_STATE,
+            HouseStateField.CHILLER_STATE,
+            HouseStateField.HEATER_STATE);
+
+    /** The largest message the encoder can produce */
+    public static final int MAX_MESSAGE_SIZE;
+
+    private static final byte[] HEADER = ascii(IoTValues.SET_STATE + IoTValues.MSG_DELIM);
+    private static final byte PARAM_DELIM = (byte) IoTValues.PARAM_DELIM.charAt(0);
+    private static final byte MSG_END = (byte) IoTValues.MSG_END.charAt(0);
+    private static final byte ON = '1';
+    private static final byte OFF = '0';
+
+    /** "key=" for each field, indexed by ordinal */
+    private static final byte[][] PREFIXES;
+
+    static {
+        HouseStateField[] fields = HouseStateField.fields();
+        PREFIXES = new byte[fields.length][];
+        // every field is "key=V" and a delimiter, except that the last one ends with the terminator instead
+        int max = HEADER.length;
+        for (HouseStateField f : fields) {
+            PREFIXES[f.ordinal()] = ascii(f.getKey() + IoTValues.PARAM_EQ);
+            if ((SETTABLE_FIELDS & f.mask()) != 0) {
+                max += PREFIXES[f.ordinal()].length + 2;
+            }
+        }
+        MAX_MESSAGE_SIZE = max;
+    }
+
+    private SetStateEncoder() { }
+
+    /**
+     * Encode the settable fields reported in a state
+     * @param state the state to send
+     * @param out the buffer to write to
+     */
+    public static void encode(HouseState state, ByteBuffer out) {
+        encode(state.getPresentMask(), state.getFlagMask(), out);
+    }
+
+    /**
+     * Encode a set state message. Fields are written in {@link HouseStateField} order
+     * @param fields the fields to send; fields the house does not accept are ignored
+     * @param values the on/off value of each field
+     * @param out the buffer to write to, with room for at least {@link #MAX_MESSAGE_SIZE} bytes
+     */
+    public static void encode(long fields, long values, ByteBuffer out) {
+        out.put(HEADER);
+        long todo = fields & SETTABLE_FIELDS;
+        while (todo != 0) {
+            int ordinal = Long.numberOfTrailingZeros(todo);
+            long bit = 1L << ordinal;
+            todo &= ~bit;
+
+            out.put(PREFIXES[ordinal]);
+            out.put((values & bit) != 0 ? ON : OFF);
+            if (todo != 0) {
+                out.put(PARAM_DELIM);
+            }
+        }
+        out.put(MSG_END);
+    }
+
+    /**
+     * Render a message as text, for logging
+     * @param fields the fields to send
+     * @param values the on/off value of each field
+     * @return the message that {@link #encode(long, long, ByteBuffer)} writes
+     */
+    public static String toString(long fields, long values) {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+        encode(fields, values, buf);
+        return new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII);
+    }
+
+    private static long maskOf(HouseStateField... fields) {
+        long mask = 0L;
+        for (HouseStateField f : fields) {
+            mask |= f.mask();
+        }
+        return mask;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
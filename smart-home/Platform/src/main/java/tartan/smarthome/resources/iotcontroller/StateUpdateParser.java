@@ -0,0 +1,200 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses the state update message sent by the house (SU:K=V;K=V.) into a {@link HouseState}. The message
+ * is scanned in place, so parsing does not allocate: there are no substrings, tokenizers or boxed values.
+ *
+ * The rules match the original string based parser: the message must be a single SU command, a trailing
+ * message terminator is optional, empty parameters are skipped, unknown keys are ignored and every value
+ * must be a decimal integer.
+ *
+ * A parser keeps a reusable view for byte buffers, so it must not be shared between threads.
+ */
+public class StateUpdateParser {
+
+    private static final char MSG_DELIM = IoTValues.MSG_DELIM.charAt(0);
+    private static final char PARAM_DELIM = IoTValues.PARAM_DELIM.charAt(0);
+    private static final char PARAM_EQ = IoTValues.PARAM_EQ.charAt(0);
+    private static final char MSG_END = IoTValues.MSG_END.charAt(0);
+
+    private final ByteChars bytes = new ByteChars();
+
+    /**
+     * Parse a state update
+     * @param msg the message
+     * @param state the state to fill in. It is cleared first
+     * @return true if the message was a valid state update, false otherwise (the state is left empty)
+     */
+    public boolean parse(CharSequence msg, HouseState state) {
+        state.clear();
+        if (msg == null || !parseMessage(msg, state)) {
+            state.clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse a state update held in a buffer of ASCII bytes. The bytes between the position and the limit are
+     * read; the position of the buffer is not changed
+     * @param msg the message
+     * @param state the state to fill in. It is cleared first
+     * @return true if the message was a valid state update, false otherwise (the state is left empty)
+     */
+    public boolean parse(ByteBuffer msg, HouseState state) {
+        bytes.wrap(msg);
+        try {
+            return parse(bytes, state);
+        } finally {
+            bytes.wrap(null);
+        }
+    }
+
+    private static boolean parseMessage(CharSequence msg, HouseState state) {
+        int len = msg.length();
+
+        // the command is everything up to the first delimiter
+        int delim = indexOf(msg, MSG_DELIM, 0, len);
+        if (delim < 0) {
+            return false;
+        }
+        if (delim != IoTValues.STATE_UPDATE.length()
+                || !regionMatches(msg, 0, IoTValues.STATE_UPDATE)) { // only message that comes from house
+            return false;
+        }
+
+        // trailing delimiters are ignored, any others mean this is not a single command
+        int end = len;
+        while (end > delim && msg.charAt(end - 1) == MSG_DELIM) {
+            end--;
+        }
+        int start = delim + 1;
+        if (start >= end || indexOf(msg, MSG_DELIM, start, end) >= 0) {
+            return false;
+        }
+        if (msg.charAt(end - 1) == MSG_END) {
+            end--;
+        }
+
+        // process the new state
+        int p = start;
+        while (p < end) {
+            int paramEnd = indexOf(msg, PARAM_DELIM, p, end);
+            if (paramEnd < 0) {
+                paramEnd = end;
+            }
+            if (paramEnd > p && !parseParam(msg, p, paramEnd, state)) {
+                return false;
+            }
+            p = paramEnd + 1;
+        }
+        return true;
+    }
+
+    private static boolean parseParam(CharSequence msg, int start, int end, HouseState state) {
+        int eq = indexOf(msg, PARAM_EQ, start, end);
+        if (eq < 0) {
+            return false;
+        }
+        // like the original parser, anything after a second '=' is ignored
+        int valueEnd = indexOf(msg, PARAM_EQ, eq + 1, end);
+        if (valueEnd < 0) {
+            valueEnd = end;
+        }
+
+        int valueStart = eq + 1;
+        if (valueStart == valueEnd) {
+            return false;
+        }
+        boolean negative = false;
+        char first = msg.charAt(valueStart);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            valueStart++;
+            if (valueStart == valueEnd) {
+                return false;
+            }
+        }
+        long val = 0;
+        for (int i = valueStart; i < valueEnd; i++) {
+            char c = msg.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            val = val * 10 + (c - '0');
+            if (val > (long) Integer.MAX_VALUE + 1) {
+                return false;
+            }
+        }
+        if (negative) {
+            val = -val;
+        }
+        if (val > Integer.MAX_VALUE) {
+            return false;
+        }
+
+        HouseStateField field = HouseStateField.lookup(msg, start, eq);
+        if (field != null && field.isReported()) {
+            state.setInt(field, (int) val);
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence s, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(CharSequence s, int offset, String expected) {
+        for (int i = 0; i < expected.length(); i++) {
+            if (s.charAt(offset + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A character view of ASCII bytes in a buffer
+     */
+    private static class ByteChars implements CharSequence {
+        private ByteBuffer buffer;
+        private int offset;
+        private int length;
+
+        void wrap(ByteBuffer buf) {
+            buffer = buf;
+            offset = (buf == null) ? 0 : buf.position();
+            length = (buf == null) ? 0 : buf.remaining();
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(offset + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            byte[] b = new byte[length];
+            buffer.get(offset, b);
+            return new String(b, StandardCharsets.US_ASCII);
+        }
+    }
+}
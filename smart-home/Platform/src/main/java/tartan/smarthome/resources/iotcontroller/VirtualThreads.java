@@ -0,0 +1,32 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates virtual threads for house work. Kept in one place so the rest of the controller only chooses
+ * between virtual and platform threads
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() { }
+
+    /**
+     * Start a virtual thread
+     * @param name the thread name
+     * @param task the work to run
+     * @return the started thread
+     */
+    static Thread start(String name, Runnable task) {
+        return Thread.ofVirtual().name(name).start(task);
+    }
+
+    /**
+     * Create an executor that runs every task on a new virtual thread
+     * @param prefix the prefix of the thread names
+     * @return the executor
+     */
+    static ExecutorService newExecutor(String prefix) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 0).factory());
+    }
+}
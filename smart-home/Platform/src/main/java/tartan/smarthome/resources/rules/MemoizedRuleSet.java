@@ -0,0 +1,154 @@
+package tartan.smarthome.resources.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Remembers the outcomes of a {@link RuleSet}. The outcome of the rules depends on nothing but the bits they
+ * are given, so the bits are the key: the evaluated bits and the messages of the rules that fired are kept
+ * for each key seen, and a state that was seen before is evaluated with one table lookup.
+ *
+ * The table is bounded and direct mapped: each key has one slot, and a key that hashes to a taken slot
+ * replaces the outcome in it. Houses in the same few states share their outcomes; unusual states are
+ * evaluated in full. A memoized rule set may be shared by any number of threads.
+ *
+ * An outcome also keeps the rule each block fired, so a house evaluated with a {@link RuleTrace} can use the
+ * table too: a hit brings the trace up to date without running a block, and a miss runs only the blocks the
+ * trace says need it.
+ */
+public final class MemoizedRuleSet {
+
+    /**
+     * The outcome of the rules for one key. Outcomes are immutable, so they are safely published through the
+     * table without locking
+     */
+    private static final class Outcome {
+        final long key;
+        final long result;
+        final String[] messages;
+        final short[] fired;
+
+        Outcome(long key, long result, String[] messages, short[] fired) {
+            this.key = key;
+            this.result = result;
+            this.messages = messages;
+            this.fired = fired;
+        }
+    }
+
+    private final RuleSet rules;
+    private final Outcome[] table;
+    private final int shift;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a memoized rule set
+     * @param rules the rules
+     * @param capacity the most outcomes to keep, rounded up to a power of two
+     */
+    public MemoizedRuleSet(RuleSet rules, int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.rules = rules;
+        this.table = new Outcome[size];
+        this.shift = 64 - Integer.numberOfTrailingZeros(size);
+    }
+
+    /**
+     * Run the rules, or look up their outcome
+     * @param bits the state to evaluate
+     * @param log receives the messages of the rules that fire, in order
+     * @return the evaluated state
+     */
+    public long evaluate(long bits, Consumer<String> log) {
+        int slot = slot(bits);
+        Outcome outcome = table[slot];
+        if (outcome != null && outcome.key == bits) {
+            hits.increment();
+        } else {
+            misses.increment();
+            long[] state = {bits};
+            short[] fired = new short[rules.getBlockCount()];
+            rules.evaluate(state, 1, fired);
+            outcome = remember(slot, bits, state[0], fired);
+        }
+        for (String message : outcome.messages) {
+            log.accept(message);
+        }
+        return outcome.result;
+    }
+
+    /**
+     * Look up the outcome of the rules for a house evaluated with a trace, or run the blocks the trace says
+     * need it. Either way the trace is left as {@link RuleSet#evaluate(long, RuleTrace, Consumer)} leaves it
+     * @param bits the state to evaluate
+     * @param trace what the rules did on the last evaluation of the house; updated for this one
+     * @param log receives the messages of the rules that fire, in order
+     * @return the evaluated state
+     */
+    public long evaluate(long bits, RuleTrace trace, Consumer<String> log) {
+        int slot = slot(bits);
+        Outcome outcome = table[slot];
+        if (outcome != null && outcome.key == bits) {
+            hits.increment();
+            return rules.apply(bits, outcome.fired, trace, log);
+        }
+        misses.increment();
+        long result;
+        short[] fired;
+        synchronized (trace) {
+            result = rules.evaluate(bits, trace, log);
+            fired = trace.fired.clone();
+        }
+        remember(slot, bits, result, fired);
+        return result;
+    }
+
+    private Outcome remember(int slot, long bits, long result, short[] fired) {
+        List<String> messages = new ArrayList<>();
+        rules.replay(fired, 1, 0, messages::add);
+        Outcome outcome = new Outcome(bits, result, messages.toArray(new String[0]), fired);
+        table[slot] = outcome;
+        return outcome;
+    }
+
+    /**
+     * Get the number of outcomes the table can hold
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return table.length;
+    }
+
+    /**
+     * Get the number of evaluations answered from the table
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of evaluations that ran the rules
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private int slot(long bits) {
+        if (shift == 64) {
+            return 0;
+        }
+        // Fibonacci hashing spreads keys that differ in a few bits over the whole table
+        return (int) ((bits * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+}
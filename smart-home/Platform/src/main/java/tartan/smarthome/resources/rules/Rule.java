@@ -0,0 +1,73 @@
+package tartan.smarthome.resources.rules;
+
+/**
+ * One rule of a {@link RuleSet}: when its condition holds, its action sets and clears state bits and its
+ * messages are logged. The condition is a conjunction over state bits: some bits must be set and some must be
+ * clear; bits in neither mask are not looked at.
+ *
+ * Rules are declared once, before the rule set is compiled, and are not changed afterwards.
+ */
+public final class Rule {
+
+    final long ifSet;
+    final long ifClear;
+    long set = 0L;
+    long clear = 0L;
+    String[] messages = new String[0];
+
+    private Rule(long ifSet, long ifClear) {
+        if ((ifSet & ifClear) != 0) {
+            throw new IllegalArgumentException("A rule cannot need a bit both set and clear");
+        }
+        this.ifSet = ifSet;
+        this.ifClear = ifClear;
+    }
+
+    /**
+     * Start a rule
+     * @param ifSet the bits that must be set for the rule to fire
+     * @param ifClear the bits that must be clear for the rule to fire
+     * @return the rule
+     */
+    public static Rule when(long ifSet, long ifClear) {
+        return new Rule(ifSet, ifClear);
+    }
+
+    /**
+     * Start a rule that fires whenever no earlier rule of its block did
+     * @return the rule
+     */
+    public static Rule otherwise() {
+        return new Rule(0L, 0L);
+    }
+
+    /**
+     * Set bits when the rule fires
+     * @param bits the bits to set
+     * @return this rule
+     */
+    public Rule set(long bits) {
+        this.set |= bits;
+        return this;
+    }
+
+    /**
+     * Clear bits when the rule fires
+     * @param bits the bits to clear
+     * @return this rule
+     */
+    public Rule clear(long bits) {
+        this.clear |= bits;
+        return this;
+    }
+
+    /**
+     * Log messages when the rule fires
+     * @param messages the messages, in order
+     * @return this rule
+     */
+    public Rule log(String... messages) {
+        this.messages = messages.clone();
+        return this;
+    }
+}
@@ -0,0 +1,312 @@
+package tartan.smarthome.resources.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A compiled set of rules over a 64 bit state. The rules are declared in blocks that run in order. Within a
+ * block, the first rule whose condition holds fires and the others are skipped, just like an if/else chain;
+ * a later block sees the bits the earlier blocks changed.
+ *
+ * Compiling turns each block into a decision table indexed by the few bits its conditions look at, so
+ * evaluating a block is one table lookup whatever the number of rules in it. Combinations no rule matches
+ * select rule 0, which changes nothing, so evaluation does not branch on the rules. A compiled rule set is
+ * immutable and may be shared by any number of threads.
+ *
+ * The bits each block reads and the bits its rules write make a dependency graph between the blocks. When a
+ * few bits change between two evaluations of the same house, only the blocks that read them, and the blocks
+ * that read what those change, need to run again; see {@link RuleTrace}.
+ */
+public final class RuleSet {
+
+    /** The most bits the conditions of one block may look at, which bounds the size of its table */
+    public static final int MAX_BLOCK_BITS = 10;
+
+    /** The bit positions each block looks at, lowest first */
+    private final int[][] blockBits;
+
+    /** The bits each block looks at, as a mask */
+    private final long[] blockReads;
+
+    /** For each block, the rule that fires for each combination of its bits; 0 for none */
+    private final short[][] blockTables;
+
+    /** The bits each rule sets, the bits it keeps and its messages. Rule 0 keeps everything */
+    private final long[] ruleSet;
+    private final long[] ruleKeep;
+    private final String[][] ruleMessages;
+
+    /** The bits each rule sets or clears */
+    private final long[] ruleWrites;
+
+    private RuleSet(int[][] blockBits, short[][] blockTables, List<Rule> rules) {
+        this.blockBits = blockBits;
+        this.blockTables = blockTables;
+        this.blockReads = new long[blockBits.length];
+        for (int b = 0; b < blockBits.length; b++) {
+            for (int position : blockBits[b]) {
+                blockReads[b] |= 1L << position;
+            }
+        }
+        this.ruleSet = new long[rules.size()];
+        this.ruleKeep = new long[rules.size()];
+        this.ruleMessages = new String[rules.size()][];
+        this.ruleWrites = new long[rules.size()];
+        for (int r = 0; r < rules.size(); r++) {
+            Rule rule = rules.get(r);
+            ruleSet[r] = rule.set;
+            ruleKeep[r] = ~rule.clear;
+            ruleMessages[r] = rule.messages;
+            ruleWrites[r] = rule.set | rule.clear;
+        }
+    }
+
+    /**
+     * Start declaring a rule set
+     * @return the builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Run the rules
+     * @param bits the state to evaluate
+     * @param log receives the messages of the rules that fire, in order
+     * @return the evaluated state
+     */
+    public long evaluate(long bits, Consumer<String> log) {
+        for (int b = 0; b < blockBits.length; b++) {
+            int r = blockTables[b][index(blockBits[b], bits)];
+            bits = (bits & ruleKeep[r]) | ruleSet[r];
+            for (String message : ruleMessages[r]) {
+                log.accept(message);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Run the rules again for a house whose state changed since the trace was made. A block runs only if it
+     * reads a bit that changed, or a bit a block before it wrote differently than last time; every other block
+     * fires the same rule as last time, which is applied without being looked up. The messages of the rules
+     * that are applied are logged as well, so the log tells the whole state of the house every time. The first
+     * evaluation with a trace runs every block
+     * @param bits the state to evaluate
+     * @param trace what the rules did on the last evaluation of the house; updated for this one
+     * @param log receives the messages of the rules that fire, in order, the same as
+     * {@link #evaluate(long, Consumer)} logs
+     * @return the evaluated state, the same as {@link #evaluate(long, Consumer)} returns
+     */
+    public long evaluate(long bits, RuleTrace trace, Consumer<String> log) {
+        return evaluate(bits, null, trace, log);
+    }
+
+    /**
+     * Bring a trace up to an evaluation whose outcome is known, such as one remembered by a
+     * {@link MemoizedRuleSet}, as if {@link #evaluate(long, RuleTrace, Consumer)} had run it. No block is
+     * looked up, but the messages are logged, so the log is the same
+     * @param bits the state to evaluate
+     * @param fired the rule each block fires for the state
+     * @param trace what the rules did on the last evaluation of the house; updated for this one
+     * @param log receives the messages of the rules that fire, in order
+     * @return the evaluated state
+     */
+    public long apply(long bits, short[] fired, RuleTrace trace, Consumer<String> log) {
+        return evaluate(bits, fired, trace, log);
+    }
+
+    private long evaluate(long bits, short[] known, RuleTrace trace, Consumer<String> log) {
+        synchronized (trace) {
+            boolean all = trace.rules != this;
+            if (all) {
+                trace.rules = this;
+                trace.fired = new short[blockBits.length];
+            }
+            short[] fired = trace.fired;
+
+            // the bits that may differ from the last evaluation at this point
+            long dirty = bits ^ trace.input;
+            trace.input = bits;
+            int evaluated = 0;
+            for (int b = 0; b < blockBits.length; b++) {
+                int r = fired[b];
+                if (all || (blockReads[b] & dirty) != 0) {
+                    int previous = r;
+                    r = known != null ? known[b] : blockTables[b][index(blockBits[b], bits)];
+                    if (r != previous) {
+                        dirty |= ruleWrites[r] | ruleWrites[previous];
+                        fired[b] = (short) r;
+                    }
+                    evaluated++;
+                }
+                bits = (bits & ruleKeep[r]) | ruleSet[r];
+                for (String message : ruleMessages[r]) {
+                    log.accept(message);
+                }
+            }
+            trace.evaluated = known != null ? 0 : evaluated;
+            return bits;
+        }
+    }
+
+    /**
+     * Get the blocks that may fire a different rule when some bits change, following the bits every rule of
+     * the blocks writes
+     * @param changed the bits that change
+     * @return the blocks, by index, in order
+     */
+    public List<Integer> getDependentBlocks(long changed) {
+        List<Integer> blocks = new ArrayList<>();
+        for (int b = 0; b < blockBits.length; b++) {
+            if ((blockReads[b] & changed) != 0) {
+                blocks.add(b);
+                for (short r : blockTables[b]) {
+                    changed |= ruleWrites[r];
+                }
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Run the rules for many states at once. The blocks run one after another over all the states, so each
+     * pass is a tight loop over the states with one table in use
+     * @param bits the states to evaluate; replaced by the evaluated states
+     * @param count the number of states
+     * @param fired if not null, receives the rule each block fired for each state, block by block: the rule
+     * of block b for state i is at b * count + i. It must hold {@link #getBlockCount()} * count rules
+     */
+    public void evaluate(long[] bits, int count, short[] fired) {
+        for (int b = 0; b < blockBits.length; b++) {
+            int[] positions = blockBits[b];
+            short[] table = blockTables[b];
+            int base = b * count;
+            for (int i = 0; i < count; i++) {
+                long state = bits[i];
+                int r = table[index(positions, state)];
+                bits[i] = (state & ruleKeep[r]) | ruleSet[r];
+                if (fired != null) {
+                    fired[base + i] = (short) r;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replay the messages of the rules that fired for one state of a batch
+     * @param fired the rules that fired, as filled in by {@link #evaluate(long[], int, short[])}
+     * @param count the number of states in the batch
+     * @param i the state
+     * @param log receives the messages, in order
+     */
+    public void replay(short[] fired, int count, int i, Consumer<String> log) {
+        for (int b = 0; b < blockBits.length; b++) {
+            for (String message : ruleMessages[fired[b * count + i]]) {
+                log.accept(message);
+            }
+        }
+    }
+
+    private static int index(int[] positions, long bits) {
+        int index = 0;
+        for (int i = 0; i < positions.length; i++) {
+            index |= (int) ((bits >>> positions[i]) & 1L) << i;
+        }
+        return index;
+    }
+
+    /**
+     * Get the number of blocks
+     * @return the number of blocks
+     */
+    public int getBlockCount() {
+        return blockBits.length;
+    }
+
+    /**
+     * Declares the blocks of a rule set, in the order they run
+     */
+    public static final class Builder {
+
+        private final List<Rule[]> blocks = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Add a block. The first of its rules whose condition holds fires
+         * @param rules the rules of the block, in order
+         * @return this builder
+         */
+        public Builder first(Rule... rules) {
+            if (rules.length == 0) {
+                throw new IllegalArgumentException("A block needs at least one rule");
+            }
+            blocks.add(rules.clone());
+            return this;
+        }
+
+        /**
+         * Compile the rule set
+         * @return the compiled rule set
+         * @throws IllegalArgumentException if a rule both sets and clears a bit, or a block looks at more than
+         * {@link #MAX_BLOCK_BITS} bits
+         */
+        public RuleSet compile() {
+            List<Rule> rules = new ArrayList<>();
+            rules.add(Rule.otherwise());
+            int[][] blockBits = new int[blocks.size()][];
+            short[][] blockTables = new short[blocks.size()][];
+
+            for (int b = 0; b < blocks.size(); b++) {
+                Rule[] block = blocks.get(b);
+                long used = 0L;
+                for (Rule rule : block) {
+                    if ((rule.set & rule.clear) != 0) {
+                        throw new IllegalArgumentException("A rule cannot both set and clear a bit");
+                    }
+                    used |= rule.ifSet | rule.ifClear;
+                }
+                int count = Long.bitCount(used);
+                if (count > MAX_BLOCK_BITS) {
+                    throw new IllegalArgumentException("Block " + b + " looks at " + count + " bits; at most "
+                            + MAX_BLOCK_BITS + " are allowed");
+                }
+                int[] positions = new int[count];
+                long rest = used;
+                for (int i = 0; i < count; i++) {
+                    positions[i] = Long.numberOfTrailingZeros(rest);
+                    rest &= rest - 1;
+                }
+
+                // every combination of the bits the block looks at decides which rule fires
+                short[] table = new short[1 << count];
+                for (int index = 0; index < table.length; index++) {
+                    long bits = 0L;
+                    for (int i = 0; i < count; i++) {
+                        if ((index & (1 << i)) != 0) {
+                            bits |= 1L << positions[i];
+                        }
+                    }
+                    for (int r = 0; r < block.length; r++) {
+                        Rule rule = block[r];
+                        if ((bits & rule.ifSet) == rule.ifSet && (bits & rule.ifClear) == 0) {
+                            table[index] = (short) (rules.size() + r);
+                            break;
+                        }
+                    }
+                }
+                rules.addAll(Arrays.asList(block));
+                blockBits[b] = positions;
+                blockTables[b] = table;
+            }
+            if (rules.size() > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("A rule set holds at most " + Short.MAX_VALUE + " rules");
+            }
+            return new RuleSet(blockBits, blockTables, rules);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package tartan.smarthome.resources.rules;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a rule set from text, so that the rules can be changed without building the application. The text
+ * declares the blocks of the rule set in order, for example
+ *
+ * <pre>
+ * # close the door of an empty house
+ * block
+ * when DS AS !PS set AA log "Break in detected: Activating alarm"
+ * when DS !PS clear DS log "Closed door because house vacant"
+ * otherwise log "Closed door"
+ * </pre>
+ *
+ * A line holding "block" starts a block, and the rules of the block follow, one per line. A rule starts with
+ * "when" and the names of the bits that must be set, or clear when the name starts with '!', or with
+ * "otherwise". Then "set" and "clear" name the bits the rule changes, and "log" gives its messages in double
+ * quotes. Everything after a '#' outside quotes is a comment.
+ */
+public final class RuleSetReader {
+
+    private final Map<String, Long> bits;
+
+    /**
+     * Create a reader
+     * @param bits the bit of each name the rules may use
+     */
+    public RuleSetReader(Map<String, Long> bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * Read and compile a rule set from a file
+     * @param file the file, in UTF-8
+     * @return the compiled rule set
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the text is not a valid rule set; the message gives the line
+     */
+    public RuleSet read(Path file) throws IOException {
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Read and compile a rule set
+     * @param in the text
+     * @return the compiled rule set
+     * @throws IOException if the text cannot be read
+     * @throws IllegalArgumentException if the text is not a valid rule set; the message gives the line
+     */
+    public RuleSet read(Reader in) throws IOException {
+        BufferedReader lines = new BufferedReader(in);
+        RuleSet.Builder builder = RuleSet.builder();
+        List<Rule> block = null;
+        int blocks = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            List<String> tokens = new ArrayList<>();
+            List<Boolean> quoted = new ArrayList<>();
+            try {
+                tokenize(line, tokens, quoted);
+                if (tokens.isEmpty()) {
+                    continue;
+                }
+                if (isKeyword(tokens, quoted, 0, "block")) {
+                    if (tokens.size() > 1) {
+                        throw new IllegalArgumentException("Unexpected " + tokens.get(1) + " after block");
+                    }
+                    if (block != null) {
+                        builder.first(block.toArray(new Rule[0]));
+                    }
+                    block = new ArrayList<>();
+                    blocks++;
+                    continue;
+                }
+                if (block == null) {
+                    throw new IllegalArgumentException("A rule must follow a block line");
+                }
+                block.add(parseRule(tokens, quoted));
+            } catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": " + iae.getMessage(), iae);
+            }
+        }
+        if (block == null) {
+            throw new IllegalArgumentException("The rule set has no blocks");
+        }
+        try {
+            builder.first(block.toArray(new Rule[0]));
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException("Block " + blocks + ": " + iae.getMessage(), iae);
+        }
+        return builder.compile();
+    }
+
+    private Rule parseRule(List<String> tokens, List<Boolean> quoted) {
+        int i = 1;
+        Rule rule;
+        if (isKeyword(tokens, quoted, 0, "when")) {
+            long ifSet = 0L;
+            long ifClear = 0L;
+            for (; i < tokens.size() && !isSection(tokens, quoted, i); i++) {
+                String name = tokens.get(i);
+                if (quoted.get(i)) {
+                    throw new IllegalArgumentException("Unexpected message " + name);
+                }
+                if (name.startsWith("!")) {
+                    ifClear |= bit(name.substring(1));
+                } else {
+                    ifSet |= bit(name);
+                }
+            }
+            rule = Rule.when(ifSet, ifClear);
+        } else if (isKeyword(tokens, quoted, 0, "otherwise")) {
+            rule = Rule.otherwise();
+        } else {
+            throw new IllegalArgumentException("Expected block, when or otherwise but found " + tokens.get(0));
+        }
+
+        while (i < tokens.size()) {
+            if (!isSection(tokens, quoted, i)) {
+                throw new IllegalArgumentException("Expected set, clear or log but found " + tokens.get(i));
+            }
+            String section = tokens.get(i++);
+            List<String> messages = new ArrayList<>();
+            for (; i < tokens.size() && !isSection(tokens, quoted, i); i++) {
+                if (section.equals("log")) {
+                    if (!quoted.get(i)) {
+                        throw new IllegalArgumentException("Messages must be quoted: " + tokens.get(i));
+                    }
+                    messages.add(tokens.get(i));
+                } else if (section.equals("set")) {
+                    rule.set(bit(tokens.get(i)));
+                } else {
+                    rule.clear(bit(tokens.get(i)));
+                }
+            }
+            if (!messages.isEmpty()) {
+                rule.log(messages.toArray(new String[0]));
+            }
+        }
+        return rule;
+    }
+
+    private long bit(String name) {
+        Long bit = bits.get(name);
+        if (bit == null) {
+            throw new IllegalArgumentException("Unknown bit " + name);
+        }
+        return bit;
+    }
+
+    private static boolean isKeyword(List<String> tokens, List<Boolean> quoted, int i, String keyword) {
+        return !quoted.get(i) && tokens.get(i).equals(keyword);
+    }
+
+    private static boolean isSection(List<String> tokens, List<Boolean> quoted, int i) {
+        return isKeyword(tokens, quoted, i, "set") || isKeyword(tokens, quoted, i, "clear")
+                || isKeyword(tokens, quoted, i, "log");
+    }
+
+    private static void tokenize(String line, List<String> tokens, List<Boolean> quoted) {
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '#') {
+                return;
+            } else if (c == '"') {
+                int end = line.indexOf('"', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated message");
+                }
+                tokens.add(line.substring(i + 1, end));
+                quoted.add(true);
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < line.length() && !Character.isWhitespace(line.charAt(i)) && line.charAt(i) != '"'
+                        && line.charAt(i) != '#') {
+                    i++;
+                }
+                tokens.add(line.substring(start, i));
+                quoted.add(false);
+            }
+        }
+    }
+}
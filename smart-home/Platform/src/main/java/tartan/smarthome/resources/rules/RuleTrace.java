@@ -0,0 +1,40 @@
+package tartan.smarthome.resources.rules;
+
+/**
+ * What a rule set did on the last evaluation of one house: the bits it was given and the rule each block
+ * fired. Given the trace, {@link RuleSet#evaluate(long, RuleTrace, java.util.function.Consumer)} runs only the
+ * blocks that read a bit that changed since then, directly or through a block before them, and reapplies the
+ * rule the others fired last time.
+ *
+ * A trace belongs to one house. It may be used from any thread; evaluations with the same trace take turns.
+ */
+public final class RuleTrace {
+
+    /** The rules the trace was made by, or null if there is nothing to go on */
+    RuleSet rules = null;
+
+    /** The bits of the last evaluation */
+    long input = 0L;
+
+    /** The rule each block fired on the last evaluation */
+    short[] fired = null;
+
+    /** The number of blocks the last evaluation ran */
+    int evaluated = 0;
+
+    /**
+     * Forget the last evaluation, so that the next one runs every block. Use it when the state was evaluated
+     * some other way
+     */
+    public synchronized void reset() {
+        rules = null;
+    }
+
+    /**
+     * Get the number of blocks the last evaluation ran; the others reapplied the rule they fired before
+     * @return the number of blocks
+     */
+    public synchronized int getEvaluatedBlockCount() {
+        return evaluated;
+    }
+}
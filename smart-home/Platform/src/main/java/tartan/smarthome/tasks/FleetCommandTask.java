@@ -0,0 +1,59 @@
+package tartan.smarthome.tasks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.servlets.tasks.PostBodyTask;
+import tartan.smarthome.core.TartanFleetResult;
+import tartan.smarthome.core.TartanHome;
+import tartan.smarthome.resources.FleetCommandService;
+import tartan.smarthome.resources.TartanHomeService;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Sends one new state to many houses. Run it with POST /tasks/fleet-command on the admin port, with the state
+ * as the JSON body, the same as for /smarthome/update, for example
+ *
+ * <pre>
+ * curl -X POST -H 'Content-Type: application/json' -d '{"alarmArmed":"armed"}' \
+ *     'http://localhost:8081/tasks/fleet-command?group=2'
+ * </pre>
+ *
+ * The "group" parameter selects the houses of an experiment group and "house" names houses; without either
+ * the state is sent to every house. The answer is the outcome in each house, as JSON.
+ */
+public class FleetCommandTask extends PostBodyTask {
+
+    private final FleetCommandService fleet;
+    private final ObjectMapper mapper;
+
+    /**
+     * Create the task
+     * @param fleet sends the state to the houses
+     * @param mapper reads the state and writes the outcome
+     */
+    public FleetCommandTask(FleetCommandService fleet, ObjectMapper mapper) {
+        super("fleet-command");
+        this.fleet = fleet;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public void execute(Map<String, List<String>> parameters, String body, PrintWriter output)
+            throws Exception {
+        TartanHome command = mapper.readValue(body, TartanHome.class);
+        Predicate<TartanHomeService> houses = service -> true;
+        List<String> groups = parameters.get("group");
+        if (groups != null && !groups.isEmpty()) {
+            houses = FleetCommandService.inGroup(groups.get(0));
+        }
+        List<String> names = parameters.get("house");
+        if (names != null && !names.isEmpty()) {
+            houses = houses.and(FleetCommandService.named(names));
+        }
+        TartanFleetResult result = fleet.setState(houses, command).join();
+        output.println(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(result));
+    }
+}
@@ -0,0 +1,57 @@
+package tartan.smarthome.tasks;
+
+import io.dropwizard.servlets.tasks.Task;
+import tartan.smarthome.resources.EvaluatorRegistry;
+import tartan.smarthome.resources.StaticTartanStateEvaluator;
+
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the evaluator rules again and puts them to use in every house without a restart. Run it with
+ * POST /tasks/reload-rules on the admin port. The files come from the configuration unless the "rules" and
+ * "corpus" parameters name others. Rules that cannot be read or that fail the corpus are rejected with an
+ * error, and the rules in use are kept.
+ */
+public class ReloadRulesTask extends Task {
+
+    private final EvaluatorRegistry registry;
+    private final String rulesFile;
+    private final String corpusFile;
+    private final int cacheSize;
+
+    /**
+     * Create the task
+     * @param registry the evaluator of the houses
+     * @param rulesFile the rules to read, or null if they must be given with each run
+     * @param corpusFile the recorded states to check the rules against, or null to not check them
+     * @param cacheSize the most outcomes of the rules to remember; 0 runs the rules for every state
+     */
+    public ReloadRulesTask(EvaluatorRegistry registry, String rulesFile, String corpusFile, int cacheSize) {
+        super("reload-rules");
+        this.registry = registry;
+        this.rulesFile = rulesFile;
+        this.corpusFile = corpusFile;
+        this.cacheSize = cacheSize;
+    }
+
+    @Override
+    public void execute(Map<String, List<String>> parameters, PrintWriter output) throws Exception {
+        String rules = parameter(parameters, "rules", rulesFile);
+        String corpus = parameter(parameters, "corpus", corpusFile);
+        if (rules == null) {
+            throw new IllegalArgumentException("No rules file is configured or given");
+        }
+        StaticTartanStateEvaluator evaluator = registry.load(Path.of(rules), corpus != null ? Path.of(corpus) : null,
+                cacheSize);
+        output.println("Loaded " + evaluator.getRules().getBlockCount() + " blocks of rules from " + rules
+                + (corpus != null ? ", checked against " + corpus : ""));
+    }
+
+    private static String parameter(Map<String, List<String>> parameters, String name, String otherwise) {
+        List<String> values = parameters.get(name);
+        return values != null && !values.isEmpty() ? values.get(0) : otherwise;
+    }
+}
@@ -0,0 +1,87 @@
+package tartan.smarthome.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TartanHistoryDataTest {
+
+    private static TartanHomeData snapshot() {
+        TartanHome home = new TartanHome();
+        home.setName("house1");
+        home.setAddress("1 Main St");
+        home.setGroupExperiment("2");
+        home.setTargetTemp("72");
+        home.setNightStartTime("2200");
+        home.setNightEndTime("600");
+        home.setAlarmDelay("10");
+        home.setTemperature("68");
+        home.setHumidity("40");
+        home.setDoor(TartanHomeValues.CLOSED);
+        home.setLight(TartanHomeValues.ON);
+        home.setHumidifier(TartanHomeValues.OFF);
+        home.setProximity(TartanHomeValues.OCCUPIED);
+        home.setDoorLock(TartanHomeValues.LOCK);
+        home.setArrivingProximity(TartanHomeValues.NOT_ARRIVING);
+        home.setKeyLessEntry(TartanHomeValues.ON);
+        home.setElectronicOperation(TartanHomeValues.OFF);
+        home.setLockNightLockEnabled(TartanHomeValues.ON);
+        home.setLockIntruderSensorMode(TartanHomeValues.OFF);
+        home.setIntruderDetectionSensor(TartanHomeValues.ON);
+        home.setPanelMessage(TartanHomeValues.OFF);
+        home.setHvacMode(TartanHomeValues.HEAT);
+        home.setHvacState(TartanHomeValues.ON);
+        home.setAlarmActive(TartanHomeValues.INACTIVE);
+        home.setAlarmArmed(TartanHomeValues.ARMED);
+        home.setMinutesLightsOn(125000L);
+        return new TartanHomeData(home);
+    }
+
+    @Test
+    void test_compact_record_holds_the_same_state() {
+        TartanHomeData data = snapshot();
+        TartanHistoryData record = new TartanHistoryData(data, new TartanHouseData(data));
+        TartanHomeData restored = record.toHomeData();
+
+        assertTrue(data.hasSameState(restored));
+        assertEquals(data.getCreateTimeStamp(), restored.getCreateTimeStamp());
+        assertEquals(data.getMinutesLightsOn(), restored.getMinutesLightsOn());
+        assertTrue(record.isSet(TartanHistoryData.LIGHT_ON));
+        assertTrue(record.isSet(TartanHistoryData.ALARM_ARMED));
+        assertFalse(record.isSet(TartanHistoryData.DOOR_OPEN));
+        assertTrue(record.isKnown(TartanHistoryData.DOOR_OPEN));
+        assertEquals(Short.valueOf((short) 68), record.getTemperature());
+    }
+
+    @Test
+    void test_unknown_states_are_not_known() {
+        TartanHomeData data = snapshot();
+        data.setTemperature(TartanHomeValues.UNKNOWN);
+        data.setLight(TartanHomeValues.UNKNOWN);
+        data.setDoor(null);
+        data.setCreateTimeStamp(new Date(0));
+        TartanHistoryData record = new TartanHistoryData(data, new TartanHouseData(data));
+
+        assertFalse(record.isKnown(TartanHistoryData.LIGHT_ON));
+        assertFalse(record.isSet(TartanHistoryData.LIGHT_ON));
+        assertFalse(record.isKnown(TartanHistoryData.DOOR_OPEN));
+        assertNull(record.getTemperature());
+
+        TartanHomeData restored = record.toHomeData();
+        assertNull(restored.getLight());
+        assertNull(restored.getDoor());
+        assertNull(restored.getTemperature());
+        assertEquals(TartanHomeValues.ON, restored.getKeyLessEntry());
+    }
+
+    @Test
+    void test_house_record_follows_changes() {
+        TartanHomeData data = snapshot();
+        TartanHouseData house = new TartanHouseData(data);
+        assertTrue(house.describes(data));
+        data.setGroupExperiment("1");
+        assertFalse(house.describes(data));
+    }
+}
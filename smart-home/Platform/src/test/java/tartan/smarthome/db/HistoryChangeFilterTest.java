@@ -0,0 +1,82 @@
+package tartan.smarthome.db;
+
+import org.junit.jupiter.api.Test;
+import tartan.smarthome.core.TartanHomeData;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistoryChangeFilterTest {
+
+    private static TartanHomeData snapshot(String name, String light, long minutesLightsOn, long time) {
+        TartanHomeData data = new TartanHomeData();
+        data.setHomeName(name);
+        data.setAddress("1 Main St");
+        data.setLight(light);
+        data.setTemperature("70");
+        data.setMinutesLightsOn(minutesLightsOn);
+        data.setCreateTimeStamp(new Date(time));
+        return data;
+    }
+
+    @Test
+    void test_unchanged_snapshots_are_skipped() {
+        HistoryChangeFilter filter = new HistoryChangeFilter(0);
+        assertTrue(filter.accept(snapshot("house1", "off", 0, 0)));
+        assertFalse(filter.accept(snapshot("house1", "off", 0, 5000)));
+        assertFalse(filter.accept(snapshot("house1", "off", 0, 10000)));
+        assertEquals(2, filter.getSkippedCount());
+    }
+
+    @Test
+    void test_changed_snapshots_are_saved() {
+        HistoryChangeFilter filter = new HistoryChangeFilter(0);
+        assertTrue(filter.accept(snapshot("house1", "off", 0, 0)));
+        assertTrue(filter.accept(snapshot("house1", "on", 0, 5000)));
+        // the time the lights have been on grows while they stay on and is not a change
+        assertFalse(filter.accept(snapshot("house1", "on", 5000, 10000)));
+        assertTrue(filter.accept(snapshot("house1", "off", 10000, 15000)));
+    }
+
+    @Test
+    void test_houses_are_compared_with_themselves() {
+        HistoryChangeFilter filter = new HistoryChangeFilter(0);
+        assertTrue(filter.accept(snapshot("house1", "off", 0, 0)));
+        assertTrue(filter.accept(snapshot("house2", "off", 0, 0)));
+        assertFalse(filter.accept(snapshot("house1", "off", 0, 5000)));
+        assertFalse(filter.accept(snapshot("house2", "off", 0, 5000)));
+    }
+
+    @Test
+    void test_heartbeat_saves_unchanged_snapshots() {
+        HistoryChangeFilter filter = new HistoryChangeFilter(60000);
+        assertTrue(filter.accept(snapshot("house1", "off", 0, 0)));
+        assertFalse(filter.accept(snapshot("house1", "off", 0, 59999)));
+        assertTrue(filter.accept(snapshot("house1", "off", 0, 60000)));
+        // the heartbeat counts from the last snapshot saved
+        assertFalse(filter.accept(snapshot("house1", "off", 0, 100000)));
+        assertTrue(filter.accept(snapshot("house1", "off", 0, 120000)));
+    }
+
+    @Test
+    void test_forgotten_snapshots_are_saved_again() {
+        HistoryChangeFilter filter = new HistoryChangeFilter(0);
+        TartanHomeData dropped = snapshot("house1", "on", 0, 0);
+        assertTrue(filter.accept(dropped));
+        filter.forget(dropped);
+        // the change never reached the database, so the same state is saved next time
+        assertTrue(filter.accept(snapshot("house1", "on", 0, 5000)));
+        assertFalse(filter.accept(snapshot("house1", "on", 0, 10000)));
+    }
+
+    @Test
+    void test_forgetting_keeps_later_snapshots() {
+        HistoryChangeFilter filter = new HistoryChangeFilter(0);
+        TartanHomeData failed = snapshot("house1", "on", 0, 0);
+        assertTrue(filter.accept(failed));
+        assertTrue(filter.accept(snapshot("house1", "off", 0, 5000)));
+        filter.forget(failed);
+        assertFalse(filter.accept(snapshot("house1", "off", 0, 10000)));
+    }
+}
@@ -0,0 +1,102 @@
+package tartan.smarthome.db;
+
+import org.junit.jupiter.api.Test;
+import tartan.smarthome.core.TartanHomeData;
+import tartan.smarthome.core.TartanHomeValues;
+import tartan.smarthome.core.TartanRollupData;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistoryRollupTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private static TartanHomeData snapshot(long time, String light, String door, String temperature) {
+        TartanHomeData data = new TartanHomeData();
+        data.setHomeName("house1");
+        data.setLight(light);
+        data.setDoor(door);
+        data.setTemperature(temperature);
+        data.setHvacMode(TartanHomeValues.HEAT);
+        data.setHvacState(TartanHomeValues.OFF);
+        data.setAlarmActive(TartanHomeValues.INACTIVE);
+        data.setCreateTimeStamp(new Date(time));
+        return data;
+    }
+
+    private static TartanRollupData find(List<TartanRollupData> rollups, String period, long start) {
+        for (TartanRollupData rollup : rollups) {
+            if (rollup.getPeriod().equals(period) && rollup.getBucketStart().getTime() == start) {
+                return rollup;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    void test_time_is_counted_with_the_earlier_state() {
+        HistoryRollup rollup = new HistoryRollup();
+        assertTrue(rollup.add(List.of(snapshot(0, TartanHomeValues.ON, TartanHomeValues.CLOSED, "70"))).isEmpty());
+
+        List<TartanRollupData> changes = rollup.add(List.of(
+                snapshot(30000, TartanHomeValues.OFF, TartanHomeValues.CLOSED, "70")));
+        TartanRollupData minute = find(changes, TartanRollupData.MINUTE, 0);
+        assertEquals(30000, minute.getLightOnMillis());
+        assertEquals(70.0, minute.getAverageTemperature());
+        assertEquals(30000, find(changes, TartanRollupData.HOUR, 0).getLightOnMillis());
+        assertEquals(30000, find(changes, TartanRollupData.DAY, 0).getLightOnMillis());
+    }
+
+    @Test
+    void test_time_is_split_across_buckets() {
+        HistoryRollup rollup = new HistoryRollup();
+        rollup.add(List.of(snapshot(HOUR - MINUTE - 20000, TartanHomeValues.ON, TartanHomeValues.CLOSED, "60")));
+        List<TartanRollupData> changes = rollup.add(List.of(
+                snapshot(HOUR + 10000, TartanHomeValues.ON, TartanHomeValues.CLOSED, "60")));
+
+        assertEquals(20000, find(changes, TartanRollupData.MINUTE, HOUR - 2 * MINUTE).getLightOnMillis());
+        assertEquals(MINUTE, find(changes, TartanRollupData.MINUTE, HOUR - MINUTE).getLightOnMillis());
+        assertEquals(10000, find(changes, TartanRollupData.MINUTE, HOUR).getLightOnMillis());
+        assertEquals(MINUTE + 20000, find(changes, TartanRollupData.HOUR, 0).getLightOnMillis());
+        assertEquals(10000, find(changes, TartanRollupData.HOUR, HOUR).getLightOnMillis());
+        assertEquals(MINUTE + 30000, find(changes, TartanRollupData.DAY, 0).getLightOnMillis());
+    }
+
+    @Test
+    void test_openings_and_activations_are_counted() {
+        HistoryRollup rollup = new HistoryRollup();
+        rollup.add(List.of(snapshot(0, TartanHomeValues.OFF, TartanHomeValues.CLOSED, "70")));
+        TartanHomeData alarm = snapshot(5000, TartanHomeValues.OFF, TartanHomeValues.OPEN, "70");
+        alarm.setAlarmActive(TartanHomeValues.ACTIVE);
+        List<TartanRollupData> changes = rollup.add(List.of(alarm,
+                snapshot(10000, TartanHomeValues.OFF, TartanHomeValues.OPEN, "70")));
+
+        TartanRollupData minute = find(changes, TartanRollupData.MINUTE, 0);
+        assertEquals(1, minute.getDoorOpenings());
+        assertEquals(1, minute.getAlarmActivations());
+        assertEquals(0, minute.getLightOnMillis());
+    }
+
+    @Test
+    void test_heater_and_averages() {
+        HistoryRollup rollup = new HistoryRollup();
+        TartanHomeData heating = snapshot(0, TartanHomeValues.OFF, TartanHomeValues.CLOSED, "60");
+        heating.setHvacState(TartanHomeValues.ON);
+        rollup.add(List.of(heating));
+        List<TartanRollupData> changes = rollup.add(List.of(
+                snapshot(10000, TartanHomeValues.OFF, TartanHomeValues.CLOSED, "90"),
+                snapshot(40000, TartanHomeValues.OFF, TartanHomeValues.CLOSED, TartanHomeValues.UNKNOWN)));
+
+        TartanRollupData minute = find(changes, TartanRollupData.MINUTE, 0);
+        assertEquals(10000, minute.getHeaterOnMillis());
+        assertEquals(0, minute.getChillerOnMillis());
+        // 10 seconds at 60 and 30 seconds at 90
+        assertEquals(82.5, minute.getAverageTemperature());
+        assertNull(minute.getAverageHumidity());
+    }
+}
@@ -0,0 +1,157 @@
+package tartan.smarthome.db;
+
+import com.codahale.metrics.MetricRegistry;
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.Test;
+import tartan.smarthome.core.TartanHomeData;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistoryWriterTest {
+
+    private final MetricRegistry metrics = new MetricRegistry();
+
+    /**
+     * A database that cannot be reached
+     */
+    private static SessionFactory unreachable() {
+        return (SessionFactory) Proxy.newProxyInstance(SessionFactory.class.getClassLoader(),
+                new Class<?>[] {SessionFactory.class}, (proxy, method, args) -> {
+                    throw new HibernateException("database down");
+                });
+    }
+
+    /**
+     * Records the batches it is asked to save instead of saving them
+     */
+    private static class RecordingDAO extends HomeDAO {
+        final List<List<TartanHomeData>> batches = new CopyOnWriteArrayList<>();
+        // the first save waits for this
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch saving = new CountDownLatch(1);
+
+        RecordingDAO() {
+            super(unreachable());
+        }
+
+        @Override
+        public void createAll(List<TartanHomeData> records, int batchSize) {
+            saving.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batches.add(new ArrayList<>(records));
+        }
+
+        int saved() {
+            return batches.stream().mapToInt(List::size).sum();
+        }
+    }
+
+    private static TartanHomeData snapshot(String name, String light, long time) {
+        TartanHomeData data = new TartanHomeData();
+        data.setHomeName(name);
+        data.setAddress("1 Main St");
+        data.setLight(light);
+        data.setTemperature("70");
+        data.setMinutesLightsOn(0L);
+        data.setCreateTimeStamp(new Date(time));
+        return data;
+    }
+
+    private long count(String metric) {
+        return metrics.meter(MetricRegistry.name(HistoryWriter.class, metric)).getCount();
+    }
+
+    @Test
+    void test_queued_snapshots_are_saved_together() throws Exception {
+        RecordingDAO dao = new RecordingDAO();
+        dao.release.countDown();
+        HistoryWriter writer = new HistoryWriter(dao, 10, 100, metrics);
+        assertTrue(writer.submit(snapshot("house1", "on", 0)));
+        assertTrue(writer.submit(snapshot("house2", "on", 0)));
+        assertTrue(writer.submit(snapshot("house3", "on", 0)));
+
+        writer.start();
+        for (int i = 0; i < 200 && dao.saved() < 3; i++) {
+            Thread.sleep(10);
+        }
+        writer.stop();
+
+        assertEquals(1, dao.batches.size());
+        assertEquals(3, dao.batches.get(0).size());
+        assertEquals("house1", dao.batches.get(0).get(0).getHomeName());
+    }
+
+    @Test
+    void test_snapshots_are_dropped_when_the_queue_is_full() {
+        RecordingDAO dao = new RecordingDAO();
+        HistoryWriter writer = new HistoryWriter(dao, 2, 100, metrics);
+        assertTrue(writer.submit(snapshot("house1", "on", 0)));
+        assertTrue(writer.submit(snapshot("house2", "on", 0)));
+        assertFalse(writer.submit(snapshot("house3", "on", 0)));
+        assertEquals(1, count("dropped"));
+    }
+
+    @Test
+    void test_dropped_snapshots_are_saved_again() {
+        RecordingDAO dao = new RecordingDAO();
+        HistoryChangeFilter filter = new HistoryChangeFilter(0);
+        dao.setHistoryFilter(filter);
+        dao.setHistoryWriter(new HistoryWriter(dao, 1, 100, metrics));
+
+        dao.create(snapshot("house1", "on", 0));
+        dao.create(snapshot("house2", "on", 0));
+        assertEquals(1, count("dropped"));
+        // the change never reached the queue, so the same state is saved next time
+        assertTrue(filter.accept(snapshot("house2", "on", 5000)));
+        assertFalse(filter.accept(snapshot("house1", "on", 5000)));
+    }
+
+    @Test
+    void test_stopping_saves_what_is_queued() throws Exception {
+        RecordingDAO dao = new RecordingDAO();
+        HistoryWriter writer = new HistoryWriter(dao, 10, 100, metrics);
+        writer.start();
+        assertTrue(writer.submit(snapshot("house1", "on", 0)));
+        assertTrue(dao.saving.await(5, TimeUnit.SECONDS));
+
+        // queued while the first one is being saved
+        assertTrue(writer.submit(snapshot("house2", "on", 0)));
+        assertTrue(writer.submit(snapshot("house3", "on", 0)));
+        dao.release.countDown();
+        writer.stop();
+
+        assertEquals(3, dao.saved());
+    }
+
+    @Test
+    void test_failed_snapshots_are_saved_again() throws Exception {
+        HomeDAO dao = new HomeDAO(unreachable());
+        HistoryChangeFilter filter = new HistoryChangeFilter(0);
+        dao.setHistoryFilter(filter);
+        HistoryWriter writer = new HistoryWriter(dao, 10, 100, metrics);
+        dao.setHistoryWriter(writer);
+
+        dao.create(snapshot("house1", "on", 0));
+        dao.create(snapshot("house2", "off", 0));
+        writer.start();
+        writer.stop();
+
+        assertEquals(2, count("failed"));
+        // the changes never reached the database, so the same states are saved next time
+        assertTrue(filter.accept(snapshot("house1", "on", 5000)));
+        assertTrue(filter.accept(snapshot("house2", "off", 5000)));
+    }
+}
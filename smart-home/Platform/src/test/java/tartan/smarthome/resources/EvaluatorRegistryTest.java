@@ -0,0 +1,104 @@
+package tartan.smarthome.resources;
+
+import org.junit.jupiter.api.Test;
+import tartan.smarthome.resources.iotcontroller.EvaluationLog;
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.rules.RuleSet;
+import tartan.smarthome.resources.rules.RuleSetReader;
+import tartan.smarthome.resources.rules.RuleTrace;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EvaluatorRegistryTest {
+
+    private static final Path RULES = Path.of("house.rules");
+    private static final Path CORPUS = Path.of("house-states.txt");
+
+    @Test
+    void test_shipped_rules_match_the_built_in_rules() throws Exception {
+        RuleSet read = new RuleSetReader(StaticTartanStateEvaluator.getRuleBits()).read(RULES);
+        RuleSet builtIn = StaticTartanStateEvaluator.getDefaultRules();
+        long names = 0L;
+        for (long bit : StaticTartanStateEvaluator.getRuleBits().values()) {
+            names |= bit;
+        }
+
+        Random random = new Random(18);
+        for (int i = 0; i < 10000; i++) {
+            long bits = random.nextLong() & names;
+            List<String> readLog = new ArrayList<>();
+            List<String> builtInLog = new ArrayList<>();
+            assertEquals(builtIn.evaluate(bits, builtInLog::add), read.evaluate(bits, readLog::add));
+            assertEquals(builtInLog, readLog);
+        }
+        assertEquals(builtIn.getBlockCount(), read.getBlockCount());
+    }
+
+    @Test
+    void test_loaded_rules_replace_the_evaluator() throws Exception {
+        StaticTartanStateEvaluator initial = new StaticTartanStateEvaluator();
+        EvaluatorRegistry registry = new EvaluatorRegistry(initial);
+
+        StaticTartanStateEvaluator loaded = registry.load(RULES, CORPUS, 16);
+
+        assertSame(loaded, registry.get());
+        assertNotNull(loaded.getMemo());
+        StateCorpus.read(CORPUS).check(registry);
+    }
+
+    @Test
+    void test_rules_that_fail_the_corpus_are_rejected() throws Exception {
+        StaticTartanStateEvaluator initial = new StaticTartanStateEvaluator();
+        EvaluatorRegistry registry = new EvaluatorRegistry(initial);
+        Path file = Files.createTempFile("house", ".rules");
+        try {
+            // heat when it is warmer instead of colder
+            Files.writeString(file, Files.readString(RULES).replace("when COLDER set HES", "when WARMER set HES"));
+            IllegalArgumentException rejected = assertThrows(IllegalArgumentException.class,
+                    () -> registry.load(file, CORPUS, 0));
+            assertTrue(rejected.getMessage().startsWith("Line "), rejected.getMessage());
+            assertSame(initial, registry.get());
+
+            Files.writeString(file, "block\nwhen COLDER set HEATER");
+            assertThrows(IllegalArgumentException.class, () -> registry.load(file, null, 0));
+            assertSame(initial, registry.get());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void test_a_swap_reruns_every_rule_for_the_next_poll() throws Exception {
+        EvaluatorRegistry registry = new EvaluatorRegistry(new StaticTartanStateEvaluator());
+        RuleTrace trace = new RuleTrace();
+        EvaluationLog log = new EvaluationLog(100);
+        HouseState first = sample();
+        registry.evaluateState(first, log, trace);
+
+        // the new rules cannot reuse what the old ones fired, so every block runs again
+        registry.load(RULES, null, 0);
+        HouseState second = sample();
+        registry.evaluateState(second, log, trace);
+
+        assertEquals(StaticTartanStateEvaluator.getDefaultRules().getBlockCount(), trace.getEvaluatedBlockCount());
+        assertEquals(first.toMap(), second.toMap());
+    }
+
+    private static HouseState sample() {
+        HouseState state = new HouseState();
+        state.putAll(Map.of("DS", false, "LS", true, "PS", true, "APS", false, "AS", false, "AA", false,
+                "HUS", false, "HES", false, "CHS", false, "HM", "Heater"));
+        state.putAll(Map.of("LKS", false, "EOE", true, "KLE", false, "NLE", false, "TR", 68,
+                "TT", 70, "NST", 2200, "NET", 600, "CT", 1200, "ALARM_PASSCODE", "stop"));
+        state.putAll(Map.of("GIVEN_PASSCODE", "", "LOCK_PASSCODE", "passcode", "LOCK_GIVEN_PASSCODE", "",
+                "LOCK_REQUEST", ""));
+        return state;
+    }
+}
@@ -0,0 +1,115 @@
+package tartan.smarthome.resources;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.core.TartanFleetResult;
+import tartan.smarthome.core.TartanHome;
+import tartan.smarthome.core.TartanHomeValues;
+import tartan.smarthome.resources.iotcontroller.HousePollingScheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FleetCommandServiceTest {
+
+    private final HousePollingScheduler scheduler = new HousePollingScheduler(1);
+
+    /** A house that takes a while to answer */
+    private class SlowHouse extends TartanHomeService {
+        private final long delayMillis;
+        private volatile TartanHome received = null;
+
+        SlowHouse(String name, String group, long delayMillis) {
+            super(null, scheduler);
+            this.delayMillis = delayMillis;
+            TartanHomeSettings settings = new TartanHomeSettings();
+            settings.setName(name);
+            settings.setAddress("localhost");
+            settings.setPort(5050);
+            settings.setUser("admin");
+            settings.setPassword("1234");
+            settings.setTargetTemp("70");
+            settings.setAlarmDelay("30");
+            settings.setNightStartTime("2200");
+            settings.setNightEndTime("600");
+            settings.setAlarmPasscode("stop");
+            settings.setLockPasscode("passcode");
+            settings.setGroupExperiment(group);
+            initializeSettings(settings, 5);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> setStateAsync(TartanHome h) {
+            received = h;
+            return CompletableFuture.supplyAsync(() -> true,
+                    CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void test_a_group_command_reaches_only_the_group() {
+        List<TartanHomeService> houses = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            houses.add(new SlowHouse("house" + i, String.valueOf(1 + i % 2), 0));
+        }
+        TartanHome command = new TartanHome();
+        command.setAlarmArmed(TartanHomeValues.ARMED);
+
+        TartanFleetResult result = new FleetCommandService(houses).setState(FleetCommandService.inGroup("2"), command)
+                .join();
+
+        assertEquals(10, result.getHouses().size());
+        assertEquals(10, result.getAccepted());
+        for (int i = 0; i < 20; i++) {
+            SlowHouse house = (SlowHouse) houses.get(i);
+            assertEquals(i % 2 == 1 ? command : null, house.received, house.getName());
+        }
+        // in the order of the configuration
+        assertEquals("house1", result.getHouses().get(0).getName());
+        assertEquals("house19", result.getHouses().get(9).getName());
+    }
+
+    @Test
+    void test_a_command_takes_about_as_long_as_the_slowest_house() {
+        List<TartanHomeService> houses = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            houses.add(new SlowHouse("house" + i, "1", i == 7 ? 300 : 100));
+        }
+
+        TartanFleetResult result = new FleetCommandService(houses).setState(house -> true, new TartanHome()).join();
+
+        assertEquals(20, result.getAccepted());
+        assertTrue(result.getHouses().get(7).getLatencyMillis() >= 300);
+        assertTrue(result.getElapsedMillis() >= 300);
+        assertTrue(result.getElapsedMillis() < 20 * 100, "took " + result.getElapsedMillis() + "ms");
+    }
+
+    @Test
+    void test_a_house_that_fails_does_not_fail_the_command() {
+        List<TartanHomeService> houses = new ArrayList<>();
+        houses.add(new SlowHouse("good", "1", 0));
+        houses.add(new SlowHouse("bad", "1", 0) {
+            @Override
+            public CompletableFuture<Boolean> setStateAsync(TartanHome h) {
+                throw new IllegalStateException("not connected");
+            }
+        });
+
+        TartanFleetResult result = new FleetCommandService(houses).setState(house -> true, new TartanHome()).join();
+
+        assertEquals(1, result.getAccepted());
+        assertTrue(result.getHouses().get(0).isAccepted());
+        assertFalse(result.getHouses().get(1).isAccepted());
+        assertTrue(result.getHouses().get(1).getError().contains("not connected"));
+    }
+}
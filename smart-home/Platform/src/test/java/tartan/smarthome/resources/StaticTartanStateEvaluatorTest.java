@@ -5,7 +5,11 @@ import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
+import tartan.smarthome.resources.iotcontroller.EvaluationLog;
+import tartan.smarthome.resources.iotcontroller.HouseState;
+import tartan.smarthome.resources.iotcontroller.HouseStateBatch;
 import tartan.smarthome.resources.iotcontroller.IoTValues;
+import tartan.smarthome.resources.rules.RuleTrace;
 
 public class StaticTartanStateEvaluatorTest {
 
@@ -840,4 +844,88 @@ public class StaticTartanStateEvaluatorTest {
         assertTrue(logs.toString().contains("Panel Message: Possbiel Intruder detected! Please check the house!"),
                 "Log should contain a message for confirming door already unlocked");
     }
+
+    @Test
+    public void test_batch_matches_one_by_one() {
+        StaticTartanStateEvaluator evaluator = new StaticTartanStateEvaluator();
+        HouseStateBatch batch = new HouseStateBatch(4);
+        HouseState[] expected = new HouseState[4];
+        StringBuffer[] expectedLogs = new StringBuffer[4];
+        for (int i = 0; i < 4; i++) {
+            Map<String, Object> initialState = initializeState();
+            initialState.put(IoTValues.PROXIMITY_STATE, i % 2 == 0);
+            initialState.put(IoTValues.LIGHT_STATE, true);
+            initialState.put(IoTValues.TEMP_READING, 68 + 2 * i);
+            if (i == 3) {
+                initialState.remove(IoTValues.CURRENT_TIME); // still complete; the clock is read
+                initialState.remove(IoTValues.LOCK_PASSCODE);
+                initialState.put(IoTValues.TEMP_READING, 72);
+                initialState.remove(IoTValues.CHILLER_STATE); // incomplete, so interpreted
+            }
+            HouseState state = new HouseState();
+            state.putAll(initialState);
+            batch.add(state);
+            expected[i] = state.copy();
+            expectedLogs[i] = new StringBuffer();
+            evaluator.evaluateState(expected[i], expectedLogs[i]);
+        }
+
+        StringBuffer[] logs = {new StringBuffer(), new StringBuffer(), null, new StringBuffer()};
+        evaluator.evaluateStates(batch, logs);
+
+        HouseState actual = new HouseState();
+        for (int i = 0; i < 4; i++) {
+            batch.get(i, actual);
+            assertEquals(expected[i].toMap(), actual.toMap(), "House " + i);
+            if (logs[i] != null) {
+                assertEquals(expectedLogs[i].toString(), logs[i].toString(), "House " + i);
+            }
+        }
+    }
+
+    @Test
+    public void test_recorded_log_renders_like_the_text_log() {
+        StaticTartanStateEvaluator evaluator = new StaticTartanStateEvaluator();
+        Map<String, Object> initialState = initializeState();
+        initialState.put(IoTValues.TEMP_READING, 65);
+        initialState.put(IoTValues.PROXIMITY_STATE, true);
+
+        HouseState expected = new HouseState();
+        expected.putAll(initialState);
+        StringBuffer text = new StringBuffer();
+        evaluator.evaluateState(expected, text);
+
+        HouseState actual = new HouseState();
+        actual.putAll(initialState);
+        EvaluationLog log = new EvaluationLog(100);
+        evaluator.evaluateState(actual, log);
+
+        assertEquals(expected.toMap(), actual.toMap());
+        assertEquals(text.toString(), String.join("", log.render()));
+        assertTrue(text.toString().contains("target temperature = 72F, current temperature = 65F"));
+    }
+
+    @Test
+    public void test_traced_evaluations_use_the_memo() {
+        StaticTartanStateEvaluator evaluator = new StaticTartanStateEvaluator(64);
+        Map<String, Object> initialState = initializeState();
+        initialState.put(IoTValues.LIGHT_STATE, true);
+
+        HouseState expected = new HouseState();
+        expected.putAll(initialState);
+        new StaticTartanStateEvaluator().evaluateState(expected, new EvaluationLog(0));
+
+        // two houses in the same state, each with its own trace
+        RuleTrace[] traces = {new RuleTrace(), new RuleTrace()};
+        for (int round = 0; round < 2; round++) {
+            for (RuleTrace trace : traces) {
+                HouseState actual = new HouseState();
+                actual.putAll(initialState);
+                evaluator.evaluateState(actual, new EvaluationLog(0), trace);
+                assertEquals(expected.toMap(), actual.toMap());
+            }
+        }
+        assertEquals(1, evaluator.getMemo().getMissCount());
+        assertEquals(3, evaluator.getMemo().getHitCount());
+    }
 }
@@ -0,0 +1,184 @@
+package tartan.smarthome.resources;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tartan.smarthome.TartanHomeSettings;
+import tartan.smarthome.core.TartanHome;
+import tartan.smarthome.core.TartanHomeValues;
+import tartan.smarthome.resources.iotcontroller.HousePollingScheduler;
+import tartan.smarthome.resources.iotcontroller.IoTValues;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TartanHomeServiceTest {
+
+    private static final String REPORTED =
+            "SU:TR=70;HR=40;DS=0;LS=1;PS=1;AS=0;AA=0;HES=0;CHS=0;HM=1;HUS=0;LKS=0;APS=0;KLE=0;EOE=0;LIS=0;IDS=0;PM=0;NLE=0.";
+
+    private ServerSocket server;
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    // the house answers get state requests only once this is released
+    private final CountDownLatch answer = new CountDownLatch(1);
+    // the house stops answering get state requests
+    private volatile boolean silent = false;
+    private HousePollingScheduler scheduler;
+    private TartanHomeService service;
+
+    /**
+     * A house that reports a fixed state, accepts every set state request and does not push
+     */
+    private void serve() {
+        try (Socket s = server.accept();
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+             OutputStream out = s.getOutputStream()) {
+            StringBuilder msg = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0) {
+                msg.append((char) c);
+                if (c != '.') {
+                    continue;
+                }
+                received.add(msg.toString());
+                String reply = "OK.";
+                if (msg.toString().startsWith(IoTValues.GET_STATE) && silent) {
+                    msg.setLength(0);
+                    continue;
+                } else if (msg.toString().startsWith(IoTValues.GET_STATE)) {
+                    answer.await();
+                    reply = REPORTED;
+                } else if (msg.toString().startsWith(IoTValues.PUSH_SUBSCRIBE)) {
+                    reply = IoTValues.ERROR + IoTValues.MSG_END;
+                }
+                msg.setLength(0);
+                out.write((reply + "\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the test is over
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread house = new Thread(this::serve);
+        house.setDaemon(true);
+        house.start();
+
+        scheduler = new HousePollingScheduler(1, true);
+        service = new TartanHomeService(null, scheduler);
+        TartanHomeSettings settings = new TartanHomeSettings();
+        settings.setName("house1");
+        settings.setAddress(server.getInetAddress().getHostAddress());
+        settings.setPort(server.getLocalPort());
+        settings.setUser("admin");
+        settings.setPassword("1234");
+        settings.setTargetTemp("70");
+        settings.setAlarmDelay("30");
+        settings.setNightStartTime("2200");
+        settings.setNightEndTime("600");
+        settings.setAlarmPasscode("stop");
+        settings.setLockPasscode("passcode");
+        service.initializeSettings(settings, 5);
+        service.connect();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        answer.countDown();
+        scheduler.shutdown();
+        server.close();
+    }
+
+    @Test
+    void test_waiting_on_the_house_does_not_hold_the_house() throws Exception {
+        CompletableFuture<TartanHome> state = new CompletableFuture<>();
+        Thread historian = scheduler.startThread("historian-house1", () -> state.complete(service.getState()));
+
+        // the historian is waiting for the answer to its request
+        for (int i = 0; i < 200 && (received.isEmpty() || historian.getState() != Thread.State.WAITING); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, historian.getState());
+
+        // a user update takes the house's monitor, so it would wait for the historian if it held it
+        TartanHome update = new TartanHome();
+        update.setLight(TartanHomeValues.OFF);
+        CompletableFuture<Boolean> accepted = CompletableFuture.supplyAsync(() -> service.setStateAsync(update))
+                .get(1, TimeUnit.SECONDS);
+
+        answer.countDown();
+        assertEquals(TartanHomeValues.ON, state.get(5, TimeUnit.SECONDS).getLight());
+        assertTrue(accepted.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void test_setting_the_state_does_not_hold_the_house() throws Exception {
+        TartanHome first = new TartanHome();
+        first.setLight(TartanHomeValues.OFF);
+        CompletableFuture<Boolean> set = new CompletableFuture<>();
+        Thread user = scheduler.startThread("user-house1", () -> set.complete(service.setState(first)));
+
+        // the update is waiting for the state of the house
+        for (int i = 0; i < 200 && (received.isEmpty() || user.getState() != Thread.State.WAITING); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, user.getState());
+
+        TartanHome second = new TartanHome();
+        second.setLight(TartanHomeValues.OFF);
+        CompletableFuture<Boolean> accepted = CompletableFuture.supplyAsync(() -> service.setStateAsync(second))
+                .get(1, TimeUnit.SECONDS);
+
+        answer.countDown();
+        assertTrue(set.get(5, TimeUnit.SECONDS));
+        assertTrue(accepted.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void test_the_historian_does_not_ask_the_house() {
+        answer.countDown();
+        assertEquals(TartanHomeValues.UNKNOWN, service.getLastState().getLight());
+
+        assertEquals(TartanHomeValues.ON, service.getState().getLight());
+        // a state fetched from the house would not come now
+        silent = true;
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(TartanHomeValues.ON, service.getLastState().getLight());
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    void test_a_passcode_disarms_without_changing_the_update() {
+        TartanHome update = new TartanHome();
+        update.setAlarmArmed(TartanHomeValues.ARMED);
+        update.setAlarmPasscode("stop");
+
+        Map<String, Object> state = service.toIotState(update);
+
+        assertEquals(false, state.get(IoTValues.ALARM_STATE));
+        // the same update may be on its way to other houses
+        assertEquals(TartanHomeValues.ARMED, update.getAlarmArmed());
+        assertEquals("stop", update.getAlarmPasscode());
+    }
+}
@@ -0,0 +1,40 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptivePollPolicyTest {
+
+    @Test
+    void test_quiet_house_backs_off_to_the_ceiling() {
+        AdaptivePollPolicy policy = new AdaptivePollPolicy(1000, 5000, 60000);
+        assertEquals(5000, policy.getIntervalMs());
+
+        assertEquals(10000, policy.polled(false, false));
+        assertEquals(20000, policy.polled(false, false));
+        assertEquals(40000, policy.polled(false, false));
+        assertEquals(60000, policy.polled(false, false));
+        assertEquals(60000, policy.polled(false, false));
+    }
+
+    @Test
+    void test_changed_or_urgent_house_is_polled_at_the_minimum() {
+        AdaptivePollPolicy policy = new AdaptivePollPolicy(1000, 5000, 60000);
+        policy.polled(false, false);
+
+        assertEquals(1000, policy.polled(true, false));
+        assertEquals(2000, policy.polled(false, false));
+        assertEquals(1000, policy.polled(false, true));
+    }
+
+    @Test
+    void test_missed_poll_returns_to_the_base_interval() {
+        AdaptivePollPolicy policy = new AdaptivePollPolicy(1000, 5000, 60000);
+        policy.polled(false, false);
+        policy.polled(false, false);
+
+        assertEquals(5000, policy.missed());
+        assertThrows(IllegalArgumentException.class, () -> new AdaptivePollPolicy(5000, 1000, 60000));
+    }
+}
@@ -0,0 +1,118 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EvaluationLogTest {
+
+    @Test
+    void test_entries_are_rendered_when_read() {
+        EvaluationLog log = new EvaluationLog(4);
+        long now = System.currentTimeMillis();
+        log.record(now, "Turning on heater, target temperature = {target}F, current temperature = {temperature}F",
+                72, 68);
+        log.recordText("[Nov 05,2015 14:30]: Light on\n");
+        log.recordText("");
+
+        List<String> lines = log.render();
+        assertEquals(2, lines.size());
+        assertEquals(EvaluationLog.timestamp(now)
+                + "Turning on heater, target temperature = 72F, current temperature = 68F\n", lines.get(0));
+        assertEquals("[Nov 05,2015 14:30]: Light on\n", lines.get(1));
+    }
+
+    @Test
+    void test_a_full_log_drops_the_oldest_entries() {
+        EvaluationLog log = new EvaluationLog(2);
+        log.record("one");
+        log.record("two");
+        log.record("three");
+
+        assertEquals(2, log.size());
+        List<String> lines = log.render();
+        assertTrue(lines.get(0).endsWith("two\n"));
+        assertTrue(lines.get(1).endsWith("three\n"));
+    }
+
+    @Test
+    void test_a_log_without_room_records_nothing() {
+        EvaluationLog log = new EvaluationLog(0);
+        log.record("one");
+        log.recordText("two");
+
+        assertFalse(log.isEnabled());
+        assertTrue(log.render().isEmpty());
+    }
+
+    @Test
+    void test_a_cursor_reads_only_newer_entries() {
+        EvaluationLog log = new EvaluationLog(3);
+        log.record("one");
+        log.record("two");
+
+        EvaluationLog.Page page = log.read(0);
+        assertEquals(2, page.getLines().size());
+        assertEquals(2, page.getNext());
+        assertEquals(0, page.getMissed());
+
+        log.record("three");
+        page = log.read(page.getNext());
+        assertEquals(1, page.getLines().size());
+        assertTrue(page.getLines().get(0).endsWith("three\n"));
+
+        // four entries later the reader has missed one
+        for (String message : List.of("four", "five", "six", "seven")) {
+            log.record(message);
+        }
+        page = log.read(page.getNext());
+        assertEquals(1, page.getMissed());
+        assertEquals(3, page.getLines().size());
+        assertTrue(page.getLines().get(0).endsWith("five\n"));
+        assertEquals(7, page.getNext());
+        assertEquals(4, log.getOverwrittenCount());
+
+        // a cursor from an older log starts at the end
+        assertTrue(log.read(100).getLines().isEmpty());
+        assertEquals(7, log.read(100).getNext());
+    }
+
+    @Test
+    void test_concurrent_writers_leave_whole_entries() throws InterruptedException {
+        EvaluationLog log = new EvaluationLog(8);
+        int writers = 4;
+        int entries = 20000;
+        Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            String message = "writer " + w + " {target}";
+            int target = w;
+            threads[w] = new Thread(() -> {
+                for (int i = 0; i < entries; i++) {
+                    log.record(0L, message, target, 0);
+                }
+            });
+            threads[w].start();
+        }
+
+        long cursor = 0;
+        long read = 0;
+        long missed = 0;
+        while (cursor < writers * entries) {
+            EvaluationLog.Page page = log.read(cursor);
+            for (String line : page.getLines()) {
+                // each entry renders its own writer number twice
+                String[] words = line.trim().split(" ");
+                assertEquals(words[words.length - 2], words[words.length - 1]);
+            }
+            read += page.getLines().size();
+            missed += page.getMissed();
+            cursor = page.getNext();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(writers * entries, read + missed);
+    }
+}
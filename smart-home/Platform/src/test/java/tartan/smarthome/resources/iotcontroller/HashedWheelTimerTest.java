@@ -0,0 +1,66 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashedWheelTimerTest {
+
+    // a small wheel, so that delays span several rotations
+    private final HashedWheelTimer timer = new HashedWheelTimer("test-wheel", 10, 4);
+
+    @AfterEach
+    void tearDown() {
+        timer.shutdown();
+    }
+
+    @Test
+    void test_timeout_fires_after_its_delay() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        HashedWheelTimer.Timeout t = timer.schedule(fired::countDown, 150, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+        assertTrue(t.isExpired());
+        assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    void test_cancelled_timeout_never_fires() throws InterruptedException {
+        AtomicInteger fired = new AtomicInteger();
+
+        HashedWheelTimer.Timeout t = timer.schedule(fired::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+        assertEquals(1, timer.getPendingCount());
+
+        assertTrue(t.cancel());
+        assertFalse(t.cancel());
+        assertEquals(0, timer.getPendingCount());
+
+        Thread.sleep(150);
+        assertEquals(0, fired.get());
+        assertTrue(t.isCancelled());
+    }
+
+    @Test
+    void test_only_remaining_timeouts_are_pending() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(3);
+        HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[6];
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = timer.schedule(fired::countDown, 20 + 15 * i, TimeUnit.MILLISECONDS);
+        }
+        timeouts[1].cancel();
+        timeouts[3].cancel();
+        timeouts[5].cancel();
+        assertEquals(3, timer.getPendingCount());
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertEquals(0, timer.getPendingCount());
+    }
+}
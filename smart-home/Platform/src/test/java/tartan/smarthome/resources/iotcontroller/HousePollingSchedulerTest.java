@@ -0,0 +1,112 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HousePollingSchedulerTest {
+
+    private final HousePollingScheduler scheduler = new HousePollingScheduler(2);
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void test_next_cycle_waits_for_previous_to_complete() throws InterruptedException {
+        AtomicInteger cycles = new AtomicInteger();
+        CompletableFuture<Void> slowHouse = new CompletableFuture<>();
+
+        scheduler.schedule(() -> {
+            cycles.incrementAndGet();
+            return slowHouse;
+        }, 10);
+
+        Thread.sleep(200);
+        assertEquals(1, cycles.get());
+
+        slowHouse.complete(null);
+        Thread.sleep(200);
+        assertTrue(cycles.get() > 1);
+    }
+
+    @Test
+    void test_failed_cycles_keep_polling() throws InterruptedException {
+        CountDownLatch polled = new CountDownLatch(3);
+        scheduler.schedule(() -> {
+            polled.countDown();
+            throw new IllegalStateException("house error");
+        }, 10);
+
+        assertTrue(polled.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void test_cancelled_house_is_not_polled() throws InterruptedException {
+        AtomicInteger cycles = new AtomicInteger();
+        HousePollingScheduler.Poller poller = scheduler.schedule(() -> {
+            cycles.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }, 10);
+
+        Thread.sleep(100);
+        poller.cancel();
+        int seen = cycles.get();
+        Thread.sleep(100);
+
+        assertTrue(poller.isCancelled());
+        assertTrue(cycles.get() <= seen + 1);
+    }
+
+    @Test
+    void test_virtual_thread_mode_runs_cycles_off_the_polling_threads() throws InterruptedException {
+        HousePollingScheduler virtual = new HousePollingScheduler(1, true);
+        try {
+            CountDownLatch polled = new CountDownLatch(1);
+            String[] pollThread = new String[1];
+            virtual.schedule(() -> {
+                pollThread[0] = Thread.currentThread().getName();
+                polled.countDown();
+                return CompletableFuture.completedFuture(null);
+            }, 10);
+
+            assertTrue(polled.await(2, TimeUnit.SECONDS));
+            assertTrue(virtual.usesVirtualThreads());
+            assertFalse(pollThread[0].startsWith("house-poller"));
+        } finally {
+            virtual.shutdown();
+        }
+    }
+
+    @Test
+    void test_houses_are_spread_over_the_interval() throws InterruptedException {
+        long interval = 1000;
+        long start = System.nanoTime();
+        long[] firstPoll = new long[4];
+        CountDownLatch polled = new CountDownLatch(firstPoll.length);
+        for (int i = 0; i < firstPoll.length; i++) {
+            int house = i;
+            scheduler.schedule(() -> {
+                if (firstPoll[house] == 0) {
+                    firstPoll[house] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    polled.countDown();
+                }
+                return CompletableFuture.completedFuture(null);
+            }, interval);
+        }
+        assertTrue(polled.await(2, TimeUnit.SECONDS));
+
+        // offsets 0, .618, .236 and .854 of the interval
+        assertTrue(firstPoll[0] < 200);
+        assertTrue(firstPoll[2] > 150 && firstPoll[2] < 450);
+        assertTrue(firstPoll[1] > 550);
+        assertTrue(firstPoll[3] > firstPoll[1]);
+    }
+}
@@ -0,0 +1,40 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HouseStateBatchTest {
+
+    @Test
+    void test_states_round_trip_through_the_columns() {
+        HouseState first = new HouseState();
+        first.setInt(HouseStateField.TEMP_READING, 70);
+        first.setFlag(HouseStateField.DOOR_STATE, true);
+        first.setText(HouseStateField.LOCK_REQUEST, "LOCK");
+        HouseState second = new HouseState();
+        second.setInt(HouseStateField.TEMP_READING, 65);
+        second.setFlag(HouseStateField.HVAC_MODE, false);
+
+        HouseStateBatch batch = new HouseStateBatch(2);
+        assertEquals(0, batch.add(first));
+        assertEquals(1, batch.add(second));
+        assertThrows(IllegalStateException.class, () -> batch.add(first));
+
+        assertArrayEquals(new int[] {70, 65}, batch.getNumbers(HouseStateField.TEMP_READING));
+        assertEquals("LOCK", batch.getTexts(HouseStateField.LOCK_REQUEST)[0]);
+        assertNull(batch.getTexts(HouseStateField.LOCK_REQUEST)[1]);
+        assertThrows(IllegalArgumentException.class, () -> batch.getNumbers(HouseStateField.LOCK_REQUEST));
+
+        HouseState copy = new HouseState();
+        batch.get(1, copy);
+        assertEquals(second.toMap(), copy.toMap());
+        batch.get(0, copy);
+        assertEquals(first.toMap(), copy.toMap());
+
+        batch.clear();
+        assertEquals(0, batch.size());
+        assertNull(batch.getTexts(HouseStateField.LOCK_REQUEST)[0]);
+        assertThrows(IndexOutOfBoundsException.class, () -> batch.get(0, copy));
+    }
+}
@@ -0,0 +1,64 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HouseStateTest {
+
+    @Test
+    void test_settings_round_trip_through_the_state_map() {
+        Map<String, Object> settings = new Hashtable<>();
+        settings.put(IoTValues.ALARM_DELAY, 5);
+        settings.put(IoTValues.ALARM_PASSCODE, "1234");
+        settings.put(IoTValues.AWAY_TIMER, false);
+        settings.put("unknown", "ignored");
+
+        HouseState state = new HouseState();
+        state.putAll(settings);
+
+        assertEquals(5, state.getInt(HouseStateField.ALARM_DELAY));
+        assertEquals("1234", state.getText(HouseStateField.ALARM_PASSCODE));
+        assertTrue(state.has(HouseStateField.AWAY_TIMER));
+        assertFalse(state.has(HouseStateField.LOCK_PASSCODE));
+
+        settings.remove("unknown");
+        assertEquals(settings, state.toMap());
+    }
+
+    @Test
+    void test_merge_keeps_fields_the_other_state_lacks() {
+        HouseState state = new HouseState();
+        state.setInt(HouseStateField.TEMP_READING, 70);
+        state.setFlag(HouseStateField.DOOR_STATE, true);
+        state.setText(HouseStateField.LOCK_PASSCODE, "abcd");
+
+        HouseState update = new HouseState();
+        update.setFlag(HouseStateField.DOOR_STATE, false);
+        update.setInt(HouseStateField.TARGET_TEMP, 72);
+
+        state.putAll(update);
+
+        assertEquals(70, state.getTemperature());
+        assertFalse(state.getFlag(HouseStateField.DOOR_STATE));
+        assertTrue(state.has(HouseStateField.DOOR_STATE));
+        assertEquals(72, state.getInt(HouseStateField.TARGET_TEMP));
+        assertEquals("abcd", state.getText(HouseStateField.LOCK_PASSCODE));
+    }
+
+    @Test
+    void test_removed_fields_are_not_reported() {
+        HouseState state = new HouseState();
+        state.setInt(HouseStateField.CURRENT_TIME, 1200);
+        state.setText(HouseStateField.GIVEN_PASSCODE, "1234");
+
+        state.remove(HouseStateField.CURRENT_TIME);
+        state.setText(HouseStateField.GIVEN_PASSCODE, null);
+
+        assertEquals(0L, state.getPresentMask());
+        assertTrue(state.toMap().isEmpty());
+    }
+}
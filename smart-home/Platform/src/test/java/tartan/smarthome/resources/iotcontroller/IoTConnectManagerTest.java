@@ -0,0 +1,238 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IoTConnectManagerTest {
+
+    private static final String REPORTED = "SU:DS=0;LS=1;AS=0;HES=0;CHS=0;TR=70;HR=40;HM=1.";
+    private static final String PUSHED = "SU:DS=1;LS=1;AS=0;HES=0;CHS=0;TR=70;HR=40;HM=1.";
+
+    private ServerSocket server;
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    // requests the house reads but does not answer, once each
+    private final Set<String> swallowed = ConcurrentHashMap.newKeySet();
+    // requests the house answers only once the latch is released
+    private final Map<String, CountDownLatch> held = new ConcurrentHashMap<>();
+    // a house that does not push answers a subscription with an error, like any request it does not know
+    private volatile boolean pushes = true;
+    private IoTTransport transport;
+    private IoTConnection connection;
+    private IoTConnectManager connMgr;
+
+    /**
+     * A house that reports a fixed state and accepts every set state request. Once subscribed, it pushes a
+     * state update just before answering each set state request. It takes one connection after another
+     */
+    private void serve() {
+        try {
+            while (true) {
+                try (Socket s = server.accept()) {
+                    serve(s);
+                }
+            }
+        } catch (IOException e) {
+            // the test is over
+        }
+    }
+
+    private void serve(Socket s) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+             OutputStream out = s.getOutputStream()) {
+            StringBuilder msg = new StringBuilder();
+            boolean pushing = false;
+            int c;
+            while ((c = in.read()) >= 0) {
+                msg.append((char) c);
+                if (c != '.') {
+                    continue;
+                }
+                received.add(msg.toString());
+                if (swallowed.remove(msg.toString())) {
+                    msg.setLength(0);
+                    continue;
+                }
+                CountDownLatch latch = held.remove(msg.toString());
+                if (latch != null) {
+                    latch.await();
+                }
+                String reply = "OK.";
+                if (msg.toString().startsWith(IoTValues.GET_STATE)) {
+                    reply = REPORTED;
+                } else if (msg.toString().startsWith(IoTValues.PUSH_SUBSCRIBE) && !pushes) {
+                    reply = IoTValues.ERROR + IoTValues.MSG_END;
+                } else if (msg.toString().startsWith(IoTValues.PUSH_SUBSCRIBE)) {
+                    pushing = true;
+                } else if (pushing) {
+                    reply = PUSHED + "\n" + reply;
+                }
+                msg.setLength(0);
+                out.write((reply + "\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the connection was closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread house = new Thread(this::serve);
+        house.setDaemon(true);
+        house.start();
+
+        transport = new IoTTransport(1);
+        connection = new IoTConnection(server.getInetAddress().getHostAddress(), server.getLocalPort(), transport);
+        assertTrue(connection.connect());
+        connMgr = new IoTConnectManager(connection);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        connMgr.disconnectFromHouse();
+        transport.shutdown();
+        server.close();
+    }
+
+    private static Map<String, Object> state(Object... kv) {
+        Map<String, Object> m = new HashMap<>();
+        for (int i = 0; i < kv.length; i += 2) {
+            m.put((String) kv[i], kv[i + 1]);
+        }
+        return m;
+    }
+
+    @Test
+    void test_only_changed_fields_are_sent() {
+        assertNotNull(connMgr.getState());
+
+        assertTrue(connMgr.setState(state(IoTValues.DOOR_STATE, true, IoTValues.LIGHT_STATE, true,
+                IoTValues.ALARM_STATE, false, IoTValues.TEMP_READING, 70)));
+
+        assertEquals(List.of("GS.", "SS:DS=1."), received);
+    }
+
+    @Test
+    void test_unchanged_state_is_not_sent() {
+        assertNotNull(connMgr.getState());
+
+        assertTrue(connMgr.setState(state(IoTValues.LOCK_STATE, true)));
+        assertTrue(connMgr.setState(state(IoTValues.LOCK_STATE, true, IoTValues.LIGHT_STATE, true)));
+
+        assertEquals(List.of("GS.", "SS:LKS=1."), received);
+    }
+
+    @Test
+    void test_fields_are_sent_again_after_the_house_reports_them() {
+        assertTrue(connMgr.setState(state(IoTValues.DOOR_STATE, true)));
+        // the house still reports the door closed, so it must be opened again
+        assertNotNull(connMgr.getState());
+        assertTrue(connMgr.setState(state(IoTValues.DOOR_STATE, true)));
+
+        assertEquals(List.of("SS:DS=1.", "GS.", "SS:DS=1."), received);
+    }
+
+    @Test
+    void test_overlapping_requests_are_compared_with_what_was_sent() {
+        // the house reports the light on
+        assertNotNull(connMgr.getState());
+        CountDownLatch answer = new CountDownLatch(1);
+        held.put("SS:LS=0.", answer);
+
+        CompletableFuture<Boolean> off = connMgr.setStateAsync(state(IoTValues.LIGHT_STATE, false));
+        // the light is on as far as the house has confirmed, but it is being turned off
+        CompletableFuture<Boolean> on = connMgr.setStateAsync(state(IoTValues.LIGHT_STATE, true));
+        CompletableFuture<Boolean> again = connMgr.setStateAsync(state(IoTValues.LIGHT_STATE, true));
+        answer.countDown();
+
+        assertTrue(off.join());
+        assertTrue(on.join());
+        assertTrue(again.join());
+        assertEquals(List.of("GS.", "SS:LS=0.", "SS:LS=1."), received);
+    }
+
+    @Test
+    void test_pushed_updates_are_not_taken_for_responses() {
+        List<HouseState> pushed = new CopyOnWriteArrayList<>();
+        assertTrue(connMgr.subscribeAsync(pushed::add).join());
+
+        assertTrue(connMgr.setState(state(IoTValues.LIGHT_STATE, false)));
+        assertNotNull(connMgr.getState());
+
+        assertEquals(List.of("PU.", "SS:LS=0.", "GS."), received);
+        assertEquals(1, pushed.size());
+        assertTrue(pushed.get(0).getFlag(HouseStateField.DOOR_STATE));
+    }
+
+    @Test
+    void test_a_request_the_house_swallows_closes_the_connection() throws InterruptedException {
+        connection.setResponseTimeout(200);
+        swallowed.add("SS:LS=1.");
+
+        assertFalse(connMgr.setState(state(IoTValues.LIGHT_STATE, true)));
+        // any later line could be the late answer, so the connection is given up rather than reused
+        for (int i = 0; i < 100 && connMgr.isConnected(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(connMgr.isConnected());
+
+        assertTrue(connMgr.reconnect());
+        assertTrue(connMgr.setState(state(IoTValues.LIGHT_STATE, true)));
+        assertNotNull(connMgr.getState());
+        assertEquals(List.of("SS:LS=1.", "SS:LS=1.", "GS."), received);
+    }
+
+    @Test
+    void test_a_house_that_does_not_push_refuses_to_subscribe() {
+        pushes = false;
+        List<HouseState> pushed = new CopyOnWriteArrayList<>();
+        assertFalse(connMgr.subscribeAsync(pushed::add).join());
+
+        // the state updates answer the requests, rather than being taken for pushed ones
+        assertNotNull(connMgr.getState());
+        assertTrue(connMgr.setState(state(IoTValues.LIGHT_STATE, false)));
+        assertNotNull(connMgr.getState());
+
+        assertEquals(List.of("PU.", "GS.", "SS:LS=0.", "GS."), received);
+        assertTrue(pushed.isEmpty());
+    }
+
+    @Test
+    void test_an_unanswered_subscription_closes_the_connection() throws InterruptedException {
+        connection.setResponseTimeout(200);
+        swallowed.add("PU.");
+        List<HouseState> pushed = new CopyOnWriteArrayList<>();
+
+        assertFalse(connMgr.subscribeAsync(pushed::add).join());
+        for (int i = 0; i < 100 && connMgr.isConnected(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(connMgr.isConnected());
+
+        assertTrue(connMgr.reconnect());
+        assertNotNull(connMgr.getState());
+    }
+}
@@ -0,0 +1,174 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IoTTransportTest {
+
+    private static final String REPORTED = "SU:DS=0;LS=1;AS=0;HES=0;CHS=0;TR=70;HR=40;HM=1.";
+
+    private ServerSocket server;
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    // the house pushes its state as fast as it can, between its answers
+    private volatile boolean pushing = false;
+    private IoTTransport transport;
+
+    /**
+     * A house that answers get state requests, each connection on a thread of its own
+     */
+    private void serve() {
+        try {
+            while (true) {
+                Socket s = server.accept();
+                Thread t = new Thread(() -> serve(s));
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException e) {
+            // the test is over
+        }
+    }
+
+    private void serve(Socket s) {
+        try (s;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+             OutputStream out = s.getOutputStream()) {
+            if (pushing) {
+                Thread pusher = new Thread(() -> push(out));
+                pusher.setDaemon(true);
+                pusher.start();
+            }
+            StringBuilder msg = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0) {
+                msg.append((char) c);
+                if (c != '.') {
+                    continue;
+                }
+                received.add(msg.toString());
+                msg.setLength(0);
+                synchronized (out) {
+                    out.write((REPORTED + "\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // the connection was closed
+        }
+    }
+
+    private void push(OutputStream out) {
+        try {
+            while (true) {
+                synchronized (out) {
+                    out.write((REPORTED + "\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+                Thread.onSpinWait();
+            }
+        } catch (IOException e) {
+            // the connection was closed
+        }
+    }
+
+    private IoTConnection connect() {
+        IoTConnection conn = new IoTConnection(server.getInetAddress().getHostAddress(), server.getLocalPort(),
+                transport);
+        assertTrue(conn.connect());
+        return conn;
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread house = new Thread(this::serve);
+        house.setDaemon(true);
+        house.start();
+        transport = new IoTTransport(2);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        transport.shutdown();
+        server.close();
+    }
+
+    @Test
+    void test_connections_share_the_selector_threads() throws Exception {
+        List<IoTConnection> connections = new ArrayList<>();
+        List<CompletableFuture<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            IoTConnection conn = connect();
+            connections.add(conn);
+            responses.add(conn.sendMessageAsync(IoTValues.GET_STATE + IoTValues.MSG_END));
+        }
+        for (CompletableFuture<String> response : responses) {
+            assertEquals(REPORTED, response.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(20, received.size());
+        for (IoTConnection conn : connections) {
+            conn.disconnect();
+        }
+    }
+
+    @Test
+    void test_shutdown_closes_the_connections() throws Exception {
+        IoTConnection conn = connect();
+        assertEquals(REPORTED, conn.sendMessageToHouse(IoTValues.GET_STATE + IoTValues.MSG_END));
+
+        transport.shutdown();
+        for (int i = 0; i < 100 && conn.isConnected(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(conn.isConnected());
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> conn.sendMessageAsync(IoTValues.GET_STATE + IoTValues.MSG_END).get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof ClosedChannelException);
+    }
+
+    @Test
+    void test_pushed_updates_do_not_answer_requests_before_they_are_sent() throws Exception {
+        pushing = true;
+        IoTConnection conn = connect();
+        AtomicInteger pushed = new AtomicInteger();
+        conn.setUpdateListener(msg -> pushed.incrementAndGet());
+
+        List<CompletableFuture<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            responses.add(conn.sendMessageAsync(IoTValues.GET_STATE + IoTValues.MSG_END));
+        }
+        for (CompletableFuture<String> response : responses) {
+            assertEquals(REPORTED, response.get(10, TimeUnit.SECONDS));
+        }
+        // every request reached the house whole, none was dropped for a pushed update
+        for (int i = 0; i < 100 && received.size() < 200; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(200, received.size());
+        for (String msg : received) {
+            assertEquals(IoTValues.GET_STATE + IoTValues.MSG_END, msg);
+        }
+        assertTrue(pushed.get() > 0);
+        conn.disconnect();
+    }
+}
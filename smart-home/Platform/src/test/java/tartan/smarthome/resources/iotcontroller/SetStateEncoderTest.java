@@ -0,0 +1,59 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SetStateEncoderTest {
+
+    private static String encode(HouseState state) {
+        ByteBuffer out = ByteBuffer.allocate(SetStateEncoder.MAX_MESSAGE_SIZE);
+        SetStateEncoder.encode(state, out);
+        return new String(out.array(), 0, out.position(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void test_fields_are_encoded_in_field_order() {
+        HouseState state = new HouseState();
+        state.setFlag(HouseStateField.HEATER_STATE, true);
+        state.setFlag(HouseStateField.DOOR_STATE, false);
+        state.setFlag(HouseStateField.LIGHT_STATE, true);
+
+        assertEquals("SS:DS=0;LS=1;HES=1.", encode(state));
+    }
+
+    @Test
+    void test_reported_only_fields_are_not_sent() {
+        Map<String, Object> map = new HashMap<>();
+        map.put(IoTValues.TEMP_READING, 70);
+        map.put(IoTValues.HUMIDITY_READING, 40);
+        map.put(IoTValues.HVAC_MODE, "Heater");
+        map.put(IoTValues.PROXIMITY_STATE, true);
+        map.put(IoTValues.TARGET_TEMP, 72);
+        map.put(IoTValues.ALARM_ACTIVE, true);
+
+        HouseState state = new HouseState();
+        state.putAll(map);
+
+        assertEquals("SS:AA=1.", encode(state));
+        assertEquals("SS:.", SetStateEncoder.toString(0L, 0L));
+    }
+
+    @Test
+    void test_full_state_fits_in_max_message_size() {
+        HouseState state = new HouseState();
+        for (HouseStateField f : HouseStateField.values()) {
+            state.setFlag(f, true);
+        }
+        String msg = encode(state);
+
+        assertEquals(SetStateEncoder.MAX_MESSAGE_SIZE, msg.length());
+        assertEquals(15, msg.split(IoTValues.PARAM_DELIM).length);
+        assertTrue(msg.length() <= IoTConnection.MAX_MESSAGE_SIZE);
+    }
+}
@@ -0,0 +1,87 @@
+package tartan.smarthome.resources.iotcontroller;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StateUpdateParserTest {
+
+    private StateUpdateParser parser;
+    private HouseState state;
+
+    @BeforeEach
+    void setUp() {
+        parser = new StateUpdateParser();
+        state = new HouseState();
+    }
+
+    @Test
+    void test_full_update_produces_legacy_state_map() {
+        String msg = "SU:AS=0;AA=0;DS=1;LS=1;PS=1;APS=0;HUS=0;HES=1;CHS=0;HM=1;TR=68;HR=42;"
+                + "LKS=1;EOE=1;KLE=0;NLE=0;LIS=0;IDS=0;PM=0.";
+
+        assertTrue(parser.parse(msg, state));
+        Map<String, Object> map = state.toMap();
+
+        assertEquals(19, map.size());
+        assertEquals(68, map.get(IoTValues.TEMP_READING));
+        assertEquals(42, map.get(IoTValues.HUMIDITY_READING));
+        assertEquals("Heater", map.get(IoTValues.HVAC_MODE));
+        assertEquals(true, map.get(IoTValues.DOOR_STATE));
+        assertEquals(true, map.get(IoTValues.LOCK_STATE));
+        assertEquals(false, map.get(IoTValues.ALARM_STATE));
+        assertEquals(false, map.get(IoTValues.LOCK_KEYLESS_ENTRY_ENABLE));
+    }
+
+    @Test
+    void test_only_reported_fields_are_present() {
+        assertTrue(parser.parse("SU:HM=0;TR=-3", state));
+
+        assertTrue(state.has(HouseStateField.TEMP_READING));
+        assertFalse(state.has(HouseStateField.DOOR_STATE));
+        assertEquals(-3, state.getTemperature());
+        assertEquals(Map.of(IoTValues.HVAC_MODE, "Chiller", IoTValues.TEMP_READING, -3), state.toMap());
+    }
+
+    @Test
+    void test_empty_params_and_unknown_keys_are_ignored() {
+        assertTrue(parser.parse("SU:;LS=1;;XX=5;.", state));
+        assertEquals(Map.of(IoTValues.LIGHT_STATE, true), state.toMap());
+    }
+
+    @Test
+    void test_invalid_messages_are_rejected() {
+        String[] invalid = { "", "SU", "SU:", "OK.", "GS:LS=1.", "SU:LS=1:DS=0.", "SU:LS.", "SU:LS=.",
+                "SU:LS=x.", "SU:TR=99999999999." };
+        for (String msg : invalid) {
+            state.setFlag(HouseStateField.LIGHT_STATE, true);
+            assertFalse(parser.parse(msg, state), msg);
+            assertEquals(0L, state.getPresentMask(), msg);
+        }
+    }
+
+    @Test
+    void test_reused_state_is_cleared_between_updates() {
+        assertTrue(parser.parse("SU:LS=1;TR=70.", state));
+        assertTrue(parser.parse("SU:DS=0.", state));
+
+        assertFalse(state.has(HouseStateField.LIGHT_STATE));
+        assertEquals(Map.of(IoTValues.DOOR_STATE, false), state.toMap());
+    }
+
+    @Test
+    void test_byte_buffer_is_parsed_without_consuming_it() {
+        ByteBuffer buf = ByteBuffer.wrap("xxSU:AA=1;HR=55.".getBytes(StandardCharsets.US_ASCII));
+        buf.position(2);
+
+        assertTrue(parser.parse(buf, state));
+        assertEquals(2, buf.position());
+        assertTrue(state.getFlag(HouseStateField.ALARM_ACTIVE));
+        assertEquals(55, state.getHumidity());
+    }
+}
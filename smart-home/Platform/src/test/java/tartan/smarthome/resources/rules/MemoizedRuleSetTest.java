@@ -0,0 +1,82 @@
+package tartan.smarthome.resources.rules;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MemoizedRuleSetTest {
+
+    private static final long A = 1L;
+    private static final long B = 1L << 1;
+    private static final long C = 1L << 2;
+
+    private final RuleSet rules = RuleSet.builder()
+            .first(Rule.when(A, 0).set(B).log("a"),
+                    Rule.otherwise().log("not a"))
+            .first(Rule.when(B, C).set(C).log("b"))
+            .compile();
+
+    @Test
+    void test_remembered_outcomes_match_the_rules() {
+        MemoizedRuleSet memo = new MemoizedRuleSet(rules, 16);
+        for (int round = 0; round < 2; round++) {
+            for (long bits = 0; bits < 8; bits++) {
+                List<String> expected = new ArrayList<>();
+                List<String> actual = new ArrayList<>();
+                assertEquals(rules.evaluate(bits, expected::add), memo.evaluate(bits, actual::add));
+                assertEquals(expected, actual);
+            }
+        }
+        assertEquals(16, memo.getCapacity());
+        assertEquals(16, memo.getHitCount() + memo.getMissCount());
+        assertTrue(memo.getHitCount() > 0);
+    }
+
+    @Test
+    void test_a_full_table_replaces_outcomes() {
+        MemoizedRuleSet memo = new MemoizedRuleSet(rules, 1);
+        List<String> log = new ArrayList<>();
+
+        assertEquals(A | B | C, memo.evaluate(A, log::add));
+        assertEquals(0L, memo.evaluate(0L, log::add));
+        assertEquals(A | B | C, memo.evaluate(A, log::add));
+        assertEquals(A | B | C, memo.evaluate(A, log::add));
+
+        assertEquals(List.of("a", "b", "not a", "a", "b", "a", "b"), log);
+        assertEquals(3, memo.getMissCount());
+        assertEquals(1, memo.getHitCount());
+    }
+
+    @Test
+    void test_a_traced_evaluation_uses_the_table_and_keeps_the_trace() {
+        MemoizedRuleSet memo = new MemoizedRuleSet(rules, 16);
+        RuleTrace expectedTrace = new RuleTrace();
+        RuleTrace actualTrace = new RuleTrace();
+        long[] inputs = {0L, A, A | C, B, 0L, A, A | C, B, A};
+        for (long bits : inputs) {
+            List<String> expected = new ArrayList<>();
+            List<String> actual = new ArrayList<>();
+            assertEquals(rules.evaluate(bits, expectedTrace, expected::add),
+                    memo.evaluate(bits, actualTrace, actual::add));
+            assertEquals(expected, actual);
+        }
+        assertEquals(4, memo.getMissCount());
+        assertEquals(5, memo.getHitCount());
+        // the last evaluation was a hit, so no block ran
+        assertEquals(0, actualTrace.getEvaluatedBlockCount());
+
+        // the trace still gives the same states after the hits
+        List<String> log = new ArrayList<>();
+        assertEquals(rules.evaluate(B | C, message -> { }), memo.evaluate(B | C, actualTrace, log::add));
+        assertEquals(List.of("not a"), log);
+    }
+
+    @Test
+    void test_capacity_is_rounded_up_to_a_power_of_two() {
+        assertEquals(8, new MemoizedRuleSet(rules, 5).getCapacity());
+        assertThrows(IllegalArgumentException.class, () -> new MemoizedRuleSet(rules, 0));
+    }
+}
@@ -0,0 +1,59 @@
+package tartan.smarthome.resources.rules;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RuleSetReaderTest {
+
+    private static final long A = 1L;
+    private static final long B = 1L << 1;
+    private static final long C = 1L << 40;
+
+    private final RuleSetReader reader = new RuleSetReader(Map.of("A", A, "B", B, "C", C));
+
+    @Test
+    void test_read_rules_match_the_built_rules() throws Exception {
+        RuleSet read = reader.read(new StringReader(String.join("\n",
+                "# set c from a",
+                "block",
+                "when A !B set C clear A log \"a\" \"# not a comment\"",
+                "",
+                "block",
+                "when C clear C   # a comment",
+                "otherwise set B log \"no c\"")));
+        RuleSet built = RuleSet.builder()
+                .first(Rule.when(A, B).set(C).clear(A).log("a", "# not a comment"))
+                .first(Rule.when(C, 0).clear(C),
+                        Rule.otherwise().set(B).log("no c"))
+                .compile();
+
+        for (long bits : new long[] { 0L, A, B, C, A | B, A | C, B | C, A | B | C }) {
+            List<String> readLog = new ArrayList<>();
+            List<String> builtLog = new ArrayList<>();
+            assertEquals(built.evaluate(bits, builtLog::add), read.evaluate(bits, readLog::add));
+            assertEquals(builtLog, readLog);
+        }
+        assertEquals(2, read.getBlockCount());
+    }
+
+    @Test
+    void test_errors_give_the_line() {
+        IllegalArgumentException unknown = assertThrows(IllegalArgumentException.class,
+                () -> reader.read(new StringReader("block\nwhen A\nwhen D set B")));
+        assertTrue(unknown.getMessage().startsWith("Line 3:"), unknown.getMessage());
+
+        IllegalArgumentException noBlock = assertThrows(IllegalArgumentException.class,
+                () -> reader.read(new StringReader("when A set B")));
+        assertTrue(noBlock.getMessage().startsWith("Line 1:"), noBlock.getMessage());
+
+        assertThrows(IllegalArgumentException.class, () -> reader.read(new StringReader("block\nwhen A log a")));
+        assertThrows(IllegalArgumentException.class, () -> reader.read(new StringReader("block\nwhen A !A")));
+        assertThrows(IllegalArgumentException.class, () -> reader.read(new StringReader("# nothing")));
+    }
+}
@@ -0,0 +1,107 @@
+package tartan.smarthome.resources.rules;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RuleSetTest {
+
+    private static final long A = 1L;
+    private static final long B = 1L << 1;
+    private static final long C = 1L << 40;
+
+    @Test
+    void test_only_the_first_matching_rule_of_a_block_fires() {
+        RuleSet rules = RuleSet.builder()
+                .first(Rule.when(A, 0).clear(A).log("first"),
+                        Rule.when(0, A).set(B).log("second"),
+                        Rule.otherwise().log("third"))
+                .compile();
+        List<String> log = new ArrayList<>();
+
+        assertEquals(0L, rules.evaluate(A, log::add));
+        assertEquals(List.of("first"), log);
+    }
+
+    @Test
+    void test_later_blocks_see_earlier_changes() {
+        RuleSet rules = RuleSet.builder()
+                .first(Rule.when(A, 0).set(C))
+                .first(Rule.when(C, B).set(B).log("c was set"),
+                        Rule.otherwise().log("c was not set"))
+                .compile();
+        List<String> log = new ArrayList<>();
+
+        assertEquals(A | B | C, rules.evaluate(A, log::add));
+        assertEquals(0L, rules.evaluate(0L, log::add));
+        assertEquals(List.of("c was set", "c was not set"), log);
+        assertEquals(2, rules.getBlockCount());
+    }
+
+    @Test
+    void test_contradictory_rules_are_rejected() {
+        assertThrows(IllegalArgumentException.class, () -> Rule.when(A, A));
+        assertThrows(IllegalArgumentException.class,
+                () -> RuleSet.builder().first(Rule.otherwise().set(A).clear(A)).compile());
+        assertThrows(IllegalArgumentException.class,
+                () -> RuleSet.builder().first(Rule.when(0x7FFL, 0)).compile());
+    }
+
+    @Test
+    void test_a_trace_reruns_only_the_blocks_that_read_what_changed() {
+        RuleSet rules = RuleSet.builder()
+                .first(Rule.when(A, 0).set(C).log("a"))
+                .first(Rule.when(B, 0).log("b"),
+                        Rule.otherwise().log("not b"))
+                .first(Rule.when(C, 0).log("c"))
+                .compile();
+        RuleTrace trace = new RuleTrace();
+        List<String> log = new ArrayList<>();
+
+        assertEquals(rules.evaluate(0L, message -> { }), rules.evaluate(0L, trace, log::add));
+        assertEquals(3, trace.getEvaluatedBlockCount());
+        assertEquals(List.of("not b"), log);
+
+        // B is read by the second block only
+        log.clear();
+        assertEquals(B, rules.evaluate(B, trace, log::add));
+        assertEquals(1, trace.getEvaluatedBlockCount());
+        assertEquals(List.of("b"), log);
+
+        // A changes what the first block writes, which the third block reads
+        log.clear();
+        assertEquals(A | B | C, rules.evaluate(A | B, trace, log::add));
+        assertEquals(2, trace.getEvaluatedBlockCount());
+        // the second block did not run, but the rule it fired again still logs
+        assertEquals(List.of("a", "b", "c"), log);
+        assertEquals(List.of(0, 2), rules.getDependentBlocks(A));
+
+        trace.reset();
+        assertEquals(A | B | C, rules.evaluate(A | B, trace, log::add));
+        assertEquals(3, trace.getEvaluatedBlockCount());
+    }
+
+    @Test
+    void test_a_trace_gives_the_same_states_and_messages_as_full_evaluation() {
+        RuleSet rules = RuleSet.builder()
+                .first(Rule.when(A, B).set(C).clear(A).log("a to c"),
+                        Rule.when(B, 0).set(A).log("b to a"))
+                .first(Rule.when(C | A, 0).clear(B).log("clear b"),
+                        Rule.when(0, C).set(B).log("set b"))
+                .first(Rule.when(B, C).set(C).log("set c"))
+                .compile();
+        RuleTrace trace = new RuleTrace();
+        long[] inputs = {0L, A, A | B, B, C, A | C, B | C, A | B | C, 0L, B | C, A};
+        for (int round = 0; round < 2; round++) {
+            for (long bits : inputs) {
+                List<String> expected = new ArrayList<>();
+                List<String> actual = new ArrayList<>();
+                assertEquals(rules.evaluate(bits, expected::add), rules.evaluate(bits, trace, actual::add));
+                assertEquals(expected, actual);
+            }
+        }
+    }
+}